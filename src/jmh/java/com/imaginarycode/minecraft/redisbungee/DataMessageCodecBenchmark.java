@@ -0,0 +1,62 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.net.InetAddresses;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of the messages sent on <code>redisbungee-data</code>, in the original Gson format and the
+ * binary one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class DataMessageCodecBenchmark {
+    @Param({"1", "2"})
+    private int protocol;
+
+    // A string, as the generated benchmark code can't see the package-private Action.
+    @Param({"JOIN", "LEAVE", "SERVER_CHANGE"})
+    private String action;
+
+    private DataManager.DataManagerMessage<?> message;
+    private String encoded;
+
+    @Setup
+    public void setUp() {
+        DataMessageCodec.negotiate(Collections.singleton("bench"), ImmutableMap.of("bench", String.valueOf(protocol)));
+
+        DataManager.DataManagerMessage.Action action = DataManager.DataManagerMessage.Action.valueOf(this.action);
+        Object payload;
+        switch (action) {
+            case JOIN:
+                payload = new DataManager.LoginPayload(InetAddresses.forString("203.0.113.42"));
+                break;
+            case LEAVE:
+                payload = new DataManager.LogoutPayload(1420070400000L);
+                break;
+            default:
+                payload = new DataManager.ServerChangePayload("survival");
+                break;
+        }
+        message = new DataManager.DataManagerMessage<>("Notch", "bungee-1", action, payload);
+        encoded = DataMessageCodec.encode(message);
+    }
+
+    @Benchmark
+    public String encode() {
+        return DataMessageCodec.encode(message);
+    }
+
+    @Benchmark
+    public List<DataManager.DataManagerMessage<?>> decode() {
+        return DataMessageCodec.decode(encoded);
+    }
+}
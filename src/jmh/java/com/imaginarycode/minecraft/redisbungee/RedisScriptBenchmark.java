@@ -0,0 +1,152 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.collect.ImmutableList;
+import com.imaginarycode.minecraft.redisbungee.util.IOUtil;
+import org.openjdk.jmh.annotations.*;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The scripts run when a player joins, changes server and leaves, and the one behind the server-to-players map, run
+ * against a Redis server holding a network of the given size.
+ * <p>
+ * The keys and arguments are built exactly as {@link RedisUtil} builds them, since its methods need a running proxy.
+ * By default the Redis server on localhost is used, with database 15, which is emptied first. To use another one,
+ * pass <code>-jvmArgsAppend "-Dredisbungee.benchmark.redis=host:port -Dredisbungee.benchmark.database=n"</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class RedisScriptBenchmark {
+    private static final String PROXY = "bungee-1";
+    private static final List<String> PROXIES = ImmutableList.of(PROXY, "bungee-2", "bungee-3");
+    private static final int SERVERS = 20;
+    private static final int JOINING = 1000;
+
+    @Param({"1000", "10000", "50000"})
+    private int players;
+
+    private final Keyspace keyspace = new Keyspace(1, null);
+    private Jedis jedis;
+    private String registerPlayer;
+    private String setPlayerServer;
+    private String unregisterPlayer;
+    private String serverToPlayersSha;
+    private int next = 0;
+
+    @Setup
+    public void setUp() throws Exception {
+        String[] address = System.getProperty("redisbungee.benchmark.redis", "localhost:6379").split(":");
+        jedis = new Jedis(address[0], Integer.parseInt(address[1]));
+        jedis.select(Integer.getInteger("redisbungee.benchmark.database", 15));
+        jedis.flushDB();
+
+        registerPlayer = readScript("register_player");
+        setPlayerServer = readScript("set_player_server");
+        unregisterPlayer = readScript("unregister_player");
+        serverToPlayersSha = jedis.scriptLoad(readScript("server_to_players"));
+
+        // Always the same network, so that runs can be compared.
+        Random random = new Random(42);
+        Pipeline pipeline = jedis.pipelined();
+        for (int i = 0; i < players; i++) {
+            createPlayer(pipeline, PROXIES.get(i % PROXIES.size()), "player" + i, null, "server" + random.nextInt(SERVERS));
+        }
+        pipeline.sync();
+    }
+
+    @TearDown
+    public void tearDown() {
+        jedis.flushDB();
+        jedis.close();
+    }
+
+    @Benchmark
+    public void createPlayer() {
+        // The same few players join over and over, so the network stays the same size.
+        int joining = next++;
+        Pipeline pipeline = jedis.pipelined();
+        createPlayer(pipeline, PROXY, "joining" + (joining % JOINING), joining < JOINING ? null : "lobby", "lobby");
+        pipeline.sync();
+    }
+
+    @Benchmark
+    public void cleanUpPlayer(Leaving player) {
+        String leaving = player.name;
+        int shard = keyspace.getShard(leaving);
+        List<String> keys = new ArrayList<>(playerKeys(PROXY, leaving));
+        keys.add(keyspace.getServerPlayersKey("lobby", shard));
+        Pipeline pipeline = jedis.pipelined();
+        pipeline.eval(unregisterPlayer, keys, ImmutableList.of(leaving, String.valueOf(System.currentTimeMillis()), "lobby"));
+        pipeline.sync();
+    }
+
+    @Benchmark
+    public Object serverToPlayers() {
+        Pipeline pipeline = jedis.pipelined();
+        List<Response<Set<String>>> members = new ArrayList<>();
+        for (String key : keyspace.getProxyPlayersKeys(PROXIES, 0)) {
+            members.add(pipeline.smembers(key));
+        }
+        pipeline.sync();
+
+        List<String> players = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        for (Response<Set<String>> response : members) {
+            for (String player : response.get()) {
+                players.add(player);
+                keys.add(keyspace.getPlayerKey(player));
+            }
+        }
+        return jedis.evalsha(serverToPlayersSha, keys, players);
+    }
+
+    /**
+     * @param previous the server the player is already on, or null if none
+     */
+    private void createPlayer(Pipeline pipeline, String proxy, String player, String previous, String server) {
+        int shard = keyspace.getShard(player);
+        String key = keyspace.getPlayerKey(player);
+        pipeline.eval(registerPlayer, playerKeys(proxy, player), ImmutableList.of(player, "203.0.113.42", proxy));
+        pipeline.eval(setPlayerServer, ImmutableList.of(key, keyspace.getServerPlayersKey(server, shard),
+                previous == null ? key : keyspace.getServerPlayersKey(previous, shard)),
+                ImmutableList.of(player, server, previous == null ? "" : previous, proxy));
+    }
+
+    private List<String> playerKeys(String proxy, String player) {
+        int shard = keyspace.getShard(player);
+        return ImmutableList.of(keyspace.getProxyPlayersKey(proxy, shard), keyspace.getPlayerKey(player),
+                keyspace.getPlayerCountKey(shard));
+    }
+
+    /**
+     * Someone for {@link #cleanUpPlayer(Leaving)} to log out, who joins before each call.
+     */
+    @State(Scope.Thread)
+    public static class Leaving {
+        private int next = 0;
+        private String name;
+
+        @Setup(Level.Invocation)
+        public void join(RedisScriptBenchmark benchmark) {
+            name = "leaving" + (next++ % JOINING);
+            Pipeline pipeline = benchmark.jedis.pipelined();
+            benchmark.createPlayer(pipeline, PROXY, name, null, "lobby");
+            pipeline.sync();
+        }
+    }
+
+    private static String readScript(String name) throws Exception {
+        return IOUtil.readInputStreamAsString(RedisScriptBenchmark.class.getResourceAsStream("/lua/" + name + ".lua"));
+    }
+}
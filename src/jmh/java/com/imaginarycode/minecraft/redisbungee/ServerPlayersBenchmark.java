@@ -0,0 +1,48 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing the reply to the <code>ServerPlayers</code> plugin message, with and without the names of the players.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ServerPlayersBenchmark {
+    private static final int SERVERS = 20;
+
+    @Param({"1000", "10000", "50000"})
+    private int players;
+
+    @Param({"true", "false"})
+    private boolean includeNames;
+
+    private Multimap<String, String> serverToPlayers;
+
+    @Setup
+    public void setUp() {
+        // Always the same network, so that runs can be compared.
+        Random random = new Random(42);
+        serverToPlayers = HashMultimap.create();
+        for (int i = 0; i < players; i++) {
+            serverToPlayers.put("server" + random.nextInt(SERVERS), "player" + i);
+        }
+    }
+
+    @Benchmark
+    public byte[] serializeMultimap() {
+        ByteArrayDataOutput out = ByteStreams.newDataOutput();
+        RedisBungeeListener.serializeMultimap(serverToPlayers, includeNames, out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,58 @@
+package com.imaginarycode.minecraft.redisbungee.util;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups and writes against one {@link InternalCache} shared by several threads, sized like the caches in
+ * DataManager. Three threads read for every thread that writes, as lookups far outnumber invalidations.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class InternalCacheBenchmark {
+    private static final int KEYS = 10000;
+    private static final Callable<String> LOADER = new Callable<String>() {
+        @Override
+        public String call() throws Exception {
+            return "lobby";
+        }
+    };
+
+    @Param({"1000", "100000"})
+    private int maximumSize;
+
+    private InternalCache<String, String> cache;
+    private String[] keys;
+
+    @Setup
+    public void setUp() {
+        cache = new InternalCache<>(TimeUnit.MINUTES.toMillis(5), maximumSize);
+        keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "player" + i;
+            cache.put(keys[i], "lobby");
+        }
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public String get() throws ExecutionException {
+        return cache.get(keys[ThreadLocalRandom.current().nextInt(KEYS)], LOADER);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public String put() {
+        return cache.put(keys[ThreadLocalRandom.current().nextInt(KEYS)], "survival");
+    }
+}
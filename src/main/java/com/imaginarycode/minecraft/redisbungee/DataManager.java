@@ -1,8 +1,16 @@
 package com.imaginarycode.minecraft.redisbungee;
 
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
@@ -11,19 +19,29 @@ import lombok.RequiredArgsConstructor;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
 import net.md_5.bungee.api.event.PlayerDisconnectEvent;
 import net.md_5.bungee.api.event.PostLoginEvent;
+import net.md_5.bungee.api.event.ServerConnectedEvent;
 import net.md_5.bungee.api.plugin.Listener;
 import net.md_5.bungee.event.EventHandler;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisConnectionException;
 
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.net.InetAddresses;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import com.google.gson.reflect.TypeToken;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.imaginarycode.minecraft.redisbungee.events.PlayerChangedServerNetworkEvent;
 import com.imaginarycode.minecraft.redisbungee.events.PlayerJoinedNetworkEvent;
 import com.imaginarycode.minecraft.redisbungee.events.PlayerLeftNetworkEvent;
 import com.imaginarycode.minecraft.redisbungee.events.PubSubMessageEvent;
 import com.imaginarycode.minecraft.redisbungee.util.InternalCache;
+import com.imaginarycode.minecraft.redisbungee.util.Metrics;
+import com.imaginarycode.minecraft.redisbungee.util.RedisBackend;
+import com.imaginarycode.minecraft.redisbungee.util.Tracer;
 
 /**
  * This class manages all the data that RedisBungee fetches from Redis, along with updates to that data.
@@ -31,18 +49,36 @@ import com.imaginarycode.minecraft.redisbungee.util.InternalCache;
  * @since 0.3.3
  */
 public class DataManager implements Listener {
+    private static final int MAXIMUM_CACHE_SIZE = 10000;
+    private static final long CACHE_LOAD_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+    // The fields fetchPlayers reads, in order.
+    private static final int SERVER_FIELD = 0;
+    private static final int PROXY_FIELD = 1;
+    private static final int IP_FIELD = 2;
+    private static final int ONLINE_FIELD = 3;
+    private static final int PRIMARY = -1;
     private final RedisBungee plugin;
-    // TODO: Add cleanup for this.
-    private final InternalCache<String, String> serverCache = createCache();
-    private final InternalCache<String, String> proxyCache = createCache(TimeUnit.MINUTES.toMillis(60));
-    private final InternalCache<String, InetAddress> ipCache = createCache(TimeUnit.MINUTES.toMillis(60));
-    private final InternalCache<String, Long> lastOnlineCache = createCache(TimeUnit.MINUTES.toMillis(60));
+    private final InternalCache<String, String> serverCache;
+    private final InternalCache<String, String> proxyCache;
+    private final InternalCache<String, InetAddress> ipCache;
+    private final InternalCache<String, Long> lastOnlineCache;
 
-    public DataManager(RedisBungee plugin) {
+    public DataManager(final RedisBungee plugin) {
         this.plugin = plugin;
+        Executor refreshExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                plugin.getProxy().getScheduler().runAsync(plugin, command);
+            }
+        };
+        this.serverCache = createCache(TimeUnit.MINUTES.toMillis(60), refreshExecutor);
+        this.proxyCache = createCache(TimeUnit.MINUTES.toMillis(60), refreshExecutor);
+        this.ipCache = createCache(TimeUnit.MINUTES.toMillis(60), refreshExecutor);
+        this.lastOnlineCache = createCache(TimeUnit.MINUTES.toMillis(60), refreshExecutor);
         plugin.getProxy().getScheduler().schedule(plugin, new Runnable() {
             @Override
             public void run() {
+                serverCache.cleanup();
                 proxyCache.cleanup();
                 ipCache.cleanup();
                 lastOnlineCache.cleanup();
@@ -50,16 +86,21 @@ public class DataManager implements Listener {
         }, 1, 1, TimeUnit.MINUTES);
     }
 
-    private static <K, V> InternalCache<K, V> createCache() {
-        return new InternalCache<>();
+    private static <K, V> InternalCache<K, V> createCache(long entryWriteExpiry, Executor refreshExecutor) {
+        // Entries that are still being asked for are reloaded shortly before they expire. Lookups of a player that is
+        // already being loaded wait for that load instead of borrowing another connection.
+        return new InternalCache<>(entryWriteExpiry, entryWriteExpiry * 5 / 6, MAXIMUM_CACHE_SIZE, refreshExecutor,
+                CACHE_LOAD_TIMEOUT);
     }
 
-    private static <K, V> InternalCache<K, V> createCache(long entryWriteExpiry) {
-        return new InternalCache<>(entryWriteExpiry);
+    Map<String, InternalCache.Stats> getCacheStats() {
+        return ImmutableMap.of(
+                "server", serverCache.getStats(),
+                "proxy", proxyCache.getStats(),
+                "ip", ipCache.getStats(),
+                "lastOnline", lastOnlineCache.getStats());
     }
 
-    private final JsonParser parser = new JsonParser();
-
     public String getServer(final String playeName) {
         ProxiedPlayer player = plugin.getProxy().getPlayer(playeName);
 
@@ -70,8 +111,14 @@ public class DataManager implements Listener {
             return serverCache.get(playeName, new Callable<String>() {
                 @Override
                 public String call() throws Exception {
-                    try (Jedis tmpRsc = plugin.getPool().getResource()) {
-                        return tmpRsc.hget("player:" + playeName, "server");
+                    long start = System.nanoTime();
+                    Tracer.Span span = plugin.getTracer().start("load server of " + playeName);
+                    try (Jedis tmpRsc = RedisBungee.getKeyspace().getPlayerPool(playeName).getResource()) {
+                        span.borrowed();
+                        return tmpRsc.hget(RedisBungee.getKeyspace().getPlayerKey(playeName), "server");
+                    } finally {
+                        span.finish();
+                        plugin.getMetrics().recordSince(Metrics.CACHE_LOAD_SECONDS, "cache", "server", start);
                     }
                 }
             });
@@ -91,8 +138,15 @@ public class DataManager implements Listener {
             return proxyCache.get(uuid, new Callable<String>() {
                 @Override
                 public String call() throws Exception {
-                    try (Jedis tmpRsc = plugin.getPool().getResource()) {
-                        return tmpRsc.hget("player:" + uuid, "proxy");
+                    Keyspace keyspace = RedisBungee.getKeyspace();
+                    long start = System.nanoTime();
+                    Tracer.Span span = plugin.getTracer().start("load proxy of " + uuid);
+                    try (Jedis tmpRsc = keyspace.getReadResource(keyspace.getPlayerPool(uuid))) {
+                        span.borrowed();
+                        return tmpRsc.hget(keyspace.getPlayerKey(uuid), "proxy");
+                    } finally {
+                        span.finish();
+                        plugin.getMetrics().recordSince(Metrics.CACHE_LOAD_SECONDS, "cache", "proxy", start);
                     }
                 }
             });
@@ -112,9 +166,16 @@ public class DataManager implements Listener {
             return ipCache.get(uuid, new Callable<InetAddress>() {
                 @Override
                 public InetAddress call() throws Exception {
-                    try (Jedis tmpRsc = plugin.getPool().getResource()) {
-                        String result = tmpRsc.hget("player:" + uuid, "ip");
+                    Keyspace keyspace = RedisBungee.getKeyspace();
+                    long start = System.nanoTime();
+                    Tracer.Span span = plugin.getTracer().start("load ip of " + uuid);
+                    try (Jedis tmpRsc = keyspace.getReadResource(keyspace.getPlayerPool(uuid))) {
+                        span.borrowed();
+                        String result = tmpRsc.hget(keyspace.getPlayerKey(uuid), "ip");
                         return result == null ? null : InetAddresses.forString(result);
+                    } finally {
+                        span.finish();
+                        plugin.getMetrics().recordSince(Metrics.CACHE_LOAD_SECONDS, "cache", "ip", start);
                     }
                 }
             });
@@ -134,9 +195,16 @@ public class DataManager implements Listener {
             return lastOnlineCache.get(uuid, new Callable<Long>() {
                 @Override
                 public Long call() throws Exception {
-                    try (Jedis tmpRsc = plugin.getPool().getResource()) {
-                        String result = tmpRsc.hget("player:" + uuid, "online");
+                    Keyspace keyspace = RedisBungee.getKeyspace();
+                    long start = System.nanoTime();
+                    Tracer.Span span = plugin.getTracer().start("load lastOnline of " + uuid);
+                    try (Jedis tmpRsc = keyspace.getReadResource(keyspace.getPlayerPool(uuid))) {
+                        span.borrowed();
+                        String result = tmpRsc.hget(keyspace.getPlayerKey(uuid), "online");
                         return result == null ? -1 : Long.valueOf(result);
+                    } finally {
+                        span.finish();
+                        plugin.getMetrics().recordSince(Metrics.CACHE_LOAD_SECONDS, "cache", "lastOnline", start);
                     }
                 }
             });
@@ -146,6 +214,268 @@ public class DataManager implements Listener {
         }
     }
 
+    /**
+     * Gets the servers of many players at once. Players that are not cached are fetched in one pipeline.
+     *
+     * @return every requested player, mapped to their server or null if they are not online
+     */
+    public Map<String, String> getServers(Collection<String> players) {
+        Map<String, String> result = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+
+        for (String name : players) {
+            ProxiedPlayer player = plugin.getProxy().getPlayer(name);
+            if (player != null) {
+                result.put(name, player.getServer() != null ? player.getServer().getInfo().getName() : null);
+            } else if (!cached(serverCache, name, result)) {
+                missing.add(name);
+            }
+        }
+
+        for (Map.Entry<String, List<String>> entry : fetchPlayers(missing, PRIMARY).entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get(SERVER_FIELD));
+        }
+        return result;
+    }
+
+    /**
+     * Gets the proxies of many players at once. Players that are not cached are fetched in one pipeline.
+     *
+     * @return every requested player, mapped to their proxy or null if they are not online
+     */
+    public Map<String, String> getProxies(Collection<String> players) {
+        Map<String, String> result = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+
+        for (String name : players) {
+            if (plugin.getProxy().getPlayer(name) != null) {
+                result.put(name, RedisBungee.getConfiguration().getServerId());
+            } else if (!cached(proxyCache, name, result)) {
+                missing.add(name);
+            }
+        }
+
+        for (Map.Entry<String, List<String>> entry : fetchPlayers(missing, PROXY_FIELD).entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get(PROXY_FIELD));
+        }
+        return result;
+    }
+
+    /**
+     * Gets the addresses of many players at once. Players that are not cached are fetched in one pipeline.
+     *
+     * @return every requested player, mapped to their address or null if it is not known
+     */
+    public Map<String, InetAddress> getIps(Collection<String> players) {
+        Map<String, InetAddress> result = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+
+        for (String name : players) {
+            ProxiedPlayer player = plugin.getProxy().getPlayer(name);
+            if (player != null) {
+                result.put(name, player.getAddress().getAddress());
+            } else if (!cached(ipCache, name, result)) {
+                missing.add(name);
+            }
+        }
+
+        for (Map.Entry<String, List<String>> entry : fetchPlayers(missing, IP_FIELD).entrySet()) {
+            String ip = entry.getValue().get(IP_FIELD);
+            result.put(entry.getKey(), ip == null ? null : InetAddresses.forString(ip));
+        }
+        return result;
+    }
+
+    /**
+     * Gets when many players were last online at once. Players that are not cached are fetched in one pipeline.
+     *
+     * @return every requested player, mapped to the same values as {@link #getLastOnline(String)}
+     */
+    public Map<String, Long> getLastOnline(Collection<String> players) {
+        Map<String, Long> result = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+
+        for (String name : players) {
+            if (plugin.getProxy().getPlayer(name) != null) {
+                result.put(name, 0L);
+            } else if (!cached(lastOnlineCache, name, result)) {
+                missing.add(name);
+            }
+        }
+
+        for (Map.Entry<String, List<String>> entry : fetchPlayers(missing, ONLINE_FIELD).entrySet()) {
+            String online = entry.getValue().get(ONLINE_FIELD);
+            result.put(entry.getKey(), online == null ? -1 : Long.valueOf(online));
+        }
+        return result;
+    }
+
+    private static <V> boolean cached(InternalCache<String, V> cache, String name, Map<String, V> result) {
+        V value = cache.getIfPresent(name);
+        if (value == null)
+            return false;
+
+        result.put(name, value);
+        return true;
+    }
+
+    /**
+     * Fetches the server, proxy, IP and last online time of each player in a single pipeline. Read from the primary,
+     * all of them are cached, so that lookups of the other fields do not need to go back to Redis.
+     * <p>
+     * A replica may be behind an invalidation this proxy already received, so a read from one only caches the field
+     * it was made for. The server is never read from a replica, since its cache relies on every change invalidating it.
+     *
+     * @param replicaField the index of the only field needed, to read it from a replica, or {@link #PRIMARY}
+     */
+    private Map<String, List<String>> fetchPlayers(List<String> players, int replicaField) {
+        if (players.isEmpty())
+            return Collections.emptyMap();
+
+        Keyspace keyspace = RedisBungee.getKeyspace();
+        Map<String, Response<List<String>>> responses = new LinkedHashMap<>();
+        long start = System.nanoTime();
+        Tracer.Span span = plugin.getTracer().start("fetch of " + players.size() + " players");
+        try {
+            // One pipeline per node holding any of the players.
+            for (Map.Entry<JedisPool, List<String>> entry : keyspace.getPlayersByPool(players).entrySet()) {
+                try (Jedis jedis = replicaField != PRIMARY ? keyspace.getReadResource(entry.getKey()) : entry.getKey().getResource()) {
+                    Pipeline pipeline = jedis.pipelined();
+                    for (String player : entry.getValue()) {
+                        responses.put(player, pipeline.hmget(keyspace.getPlayerKey(player), "server", "proxy", "ip", "online"));
+                    }
+                    pipeline.sync();
+                }
+            }
+        } catch (JedisConnectionException e) {
+            plugin.getLogger().log(Level.SEVERE, "Unable to get player data", e);
+            throw new RuntimeException("Unable to get data for " + players.size() + " players", e);
+        } finally {
+            span.finish();
+            plugin.getMetrics().recordSince(Metrics.PLAYER_FETCH_SECONDS, start);
+        }
+
+        Map<String, List<String>> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Response<List<String>>> entry : responses.entrySet()) {
+            List<String> fields = entry.getValue().get();
+            if (replicaField == PRIMARY)
+                cacheFields(entry.getKey(), fields);
+            else
+                cacheField(entry.getKey(), fields, replicaField);
+            result.put(entry.getKey(), fields);
+        }
+        return result;
+    }
+
+    /**
+     * Fetches the same fields as {@link #fetchPlayers(List, int)} from the primary for one player through the {@link RedisBackend}, without
+     * tying up a thread while Redis answers.
+     */
+    private ListenableFuture<List<String>> fetchPlayerAsync(final String name) {
+        if (RedisBungee.getKeyspace().isClustered()) {
+            // The backend only talks to one node.
+            return plugin.getAsyncExecutor().submit(new Callable<List<String>>() {
+                @Override
+                public List<String> call() throws Exception {
+                    return fetchPlayers(Collections.singletonList(name), PRIMARY).get(name);
+                }
+            });
+        }
+
+        return Futures.transform(plugin.getBackend().hmget(RedisBungee.getKeyspace().getPlayerKey(name), "server", "proxy", "ip", "online"),
+                new Function<List<String>, List<String>>() {
+                    @Override
+                    public List<String> apply(List<String> fields) {
+                        cacheFields(name, fields);
+                        return fields;
+                    }
+                }, MoreExecutors.directExecutor());
+    }
+
+    private void cacheFields(String name, List<String> fields) {
+        for (int field = SERVER_FIELD; field <= ONLINE_FIELD; field++) {
+            cacheField(name, fields, field);
+        }
+    }
+
+    private void cacheField(String name, List<String> fields, int field) {
+        String value = fields.get(field);
+        switch (field) {
+            case SERVER_FIELD:
+                if (value != null)
+                    serverCache.put(name, value);
+                break;
+            case PROXY_FIELD:
+                if (value != null)
+                    proxyCache.put(name, value);
+                break;
+            case IP_FIELD:
+                if (value != null)
+                    ipCache.put(name, InetAddresses.forString(value));
+                break;
+            case ONLINE_FIELD:
+                lastOnlineCache.put(name, value == null ? -1 : Long.valueOf(value));
+                break;
+        }
+    }
+
+    /**
+     * Gets the server of a player without blocking. Local and cached players are answered right away.
+     */
+    public ListenableFuture<String> getServerAsync(String name) {
+        ProxiedPlayer player = plugin.getProxy().getPlayer(name);
+        if (player != null)
+            return Futures.immediateFuture(player.getServer() != null ? player.getServer().getInfo().getName() : null);
+
+        String cached = serverCache.getIfPresent(name);
+        if (cached != null)
+            return Futures.immediateFuture(cached);
+
+        return Futures.transform(fetchPlayerAsync(name), field(SERVER_FIELD), MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Gets the proxy of a player without blocking. Local and cached players are answered right away.
+     */
+    public ListenableFuture<String> getProxyAsync(String name) {
+        if (plugin.getProxy().getPlayer(name) != null)
+            return Futures.immediateFuture(RedisBungee.getConfiguration().getServerId());
+
+        String cached = proxyCache.getIfPresent(name);
+        if (cached != null)
+            return Futures.immediateFuture(cached);
+
+        return Futures.transform(fetchPlayerAsync(name), field(PROXY_FIELD), MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Gets when a player was last online without blocking, with the same values as {@link #getLastOnline(String)}.
+     */
+    public ListenableFuture<Long> getLastOnlineAsync(String name) {
+        if (plugin.getProxy().getPlayer(name) != null)
+            return Futures.immediateFuture(0L);
+
+        Long cached = lastOnlineCache.getIfPresent(name);
+        if (cached != null)
+            return Futures.immediateFuture(cached);
+
+        return Futures.transform(fetchPlayerAsync(name), new Function<List<String>, Long>() {
+            @Override
+            public Long apply(List<String> fields) {
+                return fields.get(ONLINE_FIELD) == null ? -1 : Long.valueOf(fields.get(ONLINE_FIELD));
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private static Function<List<String>, String> field(final int index) {
+        return new Function<List<String>, String>() {
+            @Override
+            public String apply(List<String> fields) {
+                return fields.get(index);
+            }
+        };
+    }
+
     private void invalidate(String uuid) {
         ipCache.invalidate(uuid);
         lastOnlineCache.invalidate(uuid);
@@ -153,16 +483,34 @@ public class DataManager implements Listener {
         proxyCache.invalidate(uuid);
     }
 
+    /**
+     * Drops everything cached, for when updates may have been missed.
+     */
+    void invalidateAll() {
+        serverCache.invalidateAll();
+        proxyCache.invalidateAll();
+        ipCache.invalidateAll();
+        lastOnlineCache.invalidateAll();
+    }
+
     @EventHandler
     public void onPostLogin(PostLoginEvent event) {
         // Invalidate all entries related to this player, since they now lie.
         invalidate(event.getPlayer().getName());
+        plugin.getNetworkState().playerJoined(event.getPlayer().getName(), RedisBungee.getConfiguration().getServerId(),
+                event.getPlayer().getAddress().getAddress());
     }
 
     @EventHandler
     public void onPlayerDisconnect(PlayerDisconnectEvent event) {
         // Invalidate all entries related to this player, since they now lie.
         invalidate(event.getPlayer().getName());
+        plugin.getNetworkState().playerLeft(event.getPlayer().getName());
+    }
+
+    @EventHandler
+    public void onServerConnected(ServerConnectedEvent event) {
+        plugin.getNetworkState().playerChangedServer(event.getPlayer().getName(), event.getServer().getInfo().getName());
     }
 
     @EventHandler
@@ -170,24 +518,30 @@ public class DataManager implements Listener {
         if (!event.getChannel().equals("redisbungee-data"))
             return;
 
-        // Partially deserialize the message so we can look at the action
-        JsonObject jsonObject = parser.parse(event.getMessage()).getAsJsonObject();
+        for (DataManagerMessage<?> message : DataMessageCodec.decode(event.getMessage())) {
+            handle(message);
+        }
+    }
 
-        String source = jsonObject.get("source").getAsString();
+    private void handle(DataManagerMessage<?> message) {
+        DataManagerMessage.Action action = message.getAction();
 
-        if (source.equals(RedisBungee.getConfiguration().getServerId()))
+        if (message.getSource().equals(RedisBungee.getConfiguration().getServerId())) {
+            // Our own players are tracked from local events, but we may have cleaned up players of a lagged proxy.
+            if (action == DataManagerMessage.Action.LEAVE)
+                plugin.getNetworkState().playerLeft(message.getTarget());
             return;
-
-        DataManagerMessage.Action action = DataManagerMessage.Action.valueOf(jsonObject.get("action").getAsString());
+        }
 
         switch (action) {
             case JOIN:
-                final DataManagerMessage<LoginPayload> message1 = RedisBungee.getGson().fromJson(jsonObject, new TypeToken<DataManagerMessage<LoginPayload>>() {
-                }.getType());
+                @SuppressWarnings("unchecked")
+                final DataManagerMessage<LoginPayload> message1 = (DataManagerMessage<LoginPayload>) message;
+                plugin.getNetworkState().playerJoined(message1.getTarget(), message1.getSource(), message1.getPayload().getAddress());
                 proxyCache.put(message1.getTarget(), message1.getSource());
                 lastOnlineCache.put(message1.getTarget(), (long) 0);
                 ipCache.put(message1.getTarget(), message1.getPayload().getAddress());
-                plugin.getProxy().getScheduler().runAsync(plugin, new Runnable() {
+                plugin.getDispatcher().dispatch(message1.getTarget(), new Runnable() {
                     @Override
                     public void run() {
                         plugin.getProxy().getPluginManager().callEvent(new PlayerJoinedNetworkEvent(message1.getTarget()));
@@ -195,11 +549,12 @@ public class DataManager implements Listener {
                 });
                 break;
             case LEAVE:
-                final DataManagerMessage<LogoutPayload> message2 = RedisBungee.getGson().fromJson(jsonObject, new TypeToken<DataManagerMessage<LogoutPayload>>() {
-                }.getType());
+                @SuppressWarnings("unchecked")
+                final DataManagerMessage<LogoutPayload> message2 = (DataManagerMessage<LogoutPayload>) message;
+                plugin.getNetworkState().playerLeft(message2.getTarget());
                 invalidate(message2.getTarget());
                 lastOnlineCache.put(message2.getTarget(), message2.getPayload().getTimestamp());
-                plugin.getProxy().getScheduler().runAsync(plugin, new Runnable() {
+                plugin.getDispatcher().dispatch(message2.getTarget(), new Runnable() {
                     @Override
                     public void run() {
                         plugin.getProxy().getPluginManager().callEvent(new PlayerLeftNetworkEvent(message2.getTarget()));
@@ -207,10 +562,11 @@ public class DataManager implements Listener {
                 });
                 break;
             case SERVER_CHANGE:
-                final DataManagerMessage<ServerChangePayload> message3 = RedisBungee.getGson().fromJson(jsonObject, new TypeToken<DataManagerMessage<ServerChangePayload>>() {
-                }.getType());
+                @SuppressWarnings("unchecked")
+                final DataManagerMessage<ServerChangePayload> message3 = (DataManagerMessage<ServerChangePayload>) message;
+                plugin.getNetworkState().playerChangedServer(message3.getTarget(), message3.getPayload().getServer());
                 final String oldServer = serverCache.put(message3.getTarget(), message3.getPayload().getServer());
-                plugin.getProxy().getScheduler().runAsync(plugin, new Runnable() {
+                plugin.getDispatcher().dispatch(message3.getTarget(), new Runnable() {
                     @Override
                     public void run() {
                         plugin.getProxy().getPluginManager().callEvent(new PlayerChangedServerNetworkEvent(message3.getTarget(), oldServer, message3.getPayload().getServer()));
@@ -224,10 +580,14 @@ public class DataManager implements Listener {
     @RequiredArgsConstructor
     static class DataManagerMessage<T> {
         private final String target;
-        private final String source = RedisBungee.getApi().getServerId();
+        private final String source;
         private final Action action; // for future use!
         private final T payload;
 
+        DataManagerMessage(String target, Action action, T payload) {
+            this(target, RedisBungee.getApi().getServerId(), action, payload);
+        }
+
         enum Action {
             JOIN,
             LEAVE,
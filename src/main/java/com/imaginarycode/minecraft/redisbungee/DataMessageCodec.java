@@ -0,0 +1,225 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteArrayDataInput;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * Encodes and decodes the messages sent on <code>redisbungee-data</code>.
+ * <p>
+ * Three wire formats exist. Version 1 is the original Gson JSON. Version 2 is a compact binary frame: a header with
+ * the protocol version, the action and the source proxy, followed by the target and a length-prefixed payload.
+ * Version 3 adds batch frames, which carry several version 2 frames in one message. Since Jedis delivers pub/sub
+ * messages as strings, binary frames are sent Base64 encoded behind {@link #BINARY_PREFIX}.
+ * <p>
+ * Every proxy advertises the highest version it understands in the <code>proxy-protocols</code> hash, and messages are
+ * only sent in a newer format once every live proxy understands it, so mixed versions keep working during a
+ * rolling upgrade. All formats are always accepted.
+ *
+ * @since 0.3.9
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+final class DataMessageCodec {
+    static final int PROTOCOL_JSON = 1;
+    static final int PROTOCOL_BINARY = 2;
+    static final int PROTOCOL_BATCH = 3;
+    static final int PROTOCOL_CURRENT = PROTOCOL_BATCH;
+    static final String PROTOCOLS_KEY = "proxy-protocols";
+
+    private static final char BINARY_PREFIX = '#';
+    private static final JsonParser PARSER = new JsonParser();
+    private static final BaseEncoding BASE64 = BaseEncoding.base64();
+    private static final DataManager.DataManagerMessage.Action[] ACTIONS = DataManager.DataManagerMessage.Action.values();
+
+    private static volatile int protocol = PROTOCOL_JSON;
+
+    static int getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * Picks the highest protocol understood by all of the given proxies. Proxies that have not advertised a protocol
+     * predate the binary format.
+     */
+    static void negotiate(Iterable<String> proxies, Map<String, String> advertised) {
+        int lowest = PROTOCOL_CURRENT;
+        for (String proxy : proxies) {
+            int version = PROTOCOL_JSON;
+            String value = advertised.get(proxy);
+            if (value != null) {
+                try {
+                    version = Integer.parseInt(value);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+            lowest = Math.min(lowest, version);
+        }
+        protocol = Math.max(lowest, PROTOCOL_JSON);
+    }
+
+    static String encode(DataManager.DataManagerMessage<?> message) {
+        if (protocol < PROTOCOL_BINARY)
+            return RedisBungee.getGson().toJson(message);
+
+        return BINARY_PREFIX + BASE64.encode(encodeFrame(message));
+    }
+
+    /**
+     * Encodes several messages as one batch frame. Only valid once {@link #getProtocol()} is at least
+     * {@link #PROTOCOL_BATCH}.
+     */
+    static String encodeBatch(List<DataManager.DataManagerMessage<?>> messages) {
+        Preconditions.checkState(protocol >= PROTOCOL_BATCH, "batches are not supported by every proxy");
+
+        ByteArrayDataOutput out = ByteStreams.newDataOutput();
+        out.writeByte(PROTOCOL_BATCH);
+        out.writeShort(messages.size());
+        for (DataManager.DataManagerMessage<?> message : messages) {
+            byte[] frame = encodeFrame(message);
+            out.writeShort(frame.length);
+            out.write(frame);
+        }
+
+        return BINARY_PREFIX + BASE64.encode(out.toByteArray());
+    }
+
+    private static byte[] encodeFrame(DataManager.DataManagerMessage<?> message) {
+        ByteArrayDataOutput payload = ByteStreams.newDataOutput();
+        switch (message.getAction()) {
+            case JOIN:
+                byte[] address = ((DataManager.LoginPayload) message.getPayload()).getAddress().getAddress();
+                payload.writeByte(address.length);
+                payload.write(address);
+                break;
+            case LEAVE:
+                payload.writeLong(((DataManager.LogoutPayload) message.getPayload()).getTimestamp());
+                break;
+            case SERVER_CHANGE:
+                payload.writeUTF(((DataManager.ServerChangePayload) message.getPayload()).getServer());
+                break;
+        }
+        byte[] payloadBytes = payload.toByteArray();
+
+        ByteArrayDataOutput out = ByteStreams.newDataOutput();
+        out.writeByte(PROTOCOL_BINARY);
+        out.writeByte(message.getAction().ordinal());
+        out.writeUTF(message.getSource());
+        out.writeUTF(message.getTarget());
+        out.writeShort(payloadBytes.length);
+        out.write(payloadBytes);
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a message in any of the supported formats. Batches decode to several messages, in the order they were
+     * sent.
+     *
+     * @throws IllegalArgumentException if the message is truncated or otherwise malformed
+     */
+    static List<DataManager.DataManagerMessage<?>> decode(String message) {
+        try {
+            if (!message.isEmpty() && message.charAt(0) == BINARY_PREFIX)
+                return decodeBinary(BASE64.decode(message.substring(1)));
+
+            return Collections.<DataManager.DataManagerMessage<?>>singletonList(decodeJson(message));
+        } catch (IllegalStateException | JsonParseException e) {
+            // Reading past the end of a frame, or JSON that isn't an object, ends up here.
+            throw new IllegalArgumentException("Malformed message", e);
+        }
+    }
+
+    private static DataManager.DataManagerMessage<?> decodeJson(String message) {
+        // Partially deserialize the message so we can look at the action
+        JsonObject jsonObject = PARSER.parse(message).getAsJsonObject();
+        DataManager.DataManagerMessage.Action action = DataManager.DataManagerMessage.Action.valueOf(jsonObject.get("action").getAsString());
+
+        switch (action) {
+            case JOIN:
+                return RedisBungee.getGson().fromJson(jsonObject, new TypeToken<DataManager.DataManagerMessage<DataManager.LoginPayload>>() {
+                }.getType());
+            case LEAVE:
+                return RedisBungee.getGson().fromJson(jsonObject, new TypeToken<DataManager.DataManagerMessage<DataManager.LogoutPayload>>() {
+                }.getType());
+            case SERVER_CHANGE:
+                return RedisBungee.getGson().fromJson(jsonObject, new TypeToken<DataManager.DataManagerMessage<DataManager.ServerChangePayload>>() {
+                }.getType());
+            default:
+                throw new IllegalArgumentException("Unknown action " + action);
+        }
+    }
+
+    private static List<DataManager.DataManagerMessage<?>> decodeBinary(byte[] data) {
+        if (data.length == 0)
+            throw new IllegalArgumentException("Empty message");
+
+        int version = data[0] & 0xFF;
+        if (version == PROTOCOL_BINARY)
+            return Collections.<DataManager.DataManagerMessage<?>>singletonList(decodeFrame(data));
+        if (version != PROTOCOL_BATCH)
+            throw new IllegalArgumentException("Unsupported protocol version " + version);
+
+        ByteArrayDataInput in = ByteStreams.newDataInput(data, 1);
+        int count = in.readUnsignedShort();
+        List<DataManager.DataManagerMessage<?>> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] frame = new byte[in.readUnsignedShort()];
+            in.readFully(frame);
+            messages.add(decodeFrame(frame));
+        }
+        return messages;
+    }
+
+    private static DataManager.DataManagerMessage<?> decodeFrame(byte[] frame) {
+        ByteArrayDataInput in = ByteStreams.newDataInput(frame);
+
+        int version = in.readUnsignedByte();
+        if (version != PROTOCOL_BINARY)
+            throw new IllegalArgumentException("Unsupported frame version " + version);
+
+        int actionId = in.readUnsignedByte();
+        if (actionId >= ACTIONS.length)
+            throw new IllegalArgumentException("Unknown action " + actionId);
+
+        DataManager.DataManagerMessage.Action action = ACTIONS[actionId];
+        String source = in.readUTF();
+        String target = in.readUTF();
+
+        byte[] payloadBytes = new byte[in.readUnsignedShort()];
+        in.readFully(payloadBytes);
+        ByteArrayDataInput payload = ByteStreams.newDataInput(payloadBytes);
+
+        switch (action) {
+            case JOIN:
+                byte[] address = new byte[payload.readUnsignedByte()];
+                payload.readFully(address);
+                try {
+                    return new DataManager.DataManagerMessage<>(target, source, action, new DataManager.LoginPayload(InetAddress.getByAddress(address)));
+                } catch (UnknownHostException e) {
+                    throw new IllegalArgumentException("Invalid address in message", e);
+                }
+            case LEAVE:
+                return new DataManager.DataManagerMessage<>(target, source, action, new DataManager.LogoutPayload(payload.readLong()));
+            case SERVER_CHANGE:
+                return new DataManager.DataManagerMessage<>(target, source, action, new DataManager.ServerChangePayload(payload.readUTF()));
+            default:
+                throw new IllegalArgumentException("Unknown action " + action);
+        }
+    }
+}
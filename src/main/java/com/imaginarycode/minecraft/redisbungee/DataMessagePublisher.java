@@ -0,0 +1,169 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import com.google.common.collect.Lists;
+import com.imaginarycode.minecraft.redisbungee.util.RedisCallable;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Publishes messages to <code>redisbungee-data</code>, coalescing the messages produced within a short window into
+ * a single batch frame.
+ * <p>
+ * Batching is only used once every proxy understands {@link DataMessageCodec#PROTOCOL_BATCH} and a window is
+ * configured. Otherwise messages are published right away on the connection or pipeline of the caller, as before.
+ *
+ * @since 0.3.9
+ */
+class DataMessagePublisher {
+    private final RedisBungee plugin;
+    private final JedisPool pool;
+    private final Logger logger;
+    private final long window;
+    private final int maxMessages;
+    private final ScheduledExecutorService executor;
+    private final Object lock = new Object();
+    private List<DataManager.DataManagerMessage<?>> pending = new ArrayList<>();
+
+    DataMessagePublisher(RedisBungee plugin, long window, int maxMessages) {
+        this(plugin, plugin.getPool(), plugin.getLogger(), window, maxMessages);
+    }
+
+    /**
+     * @param plugin schedules {@link #publish(DataManager.DataManagerMessage)}, and may be null if that is never
+     *               called: every other method publishes on the given connection or the pool
+     */
+    DataMessagePublisher(RedisBungee plugin, JedisPool pool, Logger logger, long window, int maxMessages) {
+        this.plugin = plugin;
+        this.pool = pool;
+        this.logger = logger;
+        this.window = window;
+        // Batch frames store their size in an unsigned short.
+        this.maxMessages = Math.max(1, Math.min(maxMessages, 0xFFFF));
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("RedisBungee Publisher").setDaemon(true).build());
+    }
+
+    private boolean isBatching() {
+        return window > 0 && DataMessageCodec.getProtocol() >= DataMessageCodec.PROTOCOL_BATCH && !executor.isShutdown();
+    }
+
+    void publish(final DataManager.DataManagerMessage<?> message) {
+        if (!enqueue(message)) {
+            plugin.getProxy().getScheduler().runAsync(plugin, new RedisCallable<Void>(plugin, pool, "publish of " + message.getTarget()) {
+                @Override
+                protected Void call(Jedis jedis) {
+                    jedis.publish("redisbungee-data", DataMessageCodec.encode(message));
+                    return null;
+                }
+            });
+        }
+    }
+
+    void publish(DataManager.DataManagerMessage<?> message, Jedis jedis) {
+        if (!enqueue(message))
+            jedis.publish("redisbungee-data", DataMessageCodec.encode(message));
+    }
+
+    void publish(DataManager.DataManagerMessage<?> message, Pipeline pipeline) {
+        if (!enqueue(message))
+            pipeline.publish("redisbungee-data", DataMessageCodec.encode(message));
+    }
+
+    /**
+     * Publishes many messages right away, as batches if every proxy understands them.
+     */
+    void publishAll(List<DataManager.DataManagerMessage<?>> messages, Jedis jedis) {
+        Pipeline pipeline = jedis.pipelined();
+        publishAll(messages, pipeline);
+        pipeline.sync();
+    }
+
+    private void publishAll(List<DataManager.DataManagerMessage<?>> messages, Pipeline pipeline) {
+        // A proxy without batch support may have joined while these were waiting.
+        boolean batches = DataMessageCodec.getProtocol() >= DataMessageCodec.PROTOCOL_BATCH;
+
+        for (List<DataManager.DataManagerMessage<?>> chunk : Lists.partition(messages, maxMessages)) {
+            if (batches && chunk.size() > 1) {
+                pipeline.publish("redisbungee-data", DataMessageCodec.encodeBatch(chunk));
+            } else {
+                for (DataManager.DataManagerMessage<?> message : chunk) {
+                    pipeline.publish("redisbungee-data", DataMessageCodec.encode(message));
+                }
+            }
+        }
+    }
+
+    private boolean enqueue(DataManager.DataManagerMessage<?> message) {
+        if (!isBatching())
+            return false;
+
+        boolean first;
+        boolean full;
+        synchronized (lock) {
+            pending.add(message);
+            first = pending.size() == 1;
+            full = pending.size() >= maxMessages;
+        }
+
+        try {
+            if (full) {
+                executor.execute(new FlushTask());
+            } else if (first) {
+                executor.schedule(new FlushTask(), window, TimeUnit.MILLISECONDS);
+            }
+        } catch (RejectedExecutionException e) {
+            // We were shut down after checking. Unless the final flush already took the message, the caller has to
+            // publish it instead.
+            synchronized (lock) {
+                return !pending.remove(message);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Publishes anything still waiting and stops the publisher thread.
+     */
+    void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        new FlushTask().run();
+    }
+
+    private class FlushTask implements Runnable {
+        @Override
+        public void run() {
+            List<DataManager.DataManagerMessage<?>> messages;
+            synchronized (lock) {
+                if (pending.isEmpty())
+                    return;
+                messages = pending;
+                pending = new ArrayList<>();
+            }
+
+            try (Jedis jedis = pool.getResource()) {
+                publishAll(messages, jedis);
+            } catch (JedisConnectionException e) {
+                logger.log(Level.SEVERE, "Unable to publish " + messages.size() + " network events - did your Redis server go away?", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+import lombok.Getter;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+/**
+ * Makes sure that the players Redis thinks are on this proxy match the players that actually are.
+ * <p>
+ * Rather than reading the whole set at once, each run walks a slice of it with <code>SSCAN</code>, so a full pass is
+ * spread over {@link #RUNS_PER_PASS} runs. Players in Redis but not on this proxy are only acted on if they are still
+ * missing on the next run, which keeps players in the middle of logging in from being cleaned up. Membership checks
+ * are done server-side in Lua and all fixes are pipelined. When the keyspace is sharded, the walk goes through this
+ * proxy's set in every shard in turn.
+ * <p>
+ * Work that concerns the whole network, cleaning up dead proxies, recounting players and pruning the sets of players on
+ * each server, is only done by the
+ * {@link LeaderElection maintenance leader}.
+ *
+ * @since 0.3.9
+ */
+class IntegrityCheck implements Runnable {
+    static final int RUNS_PER_PASS = 12;
+    private static final int MINIMUM_SCAN_COUNT = 100;
+    private static final int PRUNE_SCAN_COUNT = 1000;
+
+    private final RedisBungee plugin;
+    private int shard = 0;
+    private String cursor = ScanParams.SCAN_POINTER_START;
+    private boolean scanning = false;
+    private List<String> suspects = Collections.emptyList();
+    private int fixed = 0;
+    /**
+     * The number of discrepancies fixed during the last completed pass.
+     */
+    @Getter
+    private volatile int lastFixed = 0;
+
+    IntegrityCheck(RedisBungee plugin) {
+        this.plugin = plugin;
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (!scanning) {
+                scanning = true;
+                fixed = 0;
+            }
+
+            // Cheap enough to do every run, which keeps the time until a dead proxy's players are gone short.
+            if (plugin.getLeaderElection().isLeader())
+                cleanUpLaggedProxies();
+
+            checkSuspects();
+
+            if (scan()) {
+                finishPass();
+                scanning = false;
+                lastFixed = fixed;
+                if (fixed > 0)
+                    plugin.getLogger().info("Integrity check fixed " + fixed + " discrepancies.");
+            }
+        } catch (JedisConnectionException e) {
+            plugin.getLogger().log(Level.SEVERE, "Unable to run the integrity check - did your Redis server go away?", e);
+        }
+    }
+
+    private String getLocalKey(int shard) {
+        return RedisBungee.getKeyspace().getProxyPlayersKey(RedisBungee.getConfiguration().getServerId(), shard);
+    }
+
+    private void cleanUpLaggedProxies() {
+        for (String proxy : plugin.getCurrentServerIds(false, true)) {
+            int cleaned = RedisUtil.cleanUpProxy(proxy, plugin.getLeaderElection().getToken());
+            if (cleaned > 0) {
+                plugin.getLogger().info("Cleaned up lagged proxy " + proxy + " (" + cleaned + " players).");
+                fixed += cleaned;
+            }
+        }
+    }
+
+    /**
+     * Walks the next slice of this proxy's sets, moving on to the next shard when one is done.
+     *
+     * @return true if the walk has gone through every shard and the pass is complete
+     */
+    private boolean scan() {
+        Keyspace keyspace = RedisBungee.getKeyspace();
+        int budget = Math.max(MINIMUM_SCAN_COUNT, plugin.getProxy().getOnlineCount() / RUNS_PER_PASS);
+        List<String> missing = new ArrayList<>();
+        boolean complete = false;
+
+        while (budget > 0) {
+            ScanResult<String> result;
+            try (Jedis jedis = keyspace.getPool(shard).getResource()) {
+                result = jedis.sscan(getLocalKey(shard), cursor, new ScanParams().count(budget));
+            }
+            cursor = result.getStringCursor();
+            budget -= Math.max(1, result.getResult().size());
+
+            for (String player : result.getResult()) {
+                if (plugin.getProxy().getPlayer(player) == null)
+                    missing.add(player);
+            }
+
+            if (cursor.equals(ScanParams.SCAN_POINTER_START)) {
+                shard = (shard + 1) % keyspace.getShards();
+                if (shard == 0) {
+                    complete = true;
+                    break;
+                }
+            }
+        }
+
+        suspects = missing;
+        return complete;
+    }
+
+    private void checkSuspects() {
+        Keyspace keyspace = RedisBungee.getKeyspace();
+        Map<Integer, List<String>> confirmed = new HashMap<>();
+        for (String player : suspects) {
+            if (plugin.getProxy().getPlayer(player) == null) {
+                int playerShard = keyspace.getShard(player);
+                List<String> list = confirmed.get(playerShard);
+                if (list == null)
+                    confirmed.put(playerShard, list = new ArrayList<>());
+                list.add(player);
+            }
+        }
+        suspects = Collections.emptyList();
+
+        for (Map.Entry<Integer, List<String>> entry : confirmed.entrySet()) {
+            try (Jedis jedis = keyspace.getPool(entry.getKey()).getResource()) {
+                checkSuspects(entry.getKey(), entry.getValue(), jedis);
+            }
+        }
+    }
+
+    private void checkSuspects(int shard, List<String> confirmed, Jedis jedis) {
+        List<String> keys = new ArrayList<>();
+        List<String> others = new ArrayList<>();
+        keys.add(getLocalKey(shard));
+        for (String proxy : plugin.getServerIds()) {
+            if (proxy.equals(RedisBungee.getConfiguration().getServerId()))
+                continue;
+            keys.add(RedisBungee.getKeyspace().getProxyPlayersKey(proxy, shard));
+            others.add(proxy);
+        }
+
+        @SuppressWarnings("unchecked")
+        List<Long> owners = (List<Long>) RedisBungee.getFindPlayersScript().eval(jedis, keys, confirmed);
+
+        List<String> gone = new ArrayList<>();
+        Pipeline pipeline = jedis.pipelined();
+        for (int i = 0; i < confirmed.size(); i++) {
+            String player = confirmed.get(i);
+            int owner = owners.get(i).intValue();
+
+            if (owner < 0) {
+                // They left while we were looking.
+                continue;
+            }
+
+            if (owner == 0) {
+                gone.add(player);
+                plugin.getLogger().warning("Player found in set that was not found locally and globally: " + player);
+            } else {
+                pipeline.srem(getLocalKey(shard), player);
+                plugin.getLogger().warning("Player found in set that was not found locally, but is on another proxy (" + others.get(owner - 1) + "): " + player);
+            }
+            fixed++;
+        }
+        pipeline.sync();
+
+        for (String player : gone) {
+            RedisUtil.cleanUpPlayer(player, null, jedis);
+        }
+    }
+
+    private void finishPass() {
+        Keyspace keyspace = RedisBungee.getKeyspace();
+        for (Map.Entry<JedisPool, List<String>> entry : keyspace.getPlayersByPool(plugin.getLocalPlayersAsStringStrings()).entrySet()) {
+            try (Jedis jedis = entry.getKey().getResource()) {
+                finishPass(entry.getValue(), jedis);
+            }
+        }
+
+        if (plugin.getLeaderElection().isLeader()) {
+            if (plugin.correctPlayerCount())
+                fixed++;
+            pruneServerSets();
+        }
+    }
+
+    /**
+     * Removes players who are no longer on a server from its set. Nobody else would: a server change recorded after
+     * its player left leaves them in the set, and every proxy only adds its own players.
+     */
+    private void pruneServerSets() {
+        Keyspace keyspace = RedisBungee.getKeyspace();
+        for (Map.Entry<JedisPool, List<Integer>> entry : keyspace.getShardsByPool().entrySet()) {
+            try (Jedis jedis = entry.getKey().getResource()) {
+                for (int shard : entry.getValue()) {
+                    for (String server : plugin.getProxy().getServers().keySet()) {
+                        fixed += pruneServerSet(server, shard, jedis);
+                    }
+                }
+            }
+        }
+    }
+
+    private int pruneServerSet(String server, int shard, Jedis jedis) {
+        Keyspace keyspace = RedisBungee.getKeyspace();
+        String key = keyspace.getServerPlayersKey(server, shard);
+        String cursor = ScanParams.SCAN_POINTER_START;
+        int removed = 0;
+
+        do {
+            ScanResult<String> result = jedis.sscan(key, cursor, new ScanParams().count(PRUNE_SCAN_COUNT));
+            cursor = result.getStringCursor();
+            if (result.getResult().isEmpty())
+                continue;
+
+            List<String> keys = new ArrayList<>(result.getResult().size() + 1);
+            List<String> args = new ArrayList<>(result.getResult().size() + 1);
+            keys.add(key);
+            args.add(server);
+            for (String player : result.getResult()) {
+                keys.add(keyspace.getPlayerKey(player));
+                args.add(player);
+            }
+            removed += ((Long) RedisBungee.getPruneServerPlayersScript().eval(jedis, keys, args)).intValue();
+        } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+
+        if (removed > 0)
+            plugin.getLogger().warning("Removed " + removed + " players who are no longer on " + server + " from its set.");
+        return removed;
+    }
+
+    private void finishPass(List<String> local, Jedis jedis) {
+        Keyspace keyspace = RedisBungee.getKeyspace();
+        Map<Integer, List<String>> byShard = new HashMap<>();
+        for (String player : local) {
+            int playerShard = keyspace.getShard(player);
+            List<String> list = byShard.get(playerShard);
+            if (list == null)
+                byShard.put(playerShard, list = new ArrayList<>());
+            list.add(player);
+        }
+
+        List<String> missing = new ArrayList<>();
+        for (Map.Entry<Integer, List<String>> entry : byShard.entrySet()) {
+            @SuppressWarnings("unchecked")
+            List<String> shardMissing = (List<String>) RedisBungee.getMissingMembersScript().eval(jedis,
+                    Collections.singletonList(getLocalKey(entry.getKey())), entry.getValue());
+            missing.addAll(shardMissing);
+        }
+
+        List<ProxiedPlayer> created = new ArrayList<>();
+        Pipeline pipeline = jedis.pipelined();
+        for (String player : missing) {
+            // Player online according to BungeeCord but not Redis.
+            ProxiedPlayer proxiedPlayer = plugin.getProxy().getPlayer(player);
+            if (proxiedPlayer == null)
+                continue; // We'll deal with it later.
+
+            plugin.getLogger().warning("Player " + player + " is on the proxy but not in Redis.");
+            RedisUtil.createPlayer(proxiedPlayer.getPendingConnection(), pipeline, true);
+            created.add(proxiedPlayer);
+            fixed++;
+        }
+
+        for (String name : local) {
+            // Make sure the per-server index knows about them, too.
+            ProxiedPlayer player = plugin.getProxy().getPlayer(name);
+            if (player != null && player.getServer() != null)
+                pipeline.sadd(keyspace.getServerPlayersKey(player.getServer().getInfo().getName(), keyspace.getShard(name)), name);
+        }
+        pipeline.sync();
+
+        for (ProxiedPlayer player : created) {
+            if (player.getServer() != null)
+                RedisUtil.setServer(player.getName(), player.getServer().getInfo().getName(), null, jedis);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisClusterInfoCache;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.util.JedisClusterCRC16;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+/**
+ * Knows the name of every key RedisBungee uses, and which Redis node it lives on.
+ * <p>
+ * With a single shard, the default, the keys are named as they always were and everything lives on the configured
+ * Redis server. With more shards, each player belongs to the shard picked by the CRC16 of their name, and every key
+ * holding data about players carries its shard as a hash tag, such as <code>player:{3}:Notch</code> or
+ * <code>proxy:{3}:test1:usersOnline</code>. Everything a script changes for one player is then in one hash slot, and
+ * network-wide lookups are done shard by shard and merged. Keys about the network as a whole share the
+ * <code>{global}</code> tag.
+ * <p>
+ * On Redis Cluster, each shard is read from and written to the node that owns its hash slot. Otherwise, reads that
+ * can be slightly out of date may be sent to {@link ReadReplicas replicas} of the configured server.
+ *
+ * @since 0.3.9
+ */
+@VisibleForTesting
+public class Keyspace {
+    private static final String SERVER_SUFFIX = ":usersOnline";
+    private static final String GLOBAL_TAG = "{global}";
+
+    private final int shards;
+    private final JedisPool pool;
+    private final JedisClusterInfoCache cluster;
+    private final ReadReplicas replicas;
+
+    @VisibleForTesting
+    public Keyspace(int shards, JedisPool pool) {
+        this(shards, pool, null, null);
+    }
+
+    Keyspace(int shards, JedisPool pool, JedisClusterInfoCache cluster, ReadReplicas replicas) {
+        Preconditions.checkArgument(shards > 0, "there must be at least one shard");
+        Preconditions.checkArgument(cluster == null || shards > 1, "Redis Cluster needs at least two shards");
+        Preconditions.checkArgument(cluster == null || replicas == null, "replicas can't be used with Redis Cluster");
+        this.shards = shards;
+        this.pool = pool;
+        this.cluster = cluster;
+        this.replicas = replicas;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    public boolean isSharded() {
+        return shards > 1;
+    }
+
+    boolean isClustered() {
+        return cluster != null;
+    }
+
+    public int getShard(String player) {
+        return shards == 1 ? 0 : JedisClusterCRC16.getCRC16(player) % shards;
+    }
+
+    public String getPlayerKey(String player) {
+        return getPlayerPrefix(getShard(player)) + player;
+    }
+
+    /**
+     * Get what the hash of every player in a shard is named with, followed by the name of the player.
+     */
+    private String getPlayerPrefix(int shard) {
+        return "player:" + tag(shard);
+    }
+
+    public String getProxyPlayersKey(String proxy, int shard) {
+        return "proxy:" + tag(shard) + proxy + ":usersOnline";
+    }
+
+    public List<String> getProxyPlayersKeys(Collection<String> proxies, int shard) {
+        List<String> keys = new ArrayList<>(proxies.size());
+        for (String proxy : proxies) {
+            keys.add(getProxyPlayersKey(proxy, shard));
+        }
+        return keys;
+    }
+
+    /**
+     * Get what the per-server set of players in a shard is named with, followed by the server and
+     * {@link #SERVER_SUFFIX}.
+     */
+    private String getServerPrefix(int shard) {
+        return "server:" + tag(shard);
+    }
+
+    public String getServerPlayersKey(String server, int shard) {
+        return getServerPrefix(shard) + server + SERVER_SUFFIX;
+    }
+
+    public String getPlayerCountKey(int shard) {
+        return isSharded() ? RedisUtil.PLAYER_COUNT_KEY + ":{" + shard + "}" : RedisUtil.PLAYER_COUNT_KEY;
+    }
+
+    /**
+     * Get the name of a key about the network as a whole.
+     */
+    public String getGlobalKey(String name) {
+        return isSharded() ? name + ":" + GLOBAL_TAG : name;
+    }
+
+    /**
+     * The reverse of {@link #getGlobalKey(String)}.
+     *
+     * @return the name the key was made from, or null if it is not a global key
+     */
+    public String fromGlobalKey(String key) {
+        if (!isSharded())
+            return key;
+        String suffix = ":" + GLOBAL_TAG;
+        return key.endsWith(suffix) ? key.substring(0, key.length() - suffix.length()) : null;
+    }
+
+    private String tag(int shard) {
+        return isSharded() ? "{" + shard + "}:" : "";
+    }
+
+    JedisPool getPool(int shard) {
+        return cluster == null ? pool : slotPool("{" + shard + "}");
+    }
+
+    JedisPool getPlayerPool(String player) {
+        return getPool(getShard(player));
+    }
+
+    JedisPool getGlobalPool() {
+        return cluster == null ? pool : slotPool(GLOBAL_TAG);
+    }
+
+    ReadReplicas getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * Borrows a connection for a read that may be slightly out of date, from a healthy replica of the node behind
+     * the given pool if there is one, and from that node otherwise. Writes must never use this.
+     */
+    Jedis getReadResource(JedisPool primary) {
+        if (replicas != null && primary == pool) {
+            JedisPool replica = replicas.getPool();
+            if (replica != null) {
+                try {
+                    return replica.getResource();
+                } catch (JedisConnectionException e) {
+                    replicas.failed(replica, e);
+                }
+            }
+        }
+        return primary.getResource();
+    }
+
+    /**
+     * Groups the shards by the node they live on, so that a lookup across all of them needs one connection and one
+     * round-trip per node.
+     */
+    Map<JedisPool, List<Integer>> getShardsByPool() {
+        Map<JedisPool, List<Integer>> grouped = new LinkedHashMap<>();
+        for (int shard = 0; shard < shards; shard++) {
+            JedisPool shardPool = getPool(shard);
+            List<Integer> list = grouped.get(shardPool);
+            if (list == null)
+                grouped.put(shardPool, list = new ArrayList<>());
+            list.add(shard);
+        }
+        return grouped;
+    }
+
+    /**
+     * Groups players by the node their shard lives on.
+     */
+    Map<JedisPool, List<String>> getPlayersByPool(Collection<String> players) {
+        Map<JedisPool, List<String>> grouped = new LinkedHashMap<>();
+        for (String player : players) {
+            JedisPool playerPool = getPlayerPool(player);
+            List<String> list = grouped.get(playerPool);
+            if (list == null)
+                grouped.put(playerPool, list = new ArrayList<>());
+            list.add(player);
+        }
+        return grouped;
+    }
+
+    /**
+     * Asks the cluster which node owns which slots again, after slots have been moved.
+     */
+    void refresh() {
+        if (cluster == null)
+            return;
+        try (Jedis jedis = pool.getResource()) {
+            cluster.discoverClusterSlots(jedis);
+        }
+    }
+
+    void close() {
+        if (replicas != null)
+            replicas.close();
+        if (cluster == null)
+            return;
+        for (JedisPool node : cluster.getNodes().values()) {
+            node.destroy();
+        }
+    }
+
+    private JedisPool slotPool(String tag) {
+        JedisPool slotPool = cluster.getSlotPool(JedisClusterCRC16.getSlot(tag));
+        if (slotPool == null) {
+            // The slot is being moved; ask again and hope for the best.
+            refresh();
+            slotPool = cluster.getSlotPool(JedisClusterCRC16.getSlot(tag));
+        }
+        return slotPool != null ? slotPool : pool;
+    }
+}
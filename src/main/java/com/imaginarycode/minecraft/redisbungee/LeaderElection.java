@@ -0,0 +1,87 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Elects one proxy to do the maintenance that only needs doing once for the whole network, such as cleaning up
+ * after dead proxies and correcting the player count.
+ * <p>
+ * The leader holds a lease in Redis, taken with <code>SET NX PX</code> and renewed on every heartbeat. If it stops
+ * renewing, the lease lapses and the next proxy to try takes over. Each new lease comes with a higher fencing token,
+ * which maintenance scripts check so that a leader that lost its lease without noticing can't do any damage.
+ *
+ * @since 0.3.9
+ */
+class LeaderElection {
+    static final String LEADER_KEY = "maintenance-leader";
+    static final String TOKEN_KEY = "maintenance-token";
+    static final long LEASE = TimeUnit.SECONDS.toMillis(10);
+
+    private final RedisBungee plugin;
+    private volatile long token = 0;
+
+    LeaderElection(RedisBungee plugin) {
+        this.plugin = plugin;
+    }
+
+    boolean isLeader() {
+        return token != 0;
+    }
+
+    /**
+     * Get the fencing token of our lease.
+     *
+     * @return the token, or 0 if this proxy is not the leader
+     */
+    long getToken() {
+        return token;
+    }
+
+    /**
+     * Takes the lease if it is free, or renews it if we already hold it.
+     */
+    void update(Jedis jedis) {
+        Keyspace keyspace = RedisBungee.getKeyspace();
+        long acquired;
+        try {
+            acquired = (Long) RedisBungee.getAcquireLeaseScript().eval(jedis,
+                    ImmutableList.of(keyspace.getGlobalKey(LEADER_KEY), keyspace.getGlobalKey(TOKEN_KEY)),
+                    ImmutableList.of(RedisBungee.getConfiguration().getServerId(), String.valueOf(LEASE)));
+        } catch (JedisConnectionException e) {
+            // Assume the worst: the lease will lapse before we can renew it.
+            token = 0;
+            throw e;
+        }
+
+        if (acquired != 0 && token == 0) {
+            plugin.getLogger().info("This proxy is now doing network maintenance (token " + acquired + ").");
+        } else if (acquired == 0 && token != 0) {
+            plugin.getLogger().info("This proxy is no longer doing network maintenance.");
+        }
+        token = acquired;
+    }
+
+    /**
+     * Gives up the lease, so another proxy can take over right away.
+     */
+    void release() {
+        if (token == 0)
+            return;
+
+        token = 0;
+        Keyspace keyspace = RedisBungee.getKeyspace();
+        try (Jedis jedis = keyspace.getGlobalPool().getResource()) {
+            RedisBungee.getReleaseLeaseScript().eval(jedis, Collections.singletonList(keyspace.getGlobalKey(LEADER_KEY)),
+                    Collections.singletonList(RedisBungee.getConfiguration().getServerId()));
+        } catch (JedisConnectionException e) {
+            plugin.getLogger().log(Level.WARNING, "Unable to give up the maintenance lease, it will expire on its own", e);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.imaginarycode.minecraft.redisbungee.util.Metrics;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves the plugin's {@link Metrics} over HTTP at <code>/metrics</code>, for Prometheus to scrape.
+ */
+class MetricsEndpoint {
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    MetricsEndpoint(final Metrics metrics, String address, int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    if (!exchange.getRequestMethod().equals("GET")) {
+                        exchange.sendResponseHeaders(405, -1);
+                        return;
+                    }
+                    byte[] body = metrics.toPrometheus().getBytes(Charsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        // Scrapes are rare, so one thread is plenty and keeps them away from the proxy's own threads.
+        executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("RedisBungee Metrics")
+                .setDaemon(true).build());
+        server.setExecutor(executor);
+    }
+
+    void start() {
+        server.start();
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multimap;
+import com.google.common.net.InetAddresses;
+
+/**
+ * This class keeps an in-memory replica of every player on the network, so that network-wide lookups do not
+ * need a Redis round-trip.
+ * <p>
+ * The replica is bootstrapped with one snapshot taken from Redis, kept up to date from local events and the
+ * messages {@link DataManager} receives on <code>redisbungee-data</code>, and reconciled against Redis periodically
+ * to correct anything that was missed.
+ *
+ * @since 0.3.9
+ */
+class NetworkState {
+    private static final int SCAN_COUNT = 1000;
+
+    private final Keyspace keyspace;
+    private final Logger logger;
+    private final Supplier<List<String>> proxies;
+    private final Supplier<Set<String>> servers;
+    private final ConcurrentMap<String, PlayerEntry> players = new ConcurrentHashMap<>(256, 0.75f, 4);
+    private final AtomicInteger count = new AtomicInteger();
+    private final AtomicLong version = new AtomicLong();
+    private volatile Views views = null;
+
+    NetworkState(final RedisBungee plugin) {
+        this(RedisBungee.getKeyspace(), plugin.getLogger(), new Supplier<List<String>>() {
+            @Override
+            public List<String> get() {
+                return plugin.getServerIds();
+            }
+        }, new Supplier<Set<String>>() {
+            @Override
+            public Set<String> get() {
+                return plugin.getProxy().getServers().keySet();
+            }
+        });
+    }
+
+    /**
+     * @param proxies gets the proxies that are alive
+     * @param servers gets the servers this proxy knows of
+     */
+    NetworkState(Keyspace keyspace, Logger logger, Supplier<List<String>> proxies, Supplier<Set<String>> servers) {
+        this.keyspace = keyspace;
+        this.logger = logger;
+        this.proxies = proxies;
+        this.servers = servers;
+    }
+
+    void playerJoined(String player, String proxy, InetAddress address) {
+        long now = System.currentTimeMillis();
+        if (players.put(player, new PlayerEntry(proxy, null, address, now, now)) == null)
+            count.incrementAndGet();
+        version.incrementAndGet();
+    }
+
+    void playerLeft(String player) {
+        if (players.remove(player) != null) {
+            count.decrementAndGet();
+            version.incrementAndGet();
+        }
+    }
+
+    /**
+     * Moves a player we know of to another server. Players we don't know of are left for the next snapshot: the change
+     * may be one that arrived after the player left, and adding them would bring them back.
+     */
+    void playerChangedServer(String player, String server) {
+        long now = System.currentTimeMillis();
+
+        while (true) {
+            PlayerEntry old = players.get(player);
+            if (old == null)
+                return;
+            if (players.replace(player, old, new PlayerEntry(old.getProxy(), server, old.getAddress(), old.getJoined(), now)))
+                break;
+        }
+
+        version.incrementAndGet();
+    }
+
+    PlayerEntry getPlayer(String player) {
+        return players.get(player);
+    }
+
+    int getCount() {
+        return count.get();
+    }
+
+    Set<String> getPlayers() {
+        return getViews().players;
+    }
+
+    Multimap<String, String> getServerToPlayers() {
+        return getViews().serverToPlayers;
+    }
+
+    Set<String> getPlayersOnServer(String server) {
+        return ImmutableSet.copyOf(getViews().serverToPlayers.get(server));
+    }
+
+    int getCountOnServer(String server) {
+        return getViews().serverToPlayers.get(server).size();
+    }
+
+    private Views getViews() {
+        Views current = views;
+        long currentVersion = version.get();
+
+        if (current != null && current.version == currentVersion)
+            return current;
+
+        ImmutableSet.Builder<String> playerBuilder = ImmutableSet.builder();
+        ImmutableMultimap.Builder<String, String> serverBuilder = ImmutableMultimap.builder();
+
+        for (Map.Entry<String, PlayerEntry> entry : players.entrySet()) {
+            playerBuilder.add(entry.getKey());
+            if (entry.getValue().getServer() != null)
+                serverBuilder.put(entry.getValue().getServer(), entry.getKey());
+        }
+
+        // If something changed while we were building, the version check above will rebuild next time.
+        current = new Views(currentVersion, playerBuilder.build(), serverBuilder.build());
+        views = current;
+        return current;
+    }
+
+    /**
+     * Takes a snapshot of the network from Redis and merges it into the replica. Entries updated after the
+     * snapshot was started are left alone, since they are newer than what Redis told us.
+     */
+    void reconcile() {
+        long started = System.currentTimeMillis();
+        Map<String, PlayerEntry> snapshot = new HashMap<>();
+        Long stored;
+
+        try {
+            stored = fetchSnapshot(started, snapshot);
+        } catch (JedisConnectionException e) {
+            logger.log(Level.SEVERE, "Unable to reconcile the network state - did your Redis server go away?", e);
+            return;
+        }
+
+        for (Map.Entry<String, PlayerEntry> entry : players.entrySet()) {
+            if (entry.getValue().getUpdated() < started && !snapshot.containsKey(entry.getKey()) && players.remove(entry.getKey(), entry.getValue()))
+                count.decrementAndGet();
+        }
+
+        for (Map.Entry<String, PlayerEntry> entry : snapshot.entrySet()) {
+            PlayerEntry existing = players.get(entry.getKey());
+            if (existing == null) {
+                if (players.putIfAbsent(entry.getKey(), entry.getValue()) == null)
+                    count.incrementAndGet();
+            } else if (existing.getUpdated() < started) {
+                PlayerEntry fresh = entry.getValue();
+                players.replace(entry.getKey(), existing, new PlayerEntry(fresh.getProxy(), fresh.getServer(),
+                        fresh.getAddress() == null ? existing.getAddress() : fresh.getAddress(), existing.getJoined(), started));
+            }
+        }
+
+        // The count follows JOIN and LEAVE messages in between, and is set back to the one the scripts keep in Redis
+        // here. Anything that arrived while the snapshot was taken is only counted again next time.
+        if (stored != null)
+            count.set((int) (long) stored);
+
+        version.incrementAndGet();
+    }
+
+    /**
+     * Fills in the snapshot with every player in Redis.
+     * <p>
+     * Who is on each proxy and server is read from their sets, a page at a time so that large sets don't hold up
+     * Redis. Only the players this replica has no address for, or whose server could not be told from the sets, are
+     * looked up one by one, so a network that is already known costs a handful of commands per set.
+     *
+     * @return the player count the scripts keep in Redis, or null if it is missing from any shard
+     */
+    private Long fetchSnapshot(long now, Map<String, PlayerEntry> snapshot) {
+        List<String> proxies = this.proxies.get();
+        // Servers only other proxies have are known from the players seen on them.
+        Set<String> servers = new HashSet<>(this.servers.get());
+        servers.addAll(getViews().serverToPlayers.keySet());
+        Long stored = 0L;
+
+        for (Map.Entry<JedisPool, List<Integer>> entry : keyspace.getShardsByPool().entrySet()) {
+            try (Jedis jedis = entry.getKey().getResource()) {
+                Pipeline pipeline = jedis.pipelined();
+                List<Response<String>> counts = new ArrayList<>();
+                for (int shard : entry.getValue()) {
+                    counts.add(pipeline.get(keyspace.getPlayerCountKey(shard)));
+                }
+                pipeline.sync();
+
+                for (Response<String> shardCount : counts) {
+                    stored = stored == null || shardCount.get() == null ? null : stored + Long.parseLong(shardCount.get());
+                }
+
+                for (int shard : entry.getValue()) {
+                    fetchShard(jedis, shard, proxies, servers, now, snapshot);
+                }
+            }
+        }
+
+        return stored;
+    }
+
+    private void fetchShard(Jedis jedis, int shard, List<String> proxies, Set<String> servers, long now,
+                            Map<String, PlayerEntry> snapshot) {
+        Map<String, String> owners = new HashMap<>();
+        for (String proxy : proxies) {
+            for (String player : scan(jedis, keyspace.getProxyPlayersKey(proxy, shard))) {
+                owners.put(player, proxy);
+            }
+        }
+
+        Map<String, String> onServer = new HashMap<>();
+        Set<String> conflicting = new HashSet<>();
+        for (String server : servers) {
+            for (String player : scan(jedis, keyspace.getServerPlayersKey(server, shard))) {
+                if (onServer.put(player, server) != null)
+                    conflicting.add(player);
+            }
+        }
+
+        List<String> names = new ArrayList<>();
+        for (Map.Entry<String, String> owner : owners.entrySet()) {
+            String player = owner.getKey();
+            PlayerEntry known = players.get(player);
+            String server = onServer.get(player);
+            if (known == null || known.getAddress() == null || server == null || conflicting.contains(player)) {
+                names.add(player);
+            } else {
+                snapshot.put(player, new PlayerEntry(owner.getValue(), server, known.getAddress(), now, now));
+            }
+        }
+
+        if (names.isEmpty())
+            return;
+
+        Pipeline pipeline = jedis.pipelined();
+        List<Response<List<String>>> data = new ArrayList<>(names.size());
+        for (String player : names) {
+            data.add(pipeline.hmget(keyspace.getPlayerKey(player), "server", "ip"));
+        }
+        pipeline.sync();
+
+        for (int i = 0; i < names.size(); i++) {
+            List<String> fields = data.get(i).get();
+            String ip = fields.get(1);
+            InetAddress address = null;
+            if (ip != null) {
+                try {
+                    address = InetAddresses.forString(ip);
+                } catch (IllegalArgumentException ignored) {
+                }
+            }
+            snapshot.put(names.get(i), new PlayerEntry(owners.get(names.get(i)), fields.get(0), address, now, now));
+        }
+    }
+
+    private static List<String> scan(Jedis jedis, String key) {
+        List<String> members = new ArrayList<>();
+        ScanParams params = new ScanParams().count(SCAN_COUNT);
+        String cursor = ScanParams.SCAN_POINTER_START;
+        do {
+            ScanResult<String> result = jedis.sscan(key, cursor, params);
+            members.addAll(result.getResult());
+            cursor = result.getStringCursor();
+        } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+        return members;
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    static class PlayerEntry {
+        private final String proxy;
+        private final String server;
+        private final InetAddress address;
+        private final long joined;
+        private final long updated;
+    }
+
+    @RequiredArgsConstructor
+    private static class Views {
+        private final long version;
+        private final Set<String> players;
+        private final ImmutableMultimap<String, String> serverToPlayers;
+    }
+}
@@ -0,0 +1,53 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import net.md_5.bungee.api.ServerPing;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A few names of players from across the network for the server list to show, picked on a timer so that answering a
+ * ping only has to copy them. Each time it is refreshed, the next players along are picked, so that everyone gets a
+ * turn.
+ */
+class PingSample implements Runnable {
+    private static final ServerPing.PlayerInfo[] EMPTY = new ServerPing.PlayerInfo[0];
+
+    private final RedisBungee plugin;
+    private final int size;
+    private int offset = 0;
+    private volatile ServerPing.PlayerInfo[] sample = EMPTY;
+
+    PingSample(RedisBungee plugin, int size) {
+        this.plugin = plugin;
+        this.size = size;
+    }
+
+    @Override
+    public void run() {
+        // The network state hands out an immutable set, which this views as a list without copying it.
+        List<String> players = ImmutableSet.copyOf(plugin.getPlayers()).asList();
+        if (players.isEmpty()) {
+            sample = EMPTY;
+            return;
+        }
+
+        int count = Math.min(size, players.size());
+        ServerPing.PlayerInfo[] next = new ServerPing.PlayerInfo[count];
+        offset %= players.size();
+        for (int i = 0; i < count; i++) {
+            String name = players.get((offset + i) % players.size());
+            // Players on other proxies are only known by name. The client only shows the names anyway.
+            next[i] = new ServerPing.PlayerInfo(name, UUID.nameUUIDFromBytes(("OfflinePlayer:" + name).getBytes(Charsets.UTF_8)));
+        }
+        offset += count;
+        sample = next;
+    }
+
+    ServerPing.PlayerInfo[] get() {
+        // Copied, since whoever answers the ping after us may change it.
+        return sample.clone();
+    }
+}
@@ -0,0 +1,116 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import java.util.List;
+import java.util.Set;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Keeps track of which proxies are alive.
+ * <p>
+ * Every heartbeat, a proxy refreshes an expiring <code>proxy:&lt;id&gt;:alive</code> key and its score in the
+ * <code>proxies-alive</code> sorted set, which is the Redis time of its last heartbeat in milliseconds. The proxies
+ * that are alive are then a single <code>ZRANGEBYSCORE</code> away, and a proxy is considered dead as soon as it
+ * has missed its heartbeats for the configured timeout. If keyspace notifications are enabled on the Redis server,
+ * the expiry of the alive key tells the other proxies right away.
+ * <p>
+ * The <code>heartbeats</code> hash is still written, so proxies running older versions keep seeing this one, and is
+ * what liveness is based on unless <code>liveness-mode</code> is set to <code>ttl</code>.
+ *
+ * @since 0.3.9
+ */
+class ProxyLiveness {
+    static final String PROXIES_KEY = "proxies-alive";
+    static final String HEARTBEATS_KEY = "heartbeats";
+    static final String EXPIRED_CHANNEL = "__keyevent@0__:expired";
+    private static final String ALIVE_PREFIX = "proxy:";
+    private static final String ALIVE_SUFFIX = ":alive";
+
+    private final Keyspace keyspace;
+    private final String serverId;
+    private final boolean ttlMode;
+    private final long timeout;
+
+    /**
+     * @param serverId the proxy whose heartbeats are sent
+     */
+    ProxyLiveness(Keyspace keyspace, String serverId, boolean ttlMode, long timeout) {
+        this.keyspace = keyspace;
+        this.serverId = serverId;
+        this.ttlMode = ttlMode;
+        this.timeout = timeout;
+    }
+
+    boolean isTtlMode() {
+        return ttlMode;
+    }
+
+    static String getAliveKey(String proxy) {
+        return getAliveKey(RedisBungee.getKeyspace(), proxy);
+    }
+
+    private static String getAliveKey(Keyspace keyspace, String proxy) {
+        return keyspace.getGlobalKey(ALIVE_PREFIX + proxy + ALIVE_SUFFIX);
+    }
+
+    /**
+     * Get the proxy whose alive key this is.
+     *
+     * @return the proxy, or null if the key is not an alive key
+     */
+    static String getProxyFromAliveKey(String key) {
+        key = RedisBungee.getKeyspace().fromGlobalKey(key);
+        if (key == null || !key.startsWith(ALIVE_PREFIX) || !key.endsWith(ALIVE_SUFFIX) || key.length() <= ALIVE_PREFIX.length() + ALIVE_SUFFIX.length())
+            return null;
+        return key.substring(ALIVE_PREFIX.length(), key.length() - ALIVE_SUFFIX.length());
+    }
+
+    /**
+     * Records a heartbeat for this proxy.
+     *
+     * @return in TTL mode, the proxies that are alive, fetched in the same round-trip; otherwise null
+     */
+    List<String> heartbeat(Jedis jedis) {
+        long now = getRedisTime(jedis.time());
+
+        Pipeline pipeline = jedis.pipelined();
+        pipeline.psetex(getAliveKey(keyspace, serverId), timeout, String.valueOf(now));
+        pipeline.zadd(keyspace.getGlobalKey(PROXIES_KEY), now, serverId);
+        pipeline.hset(keyspace.getGlobalKey(HEARTBEATS_KEY), serverId, String.valueOf(now / 1000));
+        Response<Set<String>> alive = ttlMode ? pipeline.zrangeByScore(keyspace.getGlobalKey(PROXIES_KEY), now - timeout, Double.POSITIVE_INFINITY) : null;
+        pipeline.sync();
+
+        return alive == null ? null : ImmutableList.copyOf(alive.get());
+    }
+
+    /**
+     * Get the proxies that are alive, or those that have missed their heartbeats.
+     */
+    List<String> getProxies(Jedis jedis, boolean lagged) {
+        String key = keyspace.getGlobalKey(PROXIES_KEY);
+        long now = getRedisTime(jedis.time());
+        Set<String> proxies = lagged ?
+                jedis.zrangeByScore(key, Double.NEGATIVE_INFINITY, now - timeout) :
+                jedis.zrangeByScore(key, now - timeout, Double.POSITIVE_INFINITY);
+        return ImmutableList.copyOf(proxies);
+    }
+
+    /**
+     * Removes this proxy, so it is seen as gone right away.
+     */
+    void remove(Jedis jedis) {
+        Pipeline pipeline = jedis.pipelined();
+        pipeline.del(getAliveKey(keyspace, serverId));
+        pipeline.zrem(keyspace.getGlobalKey(PROXIES_KEY), serverId);
+        pipeline.hdel(keyspace.getGlobalKey(HEARTBEATS_KEY), serverId);
+        pipeline.sync();
+    }
+
+    private static long getRedisTime(List<String> timeRes) {
+        return Long.parseLong(timeRes.get(0)) * 1000 + Long.parseLong(timeRes.get(1)) / 1000;
+    }
+}
@@ -0,0 +1,160 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisException;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Spreads reads that can be slightly out of date over the configured Redis replicas, so that they don't all land on
+ * the primary, which also takes every write and all the PubSub traffic.
+ * <p>
+ * Replicas are used in turn. A replica is only used while it is reachable, replicating and no more than
+ * <code>redis-replica-max-lag</code> seconds behind; when none is, reads go back to the primary.
+ *
+ * @since 0.3.9
+ */
+class ReadReplicas {
+    private final Logger logger;
+    private final List<Replica> replicas;
+    private final int maxLag;
+    private final AtomicInteger next = new AtomicInteger();
+
+    ReadReplicas(Logger logger, List<Replica> replicas, int maxLag) {
+        this.logger = logger;
+        this.replicas = ImmutableList.copyOf(replicas);
+        this.maxLag = maxLag;
+    }
+
+    /**
+     * Get the pool of the next healthy replica.
+     *
+     * @return the pool, or null if no replica is healthy
+     */
+    JedisPool getPool() {
+        int size = replicas.size();
+        int start = next.getAndIncrement();
+        for (int i = 0; i < size; i++) {
+            Replica replica = replicas.get(((start + i) % size + size) % size);
+            if (replica.healthy)
+                return replica.pool;
+        }
+        return null;
+    }
+
+    /**
+     * Stops using a replica after it failed, until the next check finds it healthy again.
+     */
+    void failed(JedisPool pool, JedisException e) {
+        for (Replica replica : replicas) {
+            if (replica.pool == pool && replica.healthy) {
+                replica.healthy = false;
+                logger.warning("Redis replica " + replica.name + " failed, reading from the primary instead: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Asks each replica how far behind it is, and only uses those that are keeping up.
+     */
+    void check() {
+        for (Replica replica : replicas) {
+            String problem;
+            try (Jedis jedis = replica.pool.getResource()) {
+                problem = getProblem(jedis.info("replication"));
+            } catch (JedisException e) {
+                problem = e.getMessage();
+            }
+
+            boolean healthy = problem == null;
+            if (healthy != replica.healthy) {
+                if (healthy)
+                    logger.info("Redis replica " + replica.name + " is healthy, reading from it.");
+                else
+                    logger.warning("Redis replica " + replica.name + " is unhealthy, not reading from it: " + problem);
+            }
+            replica.healthy = healthy;
+        }
+    }
+
+    private String getProblem(String info) {
+        String role = null;
+        String link = null;
+        int lag = -1;
+        for (String line : Splitter.on("\r\n").omitEmptyStrings().split(info)) {
+            int colon = line.indexOf(':');
+            if (colon < 0)
+                continue;
+            String field = line.substring(0, colon);
+            String value = line.substring(colon + 1);
+            switch (field) {
+                case "role":
+                    role = value;
+                    break;
+                case "master_link_status":
+                    link = value;
+                    break;
+                case "master_last_io_seconds_ago":
+                    lag = Integer.parseInt(value);
+                    break;
+            }
+        }
+
+        if (!"slave".equals(role))
+            return "it is not a replica";
+        if (!"up".equals(link))
+            return "it lost its link to the primary";
+        if (lag < 0 || lag > maxLag)
+            return "it last heard from the primary " + lag + " seconds ago";
+        return null;
+    }
+
+    int getHealthyCount() {
+        int healthy = 0;
+        for (Replica replica : replicas) {
+            if (replica.healthy)
+                healthy++;
+        }
+        return healthy;
+    }
+
+    int getCount() {
+        return replicas.size();
+    }
+
+    void close() {
+        for (Replica replica : replicas) {
+            replica.pool.destroy();
+        }
+    }
+
+    /**
+     * Splits a replica address given as <code>host:port</code>, or just <code>host</code> for the default port.
+     */
+    static List<String> parseAddress(String address) {
+        List<String> parts = new ArrayList<>(Splitter.on(':').trimResults().splitToList(address));
+        if (parts.size() == 1)
+            parts.add("6379");
+        if (parts.size() != 2 || parts.get(0).isEmpty())
+            throw new IllegalArgumentException("Invalid Redis replica address: " + address);
+        return parts;
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    static class Replica {
+        private final String name;
+        private final JedisPool pool;
+        // Not used until the first check says it is keeping up.
+        private volatile boolean healthy = false;
+    }
+}
@@ -3,6 +3,7 @@ package com.imaginarycode.minecraft.redisbungee;
 import com.google.common.collect.*;
 import com.google.common.io.ByteStreams;
 import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
 import com.imaginarycode.minecraft.redisbungee.events.PubSubMessageEvent;
 import com.imaginarycode.minecraft.redisbungee.util.*;
 import com.squareup.okhttp.Dispatcher;
@@ -12,7 +13,6 @@ import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.NonNull;
-import net.md_5.bungee.api.ProxyServer;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
 import net.md_5.bungee.api.plugin.Plugin;
 import net.md_5.bungee.api.scheduler.ScheduledTask;
@@ -26,8 +26,10 @@ import redis.clients.jedis.exceptions.JedisException;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
@@ -43,23 +45,68 @@ public final class RedisBungee extends Plugin {
     @Getter
     private static Gson gson = new Gson();
     private static RedisBungeeAPI api;
+    private static final String LIVE_PROXIES_KEY = "live-proxies";
+    private static final long LIVE_PROXIES_EXPIRY = TimeUnit.SECONDS.toMillis(10);
     @Getter(AccessLevel.PACKAGE)
     private static PubSubListener psl = null;
-    @Getter
-    private JedisPool pool;
+    private InstrumentedJedisPool pool;
     @Getter(AccessLevel.PACKAGE)
     private static RedisBungeeConfiguration configuration;
     @Getter
     private DataManager dataManager;
+    @Getter(AccessLevel.PACKAGE)
+    private NetworkState networkState;
+    @Getter(AccessLevel.PACKAGE)
+    private EventDispatcher dispatcher;
+    @Getter(AccessLevel.PACKAGE)
+    private AsyncExecutor asyncExecutor;
+    @Getter
+    private final Metrics metrics = new Metrics();
+    @Getter
+    private Tracer tracer;
+    @Getter(AccessLevel.PACKAGE)
+    private PingSample pingSample;
+    private MetricsEndpoint metricsEndpoint;
+    @Getter(AccessLevel.PACKAGE)
+    private RedisBackend backend;
     @Getter
     private static OkHttpClient httpClient;
     private List<String> serverIds;
     private final AtomicInteger nagAboutServers = new AtomicInteger();
     private ScheduledTask integrityCheck;
+    @Getter(AccessLevel.PACKAGE)
+    private IntegrityCheck integrityChecker;
     private ScheduledTask heartbeatTask;
+    @Getter(AccessLevel.PACKAGE)
+    private LeaderElection leaderElection;
+    private ProxyLiveness liveness;
     private boolean usingLua;
     private LuaManager.Script serverToPlayersScript;
-    private volatile int playerCount = 0;
+    private LuaManager.Script recountPlayersScript;
+    @Getter(AccessLevel.PACKAGE)
+    private static LuaManager.Script setPlayerServerScript;
+    @Getter(AccessLevel.PACKAGE)
+    private static LuaManager.Script registerPlayerScript;
+    @Getter(AccessLevel.PACKAGE)
+    private static LuaManager.Script unregisterPlayerScript;
+    @Getter(AccessLevel.PACKAGE)
+    private static LuaManager.Script loginPlayerScript;
+    @Getter(AccessLevel.PACKAGE)
+    private static LuaManager.Script findPlayersScript;
+    @Getter(AccessLevel.PACKAGE)
+    private static LuaManager.Script missingMembersScript;
+    @Getter(AccessLevel.PACKAGE)
+    private static LuaManager.Script pruneServerPlayersScript;
+    @Getter(AccessLevel.PACKAGE)
+    private static LuaManager.Script cleanupProxyScript;
+    @Getter(AccessLevel.PACKAGE)
+    private static LuaManager.Script acquireLeaseScript;
+    @Getter(AccessLevel.PACKAGE)
+    private static LuaManager.Script releaseLeaseScript;
+    @Getter(AccessLevel.PACKAGE)
+    private static DataMessagePublisher dataPublisher;
+    @Getter(AccessLevel.PACKAGE)
+    private static Keyspace keyspace;
 
     /**
      * Fetch the {@link RedisBungeeAPI} object created on plugin start.
@@ -74,12 +121,29 @@ public final class RedisBungee extends Plugin {
         return psl;
     }
 
+    public JedisPool getPool() {
+        return pool;
+    }
+
+    InstrumentedJedisPool.Stats getPoolStats() {
+        return pool.getStats();
+    }
+
     final List<String> getServerIds() {
         return serverIds;
     }
 
-    private List<String> getCurrentServerIds(boolean nag, boolean lagged) {
-        try (Jedis jedis = pool.getResource()) {
+    List<String> getCurrentServerIds(boolean nag, boolean lagged) {
+        if (liveness.isTtlMode()) {
+            try (Jedis jedis = keyspace.getGlobalPool().getResource()) {
+                return liveness.getProxies(jedis, lagged);
+            } catch (JedisConnectionException e) {
+                getLogger().log(Level.SEVERE, "Unable to fetch server IDs", e);
+                return Collections.singletonList(configuration.getServerId());
+            }
+        }
+
+        try (Jedis jedis = keyspace.getGlobalPool().getResource()) {
             long time = getRedisTime(jedis.time());
             int nagTime = 0;
             if (nag) {
@@ -89,7 +153,7 @@ public final class RedisBungee extends Plugin {
                 }
             }
             ImmutableList.Builder<String> servers = ImmutableList.builder();
-            Map<String, String> heartbeats = jedis.hgetAll("heartbeats");
+            Map<String, String> heartbeats = jedis.hgetAll(keyspace.getGlobalKey(ProxyLiveness.HEARTBEATS_KEY));
             for (Map.Entry<String, String> entry : heartbeats.entrySet()) {
                 try {
                     long stamp = Long.parseLong(entry.getValue());
@@ -108,37 +172,104 @@ public final class RedisBungee extends Plugin {
         }
     }
 
+    /**
+     * The leader works out which proxies are alive and shares the result, so that the other proxies don't all have to
+     * read the heartbeats themselves. If nobody has shared a recent result, we work it out ourselves.
+     */
+    private List<String> refreshServerIds() {
+        if (!leaderElection.isLeader()) {
+            try (Jedis jedis = keyspace.getGlobalPool().getResource()) {
+                String published = jedis.get(keyspace.getGlobalKey(LIVE_PROXIES_KEY));
+                if (published != null) {
+                    List<String> ids = gson.fromJson(published, new TypeToken<List<String>>() {
+                    }.getType());
+                    if (!ids.contains(configuration.getServerId())) {
+                        // The leader has not seen our first heartbeat yet.
+                        ids = ImmutableList.<String>builder().addAll(ids).add(configuration.getServerId()).build();
+                    }
+                    return ids;
+                }
+            } catch (JedisConnectionException e) {
+                getLogger().log(Level.SEVERE, "Unable to fetch server IDs", e);
+                return Collections.singletonList(configuration.getServerId());
+            }
+        }
+
+        List<String> ids = getCurrentServerIds(true, false);
+        if (leaderElection.isLeader()) {
+            try (Jedis jedis = keyspace.getGlobalPool().getResource()) {
+                jedis.psetex(keyspace.getGlobalKey(LIVE_PROXIES_KEY), LIVE_PROXIES_EXPIRY, gson.toJson(ids));
+            } catch (JedisConnectionException e) {
+                getLogger().log(Level.SEVERE, "Unable to share server IDs", e);
+            }
+        }
+        return ids;
+    }
+
     public Set<String> getPlayersOnProxy(String server) {
         checkArgument(getServerIds().contains(server), server + " is not a valid proxy ID");
-        try (Jedis jedis = pool.getResource()) {
-            Set<String> users = jedis.smembers("proxy:" + server + ":usersOnline");
-            ImmutableSet.Builder<String> builder = ImmutableSet.builder();
-            for (String user : users) {
-                builder.add(user);
+        ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+        for (Map.Entry<JedisPool, List<Integer>> entry : keyspace.getShardsByPool().entrySet()) {
+            try (Jedis jedis = keyspace.getReadResource(entry.getKey())) {
+                Pipeline pipeline = jedis.pipelined();
+                List<Response<Set<String>>> members = new ArrayList<>();
+                for (int shard : entry.getValue()) {
+                    members.add(pipeline.smembers(keyspace.getProxyPlayersKey(server, shard)));
+                }
+                pipeline.sync();
+                for (Response<Set<String>> users : members) {
+                    builder.addAll(users.get());
+                }
             }
-            return builder.build();
         }
+        return builder.build();
     }
 
     final Multimap<String, String> serversToPlayers() {
-        if (usingLua) {
-            @SuppressWarnings("unchecked")
-			Collection<String> data = (Collection<String>) serverToPlayersScript.eval(ImmutableList.<String>of(), getServerIds());
+        if (networkState != null) {
+            return networkState.getServerToPlayers();
+        }
 
+        if (usingLua) {
             ImmutableMultimap.Builder<String, String> builder = ImmutableMultimap.builder();
 
-            // TODO: This seems pretty slow, but execution times over the long term seem to stay below that of the
-            // Java implementation, at least. If you have a better idea, I want to see it!
-            String key = null;
+            for (Map.Entry<JedisPool, List<Integer>> entry : keyspace.getShardsByPool().entrySet()) {
+                try (Jedis jedis = keyspace.getReadResource(entry.getKey())) {
+                    for (int shard : entry.getValue()) {
+                        Pipeline pipeline = jedis.pipelined();
+                        List<Response<Set<String>>> members = new ArrayList<>();
+                        for (String key : keyspace.getProxyPlayersKeys(getServerIds(), shard)) {
+                            members.add(pipeline.smembers(key));
+                        }
+                        pipeline.sync();
 
-            for (String s : data) {
-                if (key == null) {
-                    key = s;
-                    continue;
-                }
+                        List<String> players = new ArrayList<>();
+                        List<String> keys = new ArrayList<>();
+                        for (Response<Set<String>> response : members) {
+                            for (String player : response.get()) {
+                                players.add(player);
+                                keys.add(keyspace.getPlayerKey(player));
+                            }
+                        }
 
-                builder.put(key, s);
-                key = null;
+                        @SuppressWarnings("unchecked")
+                        Collection<String> data = (Collection<String>) serverToPlayersScript.eval(jedis, keys, players);
+
+                        // TODO: This seems pretty slow, but execution times over the long term seem to stay below that of the
+                        // Java implementation, at least. If you have a better idea, I want to see it!
+                        String key = null;
+
+                        for (String s : data) {
+                            if (key == null) {
+                                key = s;
+                                continue;
+                            }
+
+                            builder.put(key, s);
+                            key = null;
+                        }
+                    }
+                }
             }
 
             return builder.build();
@@ -154,26 +285,45 @@ public final class RedisBungee extends Plugin {
     }
 
     final int getCount() {
-        return playerCount;
+        return networkState.getCount();
     }
 
-    final int getCurrentCount() {
-        int c = 0;
-        if (pool != null) {
-            try (Jedis rsc = pool.getResource()) {
-                for (String i : getServerIds()) {
-                    c += rsc.scard("proxy:" + i + ":usersOnline");
+    /**
+     * Recounts the players in each shard, returning whether any stored count had drifted.
+     * <p>
+     * The sets of dead proxies that have not been cleaned up yet are counted too, since cleaning them up subtracts
+     * their players from the count.
+     */
+    boolean correctPlayerCount() {
+        // The counts are kept up to date by the join and leave scripts. This only corrects drift.
+        Set<String> proxies = new HashSet<>();
+        try (Jedis jedis = keyspace.getGlobalPool().getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            Response<Set<String>> heartbeats = pipeline.hkeys(keyspace.getGlobalKey(ProxyLiveness.HEARTBEATS_KEY));
+            Response<Set<String>> alive = pipeline.zrange(keyspace.getGlobalKey(ProxyLiveness.PROXIES_KEY), 0, -1);
+            pipeline.sync();
+            proxies.addAll(heartbeats.get());
+            proxies.addAll(alive.get());
+        }
+        proxies.addAll(getServerIds());
+
+        boolean drifted = false;
+        for (Map.Entry<JedisPool, List<Integer>> entry : keyspace.getShardsByPool().entrySet()) {
+            try (Jedis jedis = entry.getKey().getResource()) {
+                for (int shard : entry.getValue()) {
+                    List<String> keys = new ArrayList<>(proxies.size() + 1);
+                    keys.add(keyspace.getPlayerCountKey(shard));
+                    keys.addAll(keyspace.getProxyPlayersKeys(proxies, shard));
+                    List<?> result = (List<?>) recountPlayersScript.eval(jedis, keys, Collections.<String>emptyList());
+                    if (((Long) result.get(1)) == 1)
+                        drifted = true;
                 }
-            } catch (JedisConnectionException e) {
-                // Redis server has disappeared!
-                getLogger().log(Level.SEVERE, "Unable to get connection from pool - did your Redis server go away?", e);
-                throw new RuntimeException("Unable to get total player count", e);
             }
         }
-        return c;
+        return drifted;
     }
 
-    private Set<String> getLocalPlayersAsStringStrings() {
+    Set<String> getLocalPlayersAsStringStrings() {
         ImmutableSet.Builder<String> builder = ImmutableSet.builder();
         for (ProxiedPlayer player : getProxy().getPlayers()) {
             builder.add(player.getName());
@@ -182,28 +332,30 @@ public final class RedisBungee extends Plugin {
     }
 
     final Set<String> getPlayers() {
+        if (networkState != null) {
+            return networkState.getPlayers();
+        }
+
         ImmutableSet.Builder<String> setBuilder = ImmutableSet.builder();
-        if (pool != null) {
-            try (Jedis rsc = pool.getResource()) {
-                List<String> keys = new ArrayList<>();
-                for (String i : getServerIds()) {
-                    keys.add("proxy:" + i + ":usersOnline");
-                }
-                if (!keys.isEmpty()) {
-                    Set<String> users = rsc.sunion(keys.toArray(new String[keys.size()]));
-                    if (users != null && !users.isEmpty()) {
-                        for (String user : users) {
-                            try {
-                                setBuilder = setBuilder.add(user);
-                            } catch (IllegalArgumentException ignored) {
-                            }
-                        }
+        if (pool != null && !getServerIds().isEmpty()) {
+            // SUNION only works on keys in the same hash slot, so take the union of each shard separately.
+            for (Map.Entry<JedisPool, List<Integer>> entry : keyspace.getShardsByPool().entrySet()) {
+                try (Jedis rsc = keyspace.getReadResource(entry.getKey())) {
+                    Pipeline pipeline = rsc.pipelined();
+                    List<Response<Set<String>>> unions = new ArrayList<>();
+                    for (int shard : entry.getValue()) {
+                        List<String> keys = keyspace.getProxyPlayersKeys(getServerIds(), shard);
+                        unions.add(pipeline.sunion(keys.toArray(new String[keys.size()])));
                     }
+                    pipeline.sync();
+                    for (Response<Set<String>> users : unions) {
+                        setBuilder.addAll(users.get());
+                    }
+                } catch (JedisConnectionException e) {
+                    // Redis server has disappeared!
+                    getLogger().log(Level.SEVERE, "Unable to get connection from pool - did your Redis server go away?", e);
+                    throw new RuntimeException("Unable to get all players online", e);
                 }
-            } catch (JedisConnectionException e) {
-                // Redis server has disappeared!
-                getLogger().log(Level.SEVERE, "Unable to get connection from pool - did your Redis server go away?", e);
-                throw new RuntimeException("Unable to get all players online", e);
             }
         }
         return setBuilder.build();
@@ -211,7 +363,46 @@ public final class RedisBungee extends Plugin {
 
     final Set<String> getPlayersOnServer(@NonNull String server) {
         checkArgument(getProxy().getServers().containsKey(server), "server does not exist");
-        return ImmutableSet.copyOf(serversToPlayers().get(server));
+        if (networkState != null) {
+            return networkState.getPlayersOnServer(server);
+        }
+        ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+        for (Map.Entry<JedisPool, List<Integer>> entry : keyspace.getShardsByPool().entrySet()) {
+            try (Jedis jedis = keyspace.getReadResource(entry.getKey())) {
+                Pipeline pipeline = jedis.pipelined();
+                List<Response<Set<String>>> members = new ArrayList<>();
+                for (int shard : entry.getValue()) {
+                    members.add(pipeline.smembers(keyspace.getServerPlayersKey(server, shard)));
+                }
+                pipeline.sync();
+                for (Response<Set<String>> players : members) {
+                    builder.addAll(players.get());
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    final int getPlayerCountOnServer(@NonNull String server) {
+        checkArgument(getProxy().getServers().containsKey(server), "server does not exist");
+        if (networkState != null) {
+            return networkState.getCountOnServer(server);
+        }
+        long count = 0;
+        for (Map.Entry<JedisPool, List<Integer>> entry : keyspace.getShardsByPool().entrySet()) {
+            try (Jedis jedis = keyspace.getReadResource(entry.getKey())) {
+                Pipeline pipeline = jedis.pipelined();
+                List<Response<Long>> counts = new ArrayList<>();
+                for (int shard : entry.getValue()) {
+                    counts.add(pipeline.scard(keyspace.getServerPlayersKey(server, shard)));
+                }
+                pipeline.sync();
+                for (Response<Long> shardCount : counts) {
+                    count += shardCount.get();
+                }
+            }
+        }
+        return (int) count;
     }
 
     final void sendProxyCommand(@NonNull String proxyId, @NonNull String command) {
@@ -229,6 +420,33 @@ public final class RedisBungee extends Plugin {
         }
     }
 
+    private void negotiateProtocol() {
+        try (Jedis jedis = keyspace.getGlobalPool().getResource()) {
+            DataMessageCodec.negotiate(getServerIds(), jedis.hgetAll(keyspace.getGlobalKey(DataMessageCodec.PROTOCOLS_KEY)));
+        } catch (JedisConnectionException e) {
+            getLogger().log(Level.SEVERE, "Unable to negotiate the data protocol - did your Redis server go away?", e);
+        }
+    }
+
+    private void onProxyExpired(final String proxy) {
+        getProxy().getScheduler().runAsync(this, new Runnable() {
+            @Override
+            public void run() {
+                serverIds = getCurrentServerIds(false, false);
+                if (serverIds.contains(proxy) || !leaderElection.isLeader())
+                    return;
+
+                try {
+                    int cleaned = RedisUtil.cleanUpProxy(proxy, leaderElection.getToken());
+                    if (cleaned > 0)
+                        getLogger().info("Cleaned up expired proxy " + proxy + " (" + cleaned + " players).");
+                } catch (JedisConnectionException e) {
+                    getLogger().log(Level.SEVERE, "Unable to clean up expired proxy " + proxy, e);
+                }
+            }
+        });
+    }
+
     private long getRedisTime(List<String> timeRes) {
         return Long.parseLong(timeRes.get(0));
     }
@@ -243,6 +461,8 @@ public final class RedisBungee extends Plugin {
             throw new RuntimeException("Unable to connect to your Redis server!", e);
         }
         if (pool != null) {
+            liveness = new ProxyLiveness(keyspace, configuration.getServerId(), configuration.isTtlLiveness(),
+                    configuration.getHeartbeatTimeout());
             try (Jedis tmpRsc = pool.getResource()) {
                 // This is more portable than INFO <section>
                 String info = tmpRsc.info();
@@ -254,36 +474,105 @@ public final class RedisBungee extends Plugin {
                             throw new RuntimeException("Unsupported Redis version detected");
                         } else {
                             LuaManager manager = new LuaManager(this);
-                            serverToPlayersScript = manager.createScript(IOUtil.readInputStreamAsString(getResourceAsStream("lua/server_to_players.lua")));
+                            serverToPlayersScript = manager.createScript("server_to_players", IOUtil.readInputStreamAsString(getResourceAsStream("lua/server_to_players.lua")));
+                            setPlayerServerScript = manager.createScript("set_player_server", IOUtil.readInputStreamAsString(getResourceAsStream("lua/set_player_server.lua")));
+                            registerPlayerScript = manager.createScript("register_player", IOUtil.readInputStreamAsString(getResourceAsStream("lua/register_player.lua")));
+                            unregisterPlayerScript = manager.createScript("unregister_player", IOUtil.readInputStreamAsString(getResourceAsStream("lua/unregister_player.lua")));
+                            loginPlayerScript = manager.createScript("login_player", IOUtil.readInputStreamAsString(getResourceAsStream("lua/login_player.lua")));
+                            findPlayersScript = manager.createScript("find_players", IOUtil.readInputStreamAsString(getResourceAsStream("lua/find_players.lua")));
+                            missingMembersScript = manager.createScript("missing_members", IOUtil.readInputStreamAsString(getResourceAsStream("lua/missing_members.lua")));
+                            pruneServerPlayersScript = manager.createScript("prune_server_players", IOUtil.readInputStreamAsString(getResourceAsStream("lua/prune_server_players.lua")));
+                            cleanupProxyScript = manager.createScript("cleanup_proxy", IOUtil.readInputStreamAsString(getResourceAsStream("lua/cleanup_proxy.lua")));
+                            acquireLeaseScript = manager.createScript("acquire_lease", IOUtil.readInputStreamAsString(getResourceAsStream("lua/acquire_lease.lua")));
+                            recountPlayersScript = manager.createScript("recount_players", IOUtil.readInputStreamAsString(getResourceAsStream("lua/recount_players.lua")));
+                            releaseLeaseScript = manager.createScript("release_lease", IOUtil.readInputStreamAsString(getResourceAsStream("lua/release_lease.lua")));
                         }
                         break;
                     }
                 }
 
-                tmpRsc.hset("heartbeats", configuration.getServerId(), String.valueOf(System.currentTimeMillis()));
-
                 long StringCacheSize = tmpRsc.hlen("String-cache");
                 if (StringCacheSize > 750000) {
                     getLogger().info("Looks like you have a really big String cache! Run https://www.spigotmc.org/resources/redisbungeecleaner.8505/ as soon as possible.");
                 }
             }
+            try (Jedis tmpRsc = keyspace.getGlobalPool().getResource()) {
+                liveness.heartbeat(tmpRsc);
+                tmpRsc.hset(keyspace.getGlobalKey(DataMessageCodec.PROTOCOLS_KEY), configuration.getServerId(), String.valueOf(DataMessageCodec.PROTOCOL_CURRENT));
+            }
             serverIds = getCurrentServerIds(true, false);
-            playerCount = getCurrentCount();
+            leaderElection = new LeaderElection(this);
+            negotiateProtocol();
+            dataPublisher = new DataMessagePublisher(this, configuration.getDataBatchWindow(), configuration.getDataBatchMaxMessages());
             heartbeatTask = getProxy().getScheduler().schedule(this, new Runnable() {
                 @Override
                 public void run() {
-                    try (Jedis rsc = pool.getResource()) {
-                        long redisTime = getRedisTime(rsc.time());
-                        rsc.hset("heartbeats", configuration.getServerId(), String.valueOf(redisTime));
+                    List<String> alive = null;
+                    Tracer.Span span = tracer.start("heartbeat");
+                    try (Jedis rsc = keyspace.getGlobalPool().getResource()) {
+                        span.borrowed();
+                        alive = liveness.heartbeat(rsc);
+                        leaderElection.update(rsc);
                     } catch (JedisConnectionException e) {
                         // Redis server has disappeared!
                         getLogger().log(Level.SEVERE, "Unable to update heartbeat - did your Redis server go away?", e);
+                    } finally {
+                        span.finish();
                     }
-                    serverIds = getCurrentServerIds(true, false);
-                    playerCount = getCurrentCount();
+                    serverIds = alive != null ? alive : refreshServerIds();
+                    negotiateProtocol();
                 }
             }, 0, 3, TimeUnit.SECONDS);
+            dispatcher = new EventDispatcher("RedisBungee PubSub Dispatcher", configuration.getDispatcherThreads(),
+                    configuration.getDispatcherQueueSize(), getLogger());
+            asyncExecutor = new AsyncExecutor("RedisBungee Async", configuration.getAsyncThreads(), configuration.getAsyncQueueSize(), getLogger());
+            if (backend == null) {
+                // The Netty backend, if configured, was already connected while loading the configuration.
+                backend = new JedisBackend(pool, asyncExecutor, tracer, metrics);
+            }
             dataManager = new DataManager(this);
+            registerMetrics();
+            NetworkState state = new NetworkState(this);
+            state.reconcile();
+            networkState = state;
+            getProxy().getScheduler().schedule(this, new Runnable() {
+                @Override
+                public void run() {
+                    networkState.reconcile();
+                }
+            }, configuration.getReconcileInterval(), configuration.getReconcileInterval(), TimeUnit.SECONDS);
+            getProxy().getScheduler().schedule(this, new Runnable() {
+                @Override
+                public void run() {
+                    pool.sample();
+                }
+            }, 1, 1, TimeUnit.MINUTES);
+            if (keyspace.isClustered()) {
+                getProxy().getScheduler().schedule(this, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            keyspace.refresh();
+                        } catch (JedisException e) {
+                            getLogger().log(Level.WARNING, "Unable to refresh the Redis Cluster slots", e);
+                        }
+                    }
+                }, 10, 10, TimeUnit.SECONDS);
+            }
+            if (keyspace.getReplicas() != null) {
+                getProxy().getScheduler().schedule(this, new Runnable() {
+                    @Override
+                    public void run() {
+                        keyspace.getReplicas().check();
+                    }
+                }, 5, 5, TimeUnit.SECONDS);
+            }
+            if (configuration.getPingSampleSize() > 0) {
+                PingSample sample = new PingSample(this, configuration.getPingSampleSize());
+                sample.run();
+                pingSample = sample;
+                getProxy().getScheduler().schedule(this, sample, 5, 5, TimeUnit.SECONDS);
+            }
             if (configuration.isRegisterBungeeCommands()) {
                 getProxy().getPluginManager().registerCommand(this, new RedisBungeeCommands.GlistCommand(this));
                 getProxy().getPluginManager().registerCommand(this, new RedisBungeeCommands.FindCommand(this));
@@ -301,71 +590,18 @@ public final class RedisBungee extends Plugin {
             getProxy().getPluginManager().registerListener(this, dataManager);
             psl = new PubSubListener();
             getProxy().getScheduler().runAsync(this, psl);
-            integrityCheck = getProxy().getScheduler().schedule(this, new Runnable() {
-                @Override
-                public void run() {
-                    try (Jedis tmpRsc = pool.getResource()) {
-                        Set<String> players = getLocalPlayersAsStringStrings();
-                        Set<String> playersInRedis = tmpRsc.smembers("proxy:" + configuration.getServerId() + ":usersOnline");
-                        List<String> lagged = getCurrentServerIds(false, true);
-
-                        // Clean up lagged players.
-                        for (String s : lagged) {
-                            Set<String> laggedPlayers = tmpRsc.smembers("proxy:" + s + ":usersOnline");
-                            tmpRsc.del("proxy:" + s + ":usersOnline");
-                            if (!laggedPlayers.isEmpty()) {
-                                getLogger().info("Cleaning up lagged proxy " + s + " (" + laggedPlayers.size() + " players)...");
-                                for (String laggedPlayer : laggedPlayers) {
-                                    RedisUtil.cleanUpPlayer(laggedPlayer, tmpRsc);
-                                }
-                            }
-                        }
-
-                        for (Iterator<String> it = playersInRedis.iterator(); it.hasNext(); ) {
-                            String member = it.next();
-                            if (!players.contains(member)) {
-                                // Are they simply on a different proxy?
-                                String found = null;
-                                for (String proxyId : getServerIds()) {
-                                    if (proxyId.equals(configuration.getServerId())) continue;
-                                    if (tmpRsc.sismember("proxy:" + proxyId + ":usersOnline", member)) {
-                                        // Just clean up the set.
-                                        found = proxyId;
-                                        break;
-                                    }
-                                }
-                                if (found == null) {
-                                    RedisUtil.cleanUpPlayer(member, tmpRsc);
-                                    getLogger().warning("Player found in set that was not found locally and globally: " + member);
-                                } else {
-                                    tmpRsc.srem("proxy:" + configuration.getServerId() + ":usersOnline", member);
-                                    getLogger().warning("Player found in set that was not found locally, but is on another proxy: " + member);
-                                }
-
-                                it.remove();
-                            }
-                        }
-
-                        Pipeline pipeline = tmpRsc.pipelined();
-
-                        for (String player : players) {
-                            if (playersInRedis.contains(player))
-                                continue;
-
-                            // Player not online according to Redis but not BungeeCord.
-                            getLogger().warning("Player " + player + " is on the proxy but not in Redis.");
-
-                            ProxiedPlayer proxiedPlayer = ProxyServer.getInstance().getPlayer(player);
-                            if (proxiedPlayer == null)
-                                continue; // We'll deal with it later.
-
-                            RedisUtil.createPlayer(proxiedPlayer, pipeline, true);
-                        }
-
-                        pipeline.sync();
-                    }
+            integrityChecker = new IntegrityCheck(this);
+            integrityCheck = getProxy().getScheduler().schedule(this, integrityChecker, 0,
+                    TimeUnit.MINUTES.toSeconds(1) / IntegrityCheck.RUNS_PER_PASS, TimeUnit.SECONDS);
+            if (configuration.getMetricsPort() > 0) {
+                try {
+                    metricsEndpoint = new MetricsEndpoint(metrics, configuration.getMetricsAddress(), configuration.getMetricsPort());
+                    metricsEndpoint.start();
+                    getLogger().info("Serving metrics on " + configuration.getMetricsAddress() + ":" + configuration.getMetricsPort() + ".");
+                } catch (IOException e) {
+                    getLogger().log(Level.WARNING, "Unable to serve metrics on port " + configuration.getMetricsPort(), e);
                 }
-            }, 0, 1, TimeUnit.MINUTES);
+            }
         }
         getProxy().registerChannel("RedisBungee");
     }
@@ -373,26 +609,94 @@ public final class RedisBungee extends Plugin {
     @Override
     public void onDisable() {
         if (pool != null) {
+            if (metricsEndpoint != null)
+                metricsEndpoint.stop();
             // Poison the PubSub listener
             psl.poison();
+            dispatcher.shutdown();
+            asyncExecutor.shutdown();
+            backend.close();
             getProxy().getScheduler().cancel(this);
             integrityCheck.cancel();
             heartbeatTask.cancel();
+            leaderElection.release();
             getProxy().getPluginManager().unregisterListeners(this);
 
-            try (Jedis tmpRsc = pool.getResource()) {
-                tmpRsc.hdel("heartbeats", configuration.getServerId());
-                if (tmpRsc.scard("proxy:" + configuration.getServerId() + ":usersOnline") > 0) {
-                    Set<String> players = tmpRsc.smembers("proxy:" + configuration.getServerId() + ":usersOnline");
-                    for (String member : players)
-                        RedisUtil.cleanUpPlayer(member, tmpRsc);
+            try (Jedis tmpRsc = keyspace.getGlobalPool().getResource()) {
+                liveness.remove(tmpRsc);
+                tmpRsc.hdel(keyspace.getGlobalKey(DataMessageCodec.PROTOCOLS_KEY), configuration.getServerId());
+            }
+            for (Map.Entry<JedisPool, List<Integer>> entry : keyspace.getShardsByPool().entrySet()) {
+                try (Jedis tmpRsc = entry.getKey().getResource()) {
+                    for (int shard : entry.getValue()) {
+                        Set<String> players = tmpRsc.smembers(keyspace.getProxyPlayersKey(configuration.getServerId(), shard));
+                        for (String member : players) {
+                            ProxiedPlayer player = getProxy().getPlayer(member);
+                            RedisUtil.cleanUpPlayer(member, player != null && player.getServer() != null ?
+                                    player.getServer().getInfo().getName() : null, tmpRsc);
+                        }
+                    }
                 }
             }
 
+            dataPublisher.shutdown();
+
+            keyspace.close();
             pool.destroy();
         }
     }
 
+    private void registerMetrics() {
+        metrics.describe(Metrics.LOGIN_SECONDS, "Time from a player logging in until RedisBungee lets the login continue.");
+        metrics.describe(Metrics.TASK_SECONDS, "Time taken by tasks run on a pooled Redis connection, including borrowing it.");
+        metrics.describe(Metrics.TASK_FAILURES, "Tasks that could not get a Redis connection.");
+        metrics.describe(Metrics.SCRIPT_SECONDS, "Time taken by Lua scripts, by script.");
+        metrics.describe(Metrics.SCRIPT_PIPELINED, "Lua scripts sent in a pipeline, which are not timed, by script.");
+        metrics.describe(Metrics.CACHE_LOAD_SECONDS, "Time taken to load a player's data into a cache on a miss, by cache.");
+        metrics.describe(Metrics.PLAYER_FETCH_SECONDS, "Time taken to fetch the data of several players at once.");
+        metrics.describe(Metrics.PUBSUB_MESSAGES, "PubSub messages received, by channel.");
+        metrics.describe(Metrics.PUBSUB_HANDLE_SECONDS, "Time taken to handle a PubSub message once dispatched, by channel.");
+        metrics.describe(Metrics.PLUGIN_MESSAGE_SECONDS, "Time taken to answer plugin messages from servers, by subchannel.");
+        metrics.describe(Metrics.PLUGIN_MESSAGE_REJECTED, "Plugin messages from servers left unanswered because the async queue was full.");
+        metrics.describe(Metrics.BACKEND_COMMAND_SECONDS, "Time taken by commands sent through the Redis backend, by command.");
+        metrics.gauge("redisbungee_pool_active_connections", new Metrics.Gauge() {
+            @Override
+            public double get() {
+                return pool.getNumActive();
+            }
+        });
+        metrics.gauge("redisbungee_pool_idle_connections", new Metrics.Gauge() {
+            @Override
+            public double get() {
+                return pool.getNumIdle();
+            }
+        });
+        metrics.gauge("redisbungee_pool_waiters", new Metrics.Gauge() {
+            @Override
+            public double get() {
+                return pool.getNumWaiters();
+            }
+        });
+        metrics.gauge("redisbungee_pubsub_queue_depth", new Metrics.Gauge() {
+            @Override
+            public double get() {
+                return dispatcher.getQueueDepth();
+            }
+        });
+        metrics.gauge("redisbungee_pubsub_lag_seconds", new Metrics.Gauge() {
+            @Override
+            public double get() {
+                return dispatcher.getLag() / 1000.0;
+            }
+        });
+        metrics.gauge("redisbungee_async_queue_depth", new Metrics.Gauge() {
+            @Override
+            public double get() {
+                return asyncExecutor.getQueueDepth();
+            }
+        });
+    }
+
     private void loadConfig() throws IOException, JedisConnectionException {
         if (!getDataFolder().exists()) {
             getDataFolder().mkdir();
@@ -426,18 +730,18 @@ public final class RedisBungee extends Plugin {
 
         if (redisServer != null && !redisServer.isEmpty()) {
             final String finalRedisPassword = redisPassword;
-            FutureTask<JedisPool> task = new FutureTask<>(new Callable<JedisPool>() {
+            FutureTask<InstrumentedJedisPool> task = new FutureTask<>(new Callable<InstrumentedJedisPool>() {
                 @Override
-                public JedisPool call() throws Exception {
+                public InstrumentedJedisPool call() throws Exception {
                     // With recent versions of Jedis, we must set the classloader to the one BungeeCord used
                     // to load RedisBungee with.
                     ClassLoader previous = Thread.currentThread().getContextClassLoader();
                     Thread.currentThread().setContextClassLoader(RedisBungee.class.getClassLoader());
 
                     // Create the pool...
-                    JedisPoolConfig config = new JedisPoolConfig();
-                    config.setMaxTotal(configuration.getInt("max-redis-connections", 8));
-                    JedisPool pool = new JedisPool(config, redisServer, redisPort, 0, finalRedisPassword);
+                    JedisPoolConfig config = RedisBungeeConfiguration.createPoolConfig(configuration);
+                    InstrumentedJedisPool pool = new InstrumentedJedisPool(config, redisServer, redisPort,
+                            RedisBungeeConfiguration.getRedisTimeout(configuration), finalRedisPassword);
 
                     // Reset classloader and return the pool
                     Thread.currentThread().setContextClassLoader(previous);
@@ -456,14 +760,15 @@ public final class RedisBungee extends Plugin {
             // Test the connection
             try (Jedis rsc = pool.getResource()) {
                 rsc.ping();
+                keyspace = createKeyspace(configuration, finalRedisPassword, rsc);
                 // If that worked, now we can check for an existing, alive Bungee:
                 File crashFile = new File(getDataFolder(), "restarted_from_crash.txt");
                 if (crashFile.exists()) {
                     crashFile.delete();
-                } else if (rsc.hexists("heartbeats", serverId)) {
-                    try {
-                        long value = Long.parseLong(rsc.hget("heartbeats", serverId));
-                        if (System.currentTimeMillis() < value + 20000) {
+                } else {
+                    try (Jedis global = keyspace.getGlobalPool().getResource()) {
+                        String heartbeat = global.hget(keyspace.getGlobalKey(ProxyLiveness.HEARTBEATS_KEY), serverId);
+                        if (heartbeat != null && System.currentTimeMillis() < Long.parseLong(heartbeat) + 20000) {
                             getLogger().severe("You have launched a possible impostor BungeeCord instance. Another instance is already running.");
                             getLogger().severe("For data consistency reasons, RedisBungee will now disable itself.");
                             getLogger().severe("If this instance is coming up from a crash, create a file in your RedisBungee plugins directory with the name 'restarted_from_crash.txt' and RedisBungee will not perform this check.");
@@ -493,7 +798,20 @@ public final class RedisBungee extends Plugin {
                     throw new RuntimeException("Unable to create HTTP client", e);
                 }
 
+                // The non-blocking backend traces its commands as soon as it is connected.
+                tracer = new Tracer(getLogger(), RedisBungee.configuration.getTraceSlowThreshold(),
+                        RedisBungee.configuration.getTraceSampleRate());
+
                 getLogger().log(Level.INFO, "Successfully connected to Redis.");
+
+                if (configuration.getString("redis-backend", "jedis").equalsIgnoreCase("netty") && keyspace.isClustered()) {
+                    getLogger().warning("The non-blocking Redis backend does not support Redis Cluster, using the default one.");
+                } else if (configuration.getString("redis-backend", "jedis").equalsIgnoreCase("netty")) {
+                    backend = new NettyRedisBackend(redisServer, redisPort, finalRedisPassword,
+                            RedisBungeeConfiguration.getRedisTimeout(configuration),
+                            configuration.getInt("redis-backend-connections", 2), getLogger(), tracer, metrics);
+                    getLogger().log(Level.INFO, "Using the non-blocking Redis backend.");
+                }
             } catch (JedisConnectionException e) {
                 pool.destroy();
                 pool = null;
@@ -504,40 +822,204 @@ public final class RedisBungee extends Plugin {
         }
     }
 
+    private Keyspace createKeyspace(Configuration configuration, String password, Jedis seed) {
+        int shards = configuration.getInt("redis-key-shards", 1);
+        if (!configuration.getBoolean("redis-cluster", false))
+            return new Keyspace(shards, pool, null, createReplicas(configuration, password));
+
+        if (!configuration.getStringList("redis-replicas").isEmpty())
+            getLogger().warning("redis-replicas is ignored with Redis Cluster.");
+
+        if (password != null)
+            throw new RuntimeException("redis-password can not be used together with redis-cluster");
+        if (shards < 2)
+            throw new RuntimeException("redis-cluster requires redis-key-shards to be at least 2");
+
+        // Same as for the pool, the node pools must be created with our classloader.
+        ClassLoader previous = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(RedisBungee.class.getClassLoader());
+        try {
+            JedisClusterInfoCache cluster = new JedisClusterInfoCache(RedisBungeeConfiguration.createPoolConfig(configuration),
+                    RedisBungeeConfiguration.getRedisTimeout(configuration));
+            cluster.discoverClusterNodesAndSlots(seed);
+            getLogger().info("Using Redis Cluster with " + cluster.getNodes().size() + " nodes and " + shards + " shards.");
+            return new Keyspace(shards, pool, cluster, null);
+        } finally {
+            Thread.currentThread().setContextClassLoader(previous);
+        }
+    }
+
+    private ReadReplicas createReplicas(Configuration configuration, String password) {
+        List<String> addresses = configuration.getStringList("redis-replicas");
+        if (addresses.isEmpty())
+            return null;
+
+        ClassLoader previous = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(RedisBungee.class.getClassLoader());
+        try {
+            JedisPoolConfig config = RedisBungeeConfiguration.createPoolConfig(configuration);
+            List<ReadReplicas.Replica> replicas = new ArrayList<>(addresses.size());
+            for (String address : addresses) {
+                List<String> parts = ReadReplicas.parseAddress(address);
+                replicas.add(new ReadReplicas.Replica(address, new JedisPool(config, parts.get(0),
+                        Integer.parseInt(parts.get(1)), RedisBungeeConfiguration.getRedisTimeout(configuration), password)));
+            }
+            ReadReplicas readReplicas = new ReadReplicas(getLogger(), replicas, configuration.getInt("redis-replica-max-lag", 10));
+            readReplicas.check();
+            getLogger().info("Using " + readReplicas.getHealthyCount() + " of " + replicas.size() + " Redis replicas for reads.");
+            return readReplicas;
+        } finally {
+            Thread.currentThread().setContextClassLoader(previous);
+        }
+    }
+
+    /**
+     * Keeps a subscription to the RedisBungee channels, and any channels registered through the API, for as long as
+     * the plugin is enabled. If the connection drops, it reconnects with a jittered backoff, resubscribes to every
+     * channel and resynchronizes the network state, since any messages sent in the meantime were lost.
+     */
     @NoArgsConstructor(access = AccessLevel.PRIVATE)
     class PubSubListener implements Runnable {
-        private JedisPubSubHandler jpsh;
+        private static final long MIN_BACKOFF = 500;
+        private static final long MAX_BACKOFF = 30000;
+
+        private final Set<String> channels = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        private volatile JedisPubSubHandler jpsh;
+        private volatile boolean poisoned = false;
 
         @Override
         public void run() {
-            try (Jedis rsc = pool.getResource()) {
-                jpsh = new JedisPubSubHandler();
-                rsc.subscribe(jpsh, "redisbungee-" + configuration.getServerId(), "redisbungee-allservers", "redisbungee-data");
-            } catch (JedisException | ClassCastException ignored) {
+            int failures = 0;
+            boolean resync = false;
+
+            while (!poisoned) {
+                List<String> added = new ArrayList<>(channels);
+                JedisPubSubHandler handler = new JedisPubSubHandler(resync, added);
+                jpsh = handler;
+                try (Jedis rsc = pool.getResource()) {
+                    rsc.subscribe(handler, getChannels(added));
+                } catch (JedisException | ClassCastException e) {
+                    if (!poisoned)
+                        getLogger().log(Level.WARNING, "Lost the PubSub connection to Redis, reconnecting...", e);
+                }
+
+                if (poisoned)
+                    break;
+
+                resync = true;
+                if (handler.wasSubscribed())
+                    failures = 0;
+                long backoff = Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(failures++, 6));
+                try {
+                    // Jitter, so that every proxy does not reconnect at the same time after a failover.
+                    Thread.sleep(backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
             }
         }
 
+        private String[] getChannels(List<String> added) {
+            List<String> all = new ArrayList<>(added.size() + 4);
+            all.add("redisbungee-" + configuration.getServerId());
+            all.add("redisbungee-allservers");
+            all.add("redisbungee-data");
+            // Keyspace notifications are only sent by the node the key is on, which may not be the one we subscribe to.
+            if (liveness.isTtlMode() && configuration.isLivenessNotifications() && !keyspace.isClustered())
+                all.add(ProxyLiveness.EXPIRED_CHANNEL);
+            all.addAll(added);
+            return all.toArray(new String[all.size()]);
+        }
+
+        /**
+         * Catches up with the channels added or removed after the handler was started with the given ones, which
+         * could not be passed on to it before it was subscribed.
+         */
+        private void catchUp(JedisPubSubHandler handler, List<String> added) {
+            List<String> missing = new ArrayList<>(channels);
+            missing.removeAll(added);
+            if (!missing.isEmpty())
+                handler.subscribe(missing.toArray(new String[missing.size()]));
+
+            List<String> removed = new ArrayList<>(added);
+            removed.removeAll(channels);
+            if (!removed.isEmpty())
+                handler.unsubscribe(removed.toArray(new String[removed.size()]));
+        }
+
         public void addChannel(String... channel) {
-            jpsh.subscribe(channel);
+            channels.addAll(Arrays.asList(channel));
+            JedisPubSubHandler handler = jpsh;
+            if (handler != null && handler.isSubscribed())
+                handler.subscribe(channel);
         }
 
         public void removeChannel(String... channel) {
-            jpsh.unsubscribe(channel);
+            channels.removeAll(Arrays.asList(channel));
+            JedisPubSubHandler handler = jpsh;
+            if (handler != null && handler.isSubscribed())
+                handler.unsubscribe(channel);
         }
 
         public void poison() {
-            jpsh.unsubscribe();
+            poisoned = true;
+            JedisPubSubHandler handler = jpsh;
+            if (handler != null && handler.isSubscribed())
+                handler.unsubscribe();
         }
     }
 
     private class JedisPubSubHandler extends JedisPubSub {
+        private final boolean resync;
+        private final List<String> added;
+        private volatile boolean subscribed = false;
+
+        private JedisPubSubHandler(boolean resync, List<String> added) {
+            this.resync = resync;
+            this.added = added;
+        }
+
+        boolean wasSubscribed() {
+            return subscribed;
+        }
+
+        @Override
+        public void onSubscribe(String channel, int subscribedChannels) {
+            if (subscribed)
+                return;
+            subscribed = true;
+            psl.catchUp(this, added);
+
+            if (resync) {
+                getLogger().info("Reconnected to Redis PubSub, resynchronizing network state...");
+                getProxy().getScheduler().runAsync(RedisBungee.this, new Runnable() {
+                    @Override
+                    public void run() {
+                        dataManager.invalidateAll();
+                        networkState.reconcile();
+                    }
+                });
+            }
+        }
+
         @Override
         public void onMessage(final String s, final String s2) {
             if (s2.trim().length() == 0) return;
-            getProxy().getScheduler().runAsync(RedisBungee.this, new Runnable() {
+            if (s.equals(ProxyLiveness.EXPIRED_CHANNEL)) {
+                String proxy = ProxyLiveness.getProxyFromAliveKey(s2);
+                if (proxy != null)
+                    onProxyExpired(proxy);
+                return;
+            }
+            metrics.increment(Metrics.PUBSUB_MESSAGES, "channel", s);
+            // Messages on the same channel are handled in the order they arrive.
+            dispatcher.dispatch(s, new Runnable() {
                 @Override
                 public void run() {
+                    long start = System.nanoTime();
                     getProxy().getPluginManager().callEvent(new PubSubMessageEvent(s, s2));
+                    metrics.recordSince(Metrics.PUBSUB_HANDLE_SECONDS, "channel", s, start);
                 }
             });
         }
@@ -1,13 +1,20 @@
 package com.imaginarycode.minecraft.redisbungee;
 
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.imaginarycode.minecraft.redisbungee.util.InstrumentedJedisPool;
 import lombok.NonNull;
 import net.md_5.bungee.api.config.ServerInfo;
 
 import java.net.InetAddress;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class exposes some internal RedisBungee functions. You obtain an instance of this object by invoking {@link RedisBungee#getApi()}.
@@ -29,7 +36,8 @@ public class RedisBungeeAPI {
     }
 
     /**
-     * Get a combined count of all players on this network.
+     * Get a combined count of all players on this network. This is kept up to date as players join and leave the
+     * network, so it is cheap to call.
      *
      * @return a count of all players found
      */
@@ -60,9 +68,40 @@ public class RedisBungeeAPI {
         return plugin.getProxy().getServerInfo(server);
     }
 
+    /**
+     * Get the last time each of the given players was on, with the same values as {@link #getLastOnline(String)}.
+     * Players that are not cached are looked up together, so this is much cheaper than calling
+     * {@link #getLastOnline(String)} for each of them.
+     *
+     * @param players the player names
+     * @return a map of every given player to the last time they were on
+     * @since 0.3.9
+     */
+    public final Map<String, Long> getLastOnline(@NonNull Collection<String> players) {
+        return plugin.getDataManager().getLastOnline(players);
+    }
+
+    /**
+     * Get the servers where the given players are playing. Players that are not cached are looked up together, so
+     * this is much cheaper than calling {@link #getServerFor(String)} for each of them.
+     *
+     * @param players the player names
+     * @return a map of every given player to the {@link net.md_5.bungee.api.config.ServerInfo} they are on, or null
+     * @since 0.3.9
+     */
+    public final Map<String, ServerInfo> getServersFor(@NonNull Collection<String> players) {
+        Map<String, ServerInfo> servers = new HashMap<>();
+        for (Map.Entry<String, String> entry : plugin.getDataManager().getServers(players).entrySet()) {
+            servers.put(entry.getKey(), entry.getValue() == null ? null : plugin.getProxy().getServerInfo(entry.getValue()));
+        }
+        return servers;
+    }
+
     /**
      * Get a combined list of players on this network.
      * <p>
+     * This is answered from RedisBungee's local view of the network and does not query Redis.
+     * <p>
      * <strong>Note that this function returns an instance of {@link com.google.common.collect.ImmutableSet}.</strong>
      *
      * @return a Set with all players found
@@ -87,7 +126,7 @@ public class RedisBungeeAPI {
     }
 
     /**
-     * Get a full list of players on all servers.
+     * Get a full list of players on all servers. This is answered from RedisBungee's local view of the network.
      *
      * @return a immutable Multimap with all players found on this server
      * @since 0.2.5
@@ -137,6 +176,18 @@ public class RedisBungeeAPI {
         return plugin.getDataManager().getIp(player);
     }
 
+    /**
+     * Get the {@link java.net.InetAddress} associated with each of the given players. Players that are not cached are
+     * looked up together.
+     *
+     * @param players the players to fetch the IP for
+     * @return a map of every given player to their {@link java.net.InetAddress}, or null
+     * @since 0.3.9
+     */
+    public final Map<String, InetAddress> getPlayerIps(@NonNull Collection<String> players) {
+        return plugin.getDataManager().getIps(players);
+    }
+
     /**
      * Get the RedisBungee proxy ID this player is connected to.
      *
@@ -148,6 +199,18 @@ public class RedisBungeeAPI {
         return plugin.getDataManager().getProxy(player);
     }
 
+    /**
+     * Get the RedisBungee proxy IDs the given players are connected to. Players that are not cached are looked up
+     * together.
+     *
+     * @param players the player names
+     * @return a map of every given player to their proxy, or null if they are offline
+     * @since 0.3.9
+     */
+    public final Map<String, String> getProxiesFor(@NonNull Collection<String> players) {
+        return plugin.getDataManager().getProxies(players);
+    }
+
     /**
      * Sends a proxy command to all proxies.
      *
@@ -205,6 +268,200 @@ public class RedisBungeeAPI {
         return plugin.getServerIds();
     }
 
+    /**
+     * Get statistics about the connection pool to Redis: how many connections are in use, how long it takes to get
+     * one and how often that times out.
+     *
+     * @return a snapshot of the connection pool statistics
+     * @since 0.3.9
+     */
+    public final InstrumentedJedisPool.Stats getConnectionPoolStats() {
+        return plugin.getPoolStats();
+    }
+
+    /**
+     * Get the number of PubSub messages and network events waiting to be handled on this proxy.
+     *
+     * @return the number of messages waiting
+     * @since 0.3.9
+     */
+    public final int getPubSubQueueDepth() {
+        return plugin.getDispatcher().getQueueDepth();
+    }
+
+    /**
+     * Get how far behind this proxy is in handling PubSub messages and network events. A lag that keeps growing means
+     * this proxy can not keep up with the rest of the network.
+     *
+     * @return the age of the oldest waiting message in milliseconds, or 0 if nothing is waiting
+     * @since 0.3.9
+     */
+    public final long getPubSubLag() {
+        return plugin.getDispatcher().getLag();
+    }
+
+    /**
+     * Get a combined count of all players on this network, without blocking.
+     *
+     * @return a future for the count of all players found
+     * @see #getPlayerCount()
+     * @since 0.3.9
+     */
+    public final ListenableFuture<Integer> getPlayerCountAsync() {
+        // Kept in memory, so there is nothing to wait for.
+        return Futures.immediateFuture(getPlayerCount());
+    }
+
+    /**
+     * Get the last time a player was on, without blocking.
+     *
+     * @param player a player name
+     * @return a future for the last time a player was on
+     * @see #getLastOnline(String)
+     * @since 0.3.9
+     */
+    public final ListenableFuture<Long> getLastOnlineAsync(@NonNull String player) {
+        return plugin.getDataManager().getLastOnlineAsync(player);
+    }
+
+    /**
+     * Get the last time each of the given players was on, without blocking.
+     *
+     * @param players the player names
+     * @return a future for a map of every given player to the last time they were on
+     * @see #getLastOnline(Collection)
+     * @since 0.3.9
+     */
+    public final ListenableFuture<Map<String, Long>> getLastOnlineAsync(@NonNull final Collection<String> players) {
+        return plugin.getAsyncExecutor().submit(new Callable<Map<String, Long>>() {
+            @Override
+            public Map<String, Long> call() throws Exception {
+                return getLastOnline(players);
+            }
+        });
+    }
+
+    /**
+     * Get the server where the specified player is playing, without blocking.
+     *
+     * @param player a player name
+     * @return a future for the server the player is on
+     * @see #getServerFor(String)
+     * @since 0.3.9
+     */
+    public final ListenableFuture<ServerInfo> getServerForAsync(@NonNull String player) {
+        return Futures.transform(plugin.getDataManager().getServerAsync(player), new Function<String, ServerInfo>() {
+            @Override
+            public ServerInfo apply(String server) {
+                return plugin.getProxy().getServerInfo(server);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Get the servers where the given players are playing, without blocking.
+     *
+     * @param players the player names
+     * @return a future for a map of every given player to the server they are on
+     * @see #getServersFor(Collection)
+     * @since 0.3.9
+     */
+    public final ListenableFuture<Map<String, ServerInfo>> getServersForAsync(@NonNull final Collection<String> players) {
+        return plugin.getAsyncExecutor().submit(new Callable<Map<String, ServerInfo>>() {
+            @Override
+            public Map<String, ServerInfo> call() throws Exception {
+                return getServersFor(players);
+            }
+        });
+    }
+
+    /**
+     * Get the RedisBungee proxy ID this player is connected to, without blocking.
+     *
+     * @param player a player name
+     * @return a future for the proxy the player is connected to
+     * @see #getProxy(String)
+     * @since 0.3.9
+     */
+    public final ListenableFuture<String> getProxyAsync(@NonNull String player) {
+        return plugin.getDataManager().getProxyAsync(player);
+    }
+
+    /**
+     * Get a list of players on the server with the given name, without blocking.
+     *
+     * @param server a server name
+     * @return a future for the players found on this server
+     * @see #getPlayersOnServer(String)
+     * @since 0.3.9
+     */
+    public final ListenableFuture<Set<String>> getPlayersOnServerAsync(@NonNull final String server) {
+        // The network state replica answers from memory, so there is nothing to wait for.
+        if (plugin.getNetworkState() != null)
+            return Futures.immediateFuture(getPlayersOnServer(server));
+
+        return plugin.getAsyncExecutor().submit(new Callable<Set<String>>() {
+            @Override
+            public Set<String> call() throws Exception {
+                return getPlayersOnServer(server);
+            }
+        });
+    }
+
+    /**
+     * Get a full list of players on all servers, without blocking.
+     *
+     * @return a future for an immutable Multimap with all players found
+     * @see #getServerToPlayers()
+     * @since 0.3.9
+     */
+    public final ListenableFuture<Multimap<String, String>> getServerToPlayersAsync() {
+        if (plugin.getNetworkState() != null)
+            return Futures.immediateFuture(getServerToPlayers());
+
+        return plugin.getAsyncExecutor().submit(new Callable<Multimap<String, String>>() {
+            @Override
+            public Multimap<String, String> call() throws Exception {
+                return getServerToPlayers();
+            }
+        });
+    }
+
+    /**
+     * Sends a message to a PubSub channel, without blocking.
+     *
+     * @param channel The PubSub channel
+     * @param message the message body to send
+     * @return a future that completes once the message was published
+     * @see #sendChannelMessage(String, String)
+     * @since 0.3.9
+     */
+    public final ListenableFuture<Void> sendChannelMessageAsync(@NonNull String channel, @NonNull String message) {
+        return Futures.transform(plugin.getBackend().publish(channel, message), new Function<Long, Void>() {
+            @Override
+            public Void apply(Long receivers) {
+                return null;
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Limits how long a future returned by this API may take. If it has not completed in time, the returned future
+     * fails with a {@link java.util.concurrent.TimeoutException} and the lookup is cancelled.
+     * <p>
+     * Asynchronous lookups run on a bounded pool; if too many are already waiting, their futures fail with a
+     * {@link java.util.concurrent.RejectedExecutionException}.
+     *
+     * @param future  a future returned by this API
+     * @param timeout how long to wait
+     * @param unit    the unit of the timeout
+     * @return a future that fails if the given future does not complete in time
+     * @since 0.3.9
+     */
+    public final <T> ListenableFuture<T> withTimeout(@NonNull ListenableFuture<T> future, long timeout, @NonNull TimeUnit unit) {
+        return plugin.getAsyncExecutor().withTimeout(future, timeout, unit);
+    }
+
     /**
      * Register (a) PubSub channel(s), so that you may handle {@link com.imaginarycode.minecraft.redisbungee.events.PubSubMessageEvent} for it.
      *
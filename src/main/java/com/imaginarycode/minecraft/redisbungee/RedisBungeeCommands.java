@@ -17,6 +17,10 @@ import net.md_5.bungee.api.plugin.Command;
 import com.google.common.base.Joiner;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
+import com.imaginarycode.minecraft.redisbungee.util.InstrumentedJedisPool;
+import com.imaginarycode.minecraft.redisbungee.util.InternalCache;
+import com.imaginarycode.minecraft.redisbungee.util.LatencyHistogram;
+import com.imaginarycode.minecraft.redisbungee.util.Tracer;
 
 /**
  * This class contains subclasses that are used for the commands RedisBungee overrides or includes: /glist, /find and /lastseen.
@@ -321,18 +325,67 @@ class RedisBungeeCommands {
         private final RedisBungee plugin;
 
         DebugCommand(RedisBungee plugin) {
-            super("rdebug", "redisbungee.command.debug");
+            super("rdebug", "redisbungee.command.debug", "rbdebug");
             this.plugin = plugin;
         }
 
         @Override
         public void execute(final CommandSender sender, final String[] args) {
-            TextComponent poolActiveStat = new TextComponent("Currently active pool objects: " + plugin.getPool().getNumActive());
-            TextComponent poolIdleStat = new TextComponent("Currently idle pool objects: " + plugin.getPool().getNumIdle());
-            TextComponent poolWaitingStat = new TextComponent("Waiting on free objects: " + plugin.getPool().getNumWaiters());
+            if (args.length > 0 && args[0].equalsIgnoreCase("metrics")) {
+                for (String line : plugin.getMetrics().summarize()) {
+                    sender.sendMessage(new TextComponent(line));
+                }
+                return;
+            }
+            if (args.length > 0 && args[0].equalsIgnoreCase("trace")) {
+                sender.sendMessage(new ComponentBuilder("Recent slow Redis operations:").color(ChatColor.YELLOW).create());
+                for (Tracer.Span span : plugin.getTracer().getSlow()) {
+                    sender.sendMessage(new TextComponent(span.toString()));
+                }
+                sender.sendMessage(new ComponentBuilder("Sampled Redis operations:").color(ChatColor.YELLOW).create());
+                for (Tracer.Span span : plugin.getTracer().getSampled()) {
+                    sender.sendMessage(new TextComponent(span.toString()));
+                }
+                return;
+            }
+
+            InstrumentedJedisPool.Stats poolStats = plugin.getPoolStats();
+            LatencyHistogram.Snapshot borrowWait = poolStats.getBorrowWait();
+            TextComponent poolActiveStat = new TextComponent("Currently active pool objects: " + poolStats.getActive());
+            TextComponent poolIdleStat = new TextComponent("Currently idle pool objects: " + poolStats.getIdle());
+            TextComponent poolWaitingStat = new TextComponent("Waiting on free objects: " + poolStats.getWaiters());
+            TextComponent poolBorrowStat = new TextComponent(String.format("Time to get a connection: mean %.2fms, 99th percentile %.2fms, max %.2fms",
+                    borrowWait.getMeanMillis(), borrowWait.getPercentileMillis(99), borrowWait.getMaxMillis()));
+            TextComponent poolFailureStat = new TextComponent("Timed out getting a connection: " + poolStats.getBorrowTimeouts() +
+                    ", failed to connect: " + poolStats.getBorrowFailures());
+            TextComponent poolCreatedStat = new TextComponent("Connections created: " + poolStats.getCreated() +
+                    " (" + poolStats.getCreatedLastMinute() + " in the last minute), closed: " + poolStats.getDestroyed());
+            TextComponent queueDepthStat = new TextComponent("Queued PubSub messages: " + plugin.getDispatcher().getQueueDepth());
+            TextComponent queueLagStat = new TextComponent("PubSub lag: " + plugin.getDispatcher().getLag() + "ms");
             sender.sendMessage(poolActiveStat);
             sender.sendMessage(poolIdleStat);
             sender.sendMessage(poolWaitingStat);
+            sender.sendMessage(poolBorrowStat);
+            sender.sendMessage(poolFailureStat);
+            sender.sendMessage(poolCreatedStat);
+            sender.sendMessage(queueDepthStat);
+            sender.sendMessage(queueLagStat);
+            sender.sendMessage(new TextComponent("Queued async requests: " + plugin.getAsyncExecutor().getQueueDepth()));
+            sender.sendMessage(new TextComponent("Discrepancies fixed by the last integrity check: " + plugin.getIntegrityChecker().getLastFixed()));
+            ReadReplicas replicas = RedisBungee.getKeyspace().getReplicas();
+            if (replicas != null)
+                sender.sendMessage(new TextComponent("Healthy Redis replicas: " + replicas.getHealthyCount() + " of " + replicas.getCount()));
+            sender.sendMessage(new TextComponent("Doing network maintenance: " + (plugin.getLeaderElection().isLeader() ?
+                    "yes (token " + plugin.getLeaderElection().getToken() + ")" : "no")));
+            for (Map.Entry<String, InternalCache.Stats> entry : plugin.getDataManager().getCacheStats().entrySet()) {
+                InternalCache.Stats stats = entry.getValue();
+                sender.sendMessage(new TextComponent("Cache " + entry.getKey() + ": " + stats.getHits() + " hits, " +
+                        stats.getMisses() + " misses, " + stats.getEvictions() + " evictions, " +
+                        stats.getExpirations() + " expirations, " + stats.getRefreshes() + " refreshes, " +
+                        stats.getCoalesced() + " coalesced"));
+            }
+            sender.sendMessage(new ComponentBuilder("To see the time taken by scripts, lookups and messages, use /rdebug metrics. " +
+                    "To see recent slow Redis operations, use /rdebug trace.").color(ChatColor.YELLOW).create());
         }
     }
 }
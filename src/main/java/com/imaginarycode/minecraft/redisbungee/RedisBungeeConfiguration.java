@@ -5,9 +5,11 @@ import com.google.common.net.InetAddresses;
 import lombok.Getter;
 import net.md_5.bungee.config.Configuration;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
 
 import java.net.InetAddress;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class RedisBungeeConfiguration {
     @Getter
@@ -18,11 +20,56 @@ public class RedisBungeeConfiguration {
     private final boolean registerBungeeCommands;
     @Getter
     private final List<InetAddress> exemptAddresses;
+    @Getter
+    private final long dataBatchWindow;
+    @Getter
+    private final int dataBatchMaxMessages;
+    @Getter
+    private final int dispatcherThreads;
+    @Getter
+    private final int dispatcherQueueSize;
+    @Getter
+    private final int asyncThreads;
+    @Getter
+    private final boolean ttlLiveness;
+    @Getter
+    private final long heartbeatTimeout;
+    @Getter
+    private final boolean livenessNotifications;
+    @Getter
+    private final int asyncQueueSize;
+    @Getter
+    private final String metricsAddress;
+    @Getter
+    private final int metricsPort;
+    @Getter
+    private final long traceSlowThreshold;
+    @Getter
+    private final int traceSampleRate;
+    @Getter
+    private final int pingSampleSize;
+    @Getter
+    private final int reconcileInterval;
 
     public RedisBungeeConfiguration(JedisPool pool, Configuration configuration) {
         this.pool = pool;
         this.serverId = configuration.getString("server-id");
         this.registerBungeeCommands = configuration.getBoolean("register-bungee-commands", true);
+        this.dataBatchWindow = configuration.getInt("data-batch-window", 5);
+        this.dataBatchMaxMessages = configuration.getInt("data-batch-max-messages", 200);
+        this.dispatcherThreads = configuration.getInt("pubsub-dispatcher-threads", 2);
+        this.dispatcherQueueSize = configuration.getInt("pubsub-dispatcher-queue-size", 10000);
+        this.asyncThreads = configuration.getInt("async-threads", 4);
+        this.ttlLiveness = configuration.getString("liveness-mode", "hash").equalsIgnoreCase("ttl");
+        this.heartbeatTimeout = TimeUnit.SECONDS.toMillis(configuration.getInt("heartbeat-timeout", 10));
+        this.livenessNotifications = configuration.getBoolean("liveness-notifications", false);
+        this.asyncQueueSize = configuration.getInt("async-queue-size", 1000);
+        this.metricsAddress = configuration.getString("metrics-address", "127.0.0.1");
+        this.metricsPort = configuration.getInt("metrics-port", 0);
+        this.traceSlowThreshold = configuration.getInt("trace-slow-threshold", 250);
+        this.traceSampleRate = configuration.getInt("trace-sample-rate", 100);
+        this.pingSampleSize = configuration.getInt("ping-sample-size", 0);
+        this.reconcileInterval = Math.max(1, configuration.getInt("reconcile-interval", 120));
 
         List<String> stringified = configuration.getStringList("exempt-ip-addresses");
         ImmutableList.Builder<InetAddress> addressBuilder = ImmutableList.builder();
@@ -33,4 +80,22 @@ public class RedisBungeeConfiguration {
 
         this.exemptAddresses = addressBuilder.build();
     }
+
+    static JedisPoolConfig createPoolConfig(Configuration configuration) {
+        JedisPoolConfig config = new JedisPoolConfig();
+        int maxTotal = configuration.getInt("max-redis-connections", 8);
+        config.setMaxTotal(maxTotal);
+        config.setMaxIdle(configuration.getInt("redis-pool-max-idle", maxTotal));
+        config.setMinIdle(configuration.getInt("redis-pool-min-idle", 0));
+        config.setMaxWaitMillis(configuration.getInt("redis-pool-max-wait", 10000));
+        config.setTestOnBorrow(configuration.getBoolean("redis-pool-test-on-borrow", false));
+        config.setTestWhileIdle(configuration.getBoolean("redis-pool-test-while-idle", true));
+        config.setTimeBetweenEvictionRunsMillis(configuration.getInt("redis-pool-eviction-interval", 30000));
+        config.setMinEvictableIdleTimeMillis(configuration.getInt("redis-pool-min-evictable-idle", 60000));
+        return config;
+    }
+
+    static int getRedisTimeout(Configuration configuration) {
+        return configuration.getInt("redis-timeout", 5000);
+    }
 }
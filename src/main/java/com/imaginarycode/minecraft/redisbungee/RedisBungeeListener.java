@@ -12,12 +12,12 @@ import java.util.Set;
 import lombok.AllArgsConstructor;
 import net.md_5.bungee.api.AbstractReconnectHandler;
 import net.md_5.bungee.api.ChatColor;
-import net.md_5.bungee.api.ProxyServer;
 import net.md_5.bungee.api.ServerPing;
 import net.md_5.bungee.api.chat.BaseComponent;
 import net.md_5.bungee.api.chat.ComponentBuilder;
 import net.md_5.bungee.api.chat.TextComponent;
 import net.md_5.bungee.api.config.ServerInfo;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
 import net.md_5.bungee.api.connection.Server;
 import net.md_5.bungee.api.event.LoginEvent;
 import net.md_5.bungee.api.event.PlayerDisconnectEvent;
@@ -29,16 +29,18 @@ import net.md_5.bungee.api.plugin.Listener;
 import net.md_5.bungee.event.EventHandler;
 import net.md_5.bungee.event.EventPriority;
 import redis.clients.jedis.Jedis;
-import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.JedisPool;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.collect.HashMultimap;
-import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Multimap;
 import com.google.common.io.ByteArrayDataInput;
 import com.google.common.io.ByteArrayDataOutput;
 import com.google.common.io.ByteStreams;
 import com.imaginarycode.minecraft.redisbungee.events.PubSubMessageEvent;
+import com.imaginarycode.minecraft.redisbungee.util.Metrics;
 import com.imaginarycode.minecraft.redisbungee.util.RedisCallable;
 
 @AllArgsConstructor
@@ -51,62 +53,56 @@ public class RedisBungeeListener implements Listener {
     private final RedisBungee plugin;
     private final List<InetAddress> exemptAddresses;
 
-    private static final List<String> ASYNC_PING_EVENT_HOSTILE = ImmutableList.of("ServerListPlus");
+    // Anything else servers send is recorded as one subchannel, so that they can't create any number of metrics.
+    private static final Set<String> SUBCHANNELS = ImmutableSet.of("PlayerList", "PlayerCount", "LastOnline",
+            "ServerPlayers", "Proxy");
 
     @EventHandler(priority = EventPriority.LOWEST)
     public void onLogin(final LoginEvent event) {
+        final long start = System.nanoTime();
         event.registerIntent(plugin);
-        plugin.getProxy().getScheduler().runAsync(plugin, new RedisCallable<Void>(plugin) {
+        JedisPool pool = RedisBungee.getKeyspace().getPlayerPool(event.getConnection().getName());
+        plugin.getProxy().getScheduler().runAsync(plugin, new RedisCallable<Void>(plugin, pool, "login of " + event.getConnection().getName()) {
 			@Override
             protected Void call(Jedis jedis) {
                 if (event.isCancelled()) {
-                    event.completeIntent(plugin);
+                    completeLogin(event, start);
                     return null;
                 }
 
-                for (String s : plugin.getServerIds()) {
-                    if (jedis.sismember("proxy:" + s + ":usersOnline", event.getConnection().getName())) {
-                        event.setCancelled(true);
-                        // TODO: Make it accept a BaseComponent[] like everything else.
-                        event.setCancelReason(TextComponent.toLegacyText(ALREADY_LOGGED_IN));
-                        event.completeIntent(plugin);
-                        return null;
-                    }
-                }
-
-                Pipeline pipeline = jedis.pipelined();
-                //plugin.getUuidTranslator().persistInfo(event.getConnection().getName(), event.getConnection().getUniqueId(), pipeline);
-                RedisUtil.createPlayer(event.getConnection(), pipeline, false);
+                // The duplicate check and the registration happen atomically in one script.
                 // We're not publishing, the API says we only publish at PostLoginEvent time.
-                pipeline.sync();
+                if (!RedisUtil.loginPlayer(event.getConnection(), plugin.getServerIds(), jedis)) {
+                    event.setCancelled(true);
+                    // TODO: Make it accept a BaseComponent[] like everything else.
+                    event.setCancelReason(TextComponent.toLegacyText(ALREADY_LOGGED_IN));
+                }
 
-                event.completeIntent(plugin);
+                completeLogin(event, start);
                 return null;
             }
         });
     }
 
+    private void completeLogin(LoginEvent event, long start) {
+        plugin.getMetrics().recordSince(Metrics.LOGIN_SECONDS, start);
+        event.completeIntent(plugin);
+    }
+
     @EventHandler
     public void onPostLogin(final PostLoginEvent event) {
-        plugin.getProxy().getScheduler().runAsync(plugin, new RedisCallable<Void>(plugin) {
-            @Override
-            protected Void call(Jedis jedis) {
-                jedis.publish("redisbungee-data", RedisBungee.getGson().toJson(new DataManager.DataManagerMessage<>(
-                        event.getPlayer().getName(), DataManager.DataManagerMessage.Action.JOIN,
-                        new DataManager.LoginPayload(event.getPlayer().getAddress().getAddress()))));
-                return null;
-            }
-        });
+        RedisBungee.getDataPublisher().publish(new DataManager.DataManagerMessage<>(
+                event.getPlayer().getName(), DataManager.DataManagerMessage.Action.JOIN,
+                new DataManager.LoginPayload(event.getPlayer().getAddress().getAddress())));
     }
 
     @EventHandler
     public void onPlayerDisconnect(final PlayerDisconnectEvent event) {
-        plugin.getProxy().getScheduler().runAsync(plugin, new RedisCallable<Void>(plugin) {
+        JedisPool pool = RedisBungee.getKeyspace().getPlayerPool(event.getPlayer().getName());
+        plugin.getProxy().getScheduler().runAsync(plugin, new RedisCallable<Void>(plugin, pool, "disconnect of " + event.getPlayer().getName()) {
             @Override
             protected Void call(Jedis jedis) {
-                Pipeline pipeline = jedis.pipelined();
-                RedisUtil.cleanUpPlayer(event.getPlayer().getName(), pipeline);
-                pipeline.sync();
+                RedisUtil.cleanUpPlayer(event.getPlayer().getName(), getServerName(event.getPlayer()), jedis);
                 return null;
             }
         });
@@ -114,13 +110,18 @@ public class RedisBungeeListener implements Listener {
 
     @EventHandler
     public void onServerChange(final ServerConnectedEvent event) {
-        plugin.getProxy().getScheduler().runAsync(plugin, new RedisCallable<Void>(plugin) {
+        // The player is still on the server they are leaving.
+        final String previous = getServerName(event.getPlayer());
+        JedisPool pool = RedisBungee.getKeyspace().getPlayerPool(event.getPlayer().getName());
+        plugin.getProxy().getScheduler().runAsync(plugin, new RedisCallable<Void>(plugin, pool, "server change of " + event.getPlayer().getName()) {
             @Override
             protected Void call(Jedis jedis) {
-                jedis.hset("player:" + event.getPlayer().getName(), "server", event.getServer().getInfo().getName());
-                jedis.publish("redisbungee-data", RedisBungee.getGson().toJson(new DataManager.DataManagerMessage<>(
+                // If they already left, the other proxies must not hear about it after they heard they left.
+                if (!RedisUtil.setServer(event.getPlayer().getName(), event.getServer().getInfo().getName(), previous, jedis))
+                    return null;
+                RedisBungee.getDataPublisher().publish(new DataManager.DataManagerMessage<>(
                         event.getPlayer().getName(), DataManager.DataManagerMessage.Action.SERVER_CHANGE,
-                        new DataManager.ServerChangePayload(event.getServer().getInfo().getName()))));
+                        new DataManager.ServerChangePayload(event.getServer().getInfo().getName())), jedis);
                 return null;
             }
         });
@@ -138,51 +139,35 @@ public class RedisBungeeListener implements Listener {
             return;
         }
 
-        boolean runAsync = true;
-        for (String s : ASYNC_PING_EVENT_HOSTILE) {
-            if (ProxyServer.getInstance().getPluginManager().getPlugin(s) != null) {
-                runAsync = false;
-                break;
-            }
-        }
-
-        if (runAsync) {
-            event.registerIntent(plugin);
-            plugin.getProxy().getScheduler().runAsync(plugin, new Runnable() {
-                @Override
-                public void run() {
-                    ServerPing old = event.getResponse();
-                    ServerPing reply = new ServerPing();
-                    reply.setPlayers(new ServerPing.Players(old.getPlayers().getMax(), plugin.getCount(), old.getPlayers().getSample()));
-                    reply.setDescription(old.getDescription());
-                    reply.setFavicon(old.getFaviconObject());
-                    reply.setVersion(old.getVersion());
-                    event.setResponse(reply);
-                    event.completeIntent(plugin);
-                }
-            });
-        } else {
-            // Async ping event will not work as an async-hostile plugin was found, so perform the ping modification synchronously.
-            ServerPing old = event.getResponse();
-            ServerPing reply = new ServerPing();
-            reply.setPlayers(new ServerPing.Players(old.getPlayers().getMax(), plugin.getCount(), old.getPlayers().getSample()));
-            reply.setDescription(old.getDescription());
-            reply.setFavicon(old.getFaviconObject());
-            reply.setVersion(old.getVersion());
-            event.setResponse(reply);
-        }
+        // The count is kept in memory and the sample is picked on a timer, so the ping is answered right away.
+        ServerPing.Players old = event.getResponse().getPlayers();
+        PingSample sample = plugin.getPingSample();
+        event.getResponse().setPlayers(new ServerPing.Players(old.getMax(), plugin.getCount(),
+                sample != null ? sample.get() : old.getSample()));
     }
 
     @EventHandler
     public void onPluginMessage(final PluginMessageEvent event) {
         if (event.getTag().equals("RedisBungee") && event.getSender() instanceof Server) {
             final byte[] data = Arrays.copyOf(event.getData(), event.getData().length);
-            plugin.getProxy().getScheduler().runAsync(plugin, new Runnable() {
+            boolean queued = plugin.getAsyncExecutor().execute(new Runnable() {
                 @Override
                 public void run() {
+                    long start = System.nanoTime();
                     ByteArrayDataInput in = ByteStreams.newDataInput(data);
 
                     String subchannel = in.readUTF();
+                    String context = plugin.getTracer().setContext("plugin message " + subchannel);
+                    try {
+                        answer(in, subchannel);
+                    } finally {
+                        plugin.getTracer().setContext(context);
+                        plugin.getMetrics().recordSince(Metrics.PLUGIN_MESSAGE_SECONDS, "subchannel",
+                                SUBCHANNELS.contains(subchannel) ? subchannel : "unknown", start);
+                    }
+                }
+
+                private void answer(ByteArrayDataInput in, String subchannel) {
                     ByteArrayDataOutput out = ByteStreams.newDataOutput();
                     String type;
 
@@ -214,7 +199,7 @@ public class RedisBungeeListener implements Listener {
                             } else {
                                 out.writeUTF(type);
                                 try {
-                                    out.writeInt(plugin.getPlayersOnServer(type).size());
+                                    out.writeInt(plugin.getPlayerCountOnServer(type));
                                 } catch (IllegalArgumentException e) {
                                     out.writeInt(0);
                                 }
@@ -274,10 +259,14 @@ public class RedisBungeeListener implements Listener {
                     ((Server) event.getSender()).sendData("RedisBungee", out.toByteArray());
                 }
             });
+            // The server never gets an answer, and answering on this thread would block its connection.
+            if (!queued)
+                plugin.getMetrics().increment(Metrics.PLUGIN_MESSAGE_REJECTED);
         }
     }
 
-    private void serializeMultimap(Multimap<String, String> collection, boolean includeNames, ByteArrayDataOutput output) {
+    @VisibleForTesting
+    static void serializeMultimap(Multimap<String, String> collection, boolean includeNames, ByteArrayDataOutput output) {
         output.writeInt(collection.size());
         for (Map.Entry<String, Collection<String>> entry : collection.asMap().entrySet()) {
             output.writeUTF(entry.getKey());
@@ -289,7 +278,11 @@ public class RedisBungeeListener implements Listener {
         }
     }
 
-    private void serializeCollection(Collection<?> collection, ByteArrayDataOutput output) {
+    private static String getServerName(ProxiedPlayer player) {
+        return player.getServer() == null ? null : player.getServer().getInfo().getName();
+    }
+
+    private static void serializeCollection(Collection<?> collection, ByteArrayDataOutput output) {
         output.writeInt(collection.size());
         for (Object o : collection) {
             output.writeUTF(o.toString());
@@ -1,54 +1,255 @@
 package com.imaginarycode.minecraft.redisbungee;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import lombok.AccessLevel;
 import lombok.NoArgsConstructor;
 import net.md_5.bungee.api.connection.PendingConnection;
-import net.md_5.bungee.api.connection.ProxiedPlayer;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 
 @VisibleForTesting
 @NoArgsConstructor(access = AccessLevel.PRIVATE)
 public class RedisUtil {
-	protected static void createPlayer(ProxiedPlayer player, Pipeline pipeline, boolean fireEvent) {
-		createPlayer(player.getPendingConnection(), pipeline, fireEvent);
-		if (player.getServer() != null)
-			pipeline.hset("player:" + player.getName(), "server", player.getServer().getInfo().getName());
-	}
+	static final String PLAYER_COUNT_KEY = "player-count";
+	/**
+	 * How many players of a dead proxy are logged out by each script, so that a large proxy doesn't block Redis.
+	 */
+	private static final int CLEANUP_BATCH_SIZE = 500;
 
+	/**
+	 * The pipeline must be on the node that holds the player's shard, see {@link Keyspace#getPlayerPool(String)}.
+	 */
 	protected static void createPlayer(PendingConnection connection, Pipeline pipeline, boolean fireEvent) {
-		Map<String, String> playerData = new HashMap<>(4);
-		playerData.put("online", "0");
-		playerData.put("ip", connection.getAddress().getAddress().getHostAddress());
-		playerData.put("proxy", RedisBungee.getConfiguration().getServerId());
-
-		pipeline.sadd("proxy:" + RedisBungee.getApi().getServerId() + ":usersOnline", connection.getName());
-		pipeline.hmset("player:" + connection.getUniqueId().toString(), playerData);
+		String serverId = RedisBungee.getConfiguration().getServerId();
+		RedisBungee.getRegisterPlayerScript().eval(pipeline, playerKeys(connection.getName()),
+				ImmutableList.of(connection.getName(), connection.getAddress().getAddress().getHostAddress(), serverId));
 
 		if (fireEvent) {
-			pipeline.publish("redisbungee-data", RedisBungee.getGson().toJson(new DataManager.DataManagerMessage<>(connection.getName(), DataManager.DataManagerMessage.Action.JOIN, new DataManager.LoginPayload(connection.getAddress().getAddress()))));
+			RedisBungee.getDataPublisher().publish(new DataManager.DataManagerMessage<>(connection.getName(), DataManager.DataManagerMessage.Action.JOIN, new DataManager.LoginPayload(connection.getAddress().getAddress())), pipeline);
+		}
+	}
+
+	/**
+	 * Checks that the player is not online on any proxy and registers them on this one, in one round-trip.
+	 *
+	 * @return true if the player was registered, false if they are already online elsewhere
+	 */
+	protected static boolean loginPlayer(PendingConnection connection, List<String> proxies, Jedis jedis) {
+		Keyspace keyspace = RedisBungee.getKeyspace();
+		String serverId = RedisBungee.getConfiguration().getServerId();
+		int shard = keyspace.getShard(connection.getName());
+		List<String> keys = new ArrayList<>(proxies.size() + 3);
+		keys.addAll(playerKeys(connection.getName()));
+		for (String proxy : proxies) {
+			keys.add(keyspace.getProxyPlayersKey(proxy, shard));
+		}
+
+		Object result = RedisBungee.getLoginPlayerScript().eval(jedis, keys,
+				ImmutableList.of(connection.getName(), connection.getAddress().getAddress().getHostAddress(), serverId));
+		return result != null && ((Long) result) == 1;
+	}
+
+	/**
+	 * Moves the player to the given server, or off their server if it is empty.
+	 *
+	 * @param current the server the player is thought to be on, or null if none. If they are really on another one,
+	 *                the script says so and is run again with that one, so that it only touches the keys it was given.
+	 * @return false if the player is no longer logged in on this proxy, in which case nothing was changed
+	 */
+	protected static boolean setServer(String player, String server, String current, Jedis jedis) {
+		Keyspace keyspace = RedisBungee.getKeyspace();
+		int shard = keyspace.getShard(player);
+		String key = keyspace.getPlayerKey(player);
+		String expected = Strings.nullToEmpty(current);
+
+		while (true) {
+			Object result = RedisBungee.getSetPlayerServerScript().eval(jedis,
+					ImmutableList.of(key, serverKey(server, shard, key), serverKey(expected, shard, key)),
+					ImmutableList.of(player, server, expected, RedisBungee.getConfiguration().getServerId()));
+			if (result == null)
+				return true;
+			if (result instanceof Long)
+				return false;
+			expected = (String) result;
 		}
 	}
 
-	public static void cleanUpPlayer(String player, Jedis rsc) {
-		rsc.srem("proxy:" + RedisBungee.getApi().getServerId() + ":usersOnline", player);
-		rsc.hdel("player:" + player, "server", "ip", "proxy");
+	/**
+	 * Logs the player out of this proxy and tells the other proxies about it.
+	 *
+	 * @param current the server the player is thought to be on, or null if none, as for
+	 *                {@link #setServer(String, String, String, Jedis)}
+	 */
+	public static void cleanUpPlayer(String player, String current, Jedis rsc) {
+		Keyspace keyspace = RedisBungee.getKeyspace();
+		int shard = keyspace.getShard(player);
+		String key = keyspace.getPlayerKey(player);
+		String expected = Strings.nullToEmpty(current);
 		long timestamp = System.currentTimeMillis();
-		rsc.hset("player:" + player, "online", String.valueOf(timestamp));
-		rsc.publish("redisbungee-data", RedisBungee.getGson().toJson(new DataManager.DataManagerMessage<>(player, DataManager.DataManagerMessage.Action.LEAVE, new DataManager.LogoutPayload(timestamp))));
+
+		while (true) {
+			List<String> keys = new ArrayList<>(playerKeys(player));
+			keys.add(serverKey(expected, shard, key));
+			Object result = RedisBungee.getUnregisterPlayerScript().eval(rsc, keys,
+					ImmutableList.of(player, String.valueOf(timestamp), expected));
+			if (result == null)
+				break;
+			expected = (String) result;
+		}
+		RedisBungee.getDataPublisher().publish(new DataManager.DataManagerMessage<>(player, DataManager.DataManagerMessage.Action.LEAVE, new DataManager.LogoutPayload(timestamp)), rsc);
+	}
+
+	/**
+	 * Get the set of players on the given server, or the given placeholder if there is no server, since the scripts
+	 * must be given as many keys as they expect.
+	 */
+	private static String serverKey(String server, int shard, String placeholder) {
+		return server.isEmpty() ? placeholder : RedisBungee.getKeyspace().getServerPlayersKey(server, shard);
 	}
 
-	public static void cleanUpPlayer(String player, Pipeline rsc) {
-		rsc.srem("proxy:" + RedisBungee.getApi().getServerId() + ":usersOnline", player);
-		rsc.hdel("player:" + player, "server", "ip", "proxy");
+	/**
+	 * Logs out every player of a proxy that stopped sending heartbeats, with one script per shard. Only the first
+	 * proxy to call this for a dead proxy does any work, and only while the given fencing token is the latest one.
+	 * <p>
+	 * With a single shard, the token is checked by the script itself. Otherwise the token lives in another hash slot
+	 * and is checked once up front, which still keeps out any leader whose lease lapsed more than a moment ago.
+	 * <p>
+	 * Once its players are gone, the proxy's heartbeat is removed too, so that it is no longer found lagged and cleaned
+	 * up again on every run. Its sets are gone by then, since Redis drops empty sets.
+	 *
+	 * @return the number of players logged out
+	 */
+	protected static int cleanUpProxy(String proxy, long token) {
+		Keyspace keyspace = RedisBungee.getKeyspace();
 		long timestamp = System.currentTimeMillis();
-		rsc.hset("player:" + player, "online", String.valueOf(timestamp));
-		rsc.publish("redisbungee-data", RedisBungee.getGson().toJson(new DataManager.DataManagerMessage<>(player, DataManager.DataManagerMessage.Action.LEAVE, new DataManager.LogoutPayload(timestamp))));
+
+		if (keyspace.isSharded()) {
+			try (Jedis jedis = keyspace.getGlobalPool().getResource()) {
+				if (!String.valueOf(token).equals(jedis.get(keyspace.getGlobalKey(LeaderElection.TOKEN_KEY))))
+					return 0;
+				jedis.zrem(keyspace.getGlobalKey(ProxyLiveness.PROXIES_KEY), proxy);
+			}
+		}
+
+		int cleaned = 0;
+		for (Map.Entry<JedisPool, List<Integer>> entry : keyspace.getShardsByPool().entrySet()) {
+			try (Jedis jedis = entry.getKey().getResource()) {
+				for (int shard : entry.getValue()) {
+					List<String> players = cleanUpProxy(proxy, token, timestamp, shard, jedis);
+					if (players.isEmpty())
+						continue;
+
+					List<DataManager.DataManagerMessage<?>> messages = new ArrayList<>(players.size());
+					for (String player : players) {
+						messages.add(new DataManager.DataManagerMessage<>(player, DataManager.DataManagerMessage.Action.LEAVE, new DataManager.LogoutPayload(timestamp)));
+					}
+					RedisBungee.getDataPublisher().publishAll(messages, jedis);
+					cleaned += players.size();
+				}
+			}
+		}
+
+		try (Jedis jedis = keyspace.getGlobalPool().getResource()) {
+			if (String.valueOf(token).equals(jedis.get(keyspace.getGlobalKey(LeaderElection.TOKEN_KEY))))
+				jedis.hdel(keyspace.getGlobalKey(ProxyLiveness.HEARTBEATS_KEY), proxy);
+		}
+		return cleaned;
+	}
+
+	/**
+	 * Logs out the players of a dead proxy in one shard. The script is given every key it touches, so the players and
+	 * the servers they are on are read first. Anyone who changed server in the meantime is sent back with the server
+	 * they are really on, and tried again.
+	 */
+	private static List<String> cleanUpProxy(String proxy, long token, long timestamp, int shard, Jedis jedis) {
+		Keyspace keyspace = RedisBungee.getKeyspace();
+		String setKey = keyspace.getProxyPlayersKey(proxy, shard);
+		Map<String, String> servers = getServers(jedis.smembers(setKey), jedis);
+		List<String> cleaned = new ArrayList<>();
+
+		do {
+			List<Map.Entry<String, String>> players = new ArrayList<>(servers.entrySet());
+			Map<String, String> retry = new LinkedHashMap<>();
+			int from = 0;
+
+			// Runs at least once, so that the dead proxy is taken out of the live ones even if it had no players.
+			do {
+				List<Map.Entry<String, String>> batch = players.subList(from, Math.min(players.size(), from + CLEANUP_BATCH_SIZE));
+				List<String> keys = new ArrayList<>(4 + batch.size() * 2);
+				keys.add(setKey);
+				keys.add(keyspace.getPlayerCountKey(shard));
+				if (!keyspace.isSharded()) {
+					keys.add(LeaderElection.TOKEN_KEY);
+					keys.add(ProxyLiveness.PROXIES_KEY);
+				}
+
+				List<String> args = new ArrayList<>(4 + batch.size() * 2);
+				args.add(proxy);
+				args.add(String.valueOf(timestamp));
+				args.add(String.valueOf(token));
+				args.add(String.valueOf(keys.size() + 1));
+				for (Map.Entry<String, String> player : batch) {
+					String key = keyspace.getPlayerKey(player.getKey());
+					keys.add(key);
+					keys.add(serverKey(player.getValue(), shard, key));
+					args.add(player.getKey());
+					args.add(player.getValue());
+				}
+
+				@SuppressWarnings("unchecked")
+				List<List<String>> result = (List<List<String>>) RedisBungee.getCleanupProxyScript().eval(jedis, keys, args);
+				cleaned.addAll(result.get(0));
+				List<String> moved = result.get(1);
+				for (int i = 0; i < moved.size(); i += 2) {
+					retry.put(moved.get(i), moved.get(i + 1));
+				}
+				from += CLEANUP_BATCH_SIZE;
+			} while (from < players.size());
+
+			servers = retry;
+		} while (!servers.isEmpty());
+
+		return cleaned;
+	}
+
+	/**
+	 * Get the server each of the given players is on, or an empty string if none.
+	 */
+	private static Map<String, String> getServers(Set<String> players, Jedis jedis) {
+		Keyspace keyspace = RedisBungee.getKeyspace();
+		Map<String, Response<String>> responses = new LinkedHashMap<>();
+		Pipeline pipeline = jedis.pipelined();
+		for (String player : players) {
+			responses.put(player, pipeline.hget(keyspace.getPlayerKey(player), "server"));
+		}
+		pipeline.sync();
+
+		Map<String, String> servers = new LinkedHashMap<>();
+		for (Map.Entry<String, Response<String>> entry : responses.entrySet()) {
+			servers.put(entry.getKey(), Strings.nullToEmpty(entry.getValue().get()));
+		}
+		return servers;
+	}
+
+	/**
+	 * Get the usersOnline set of this proxy, the hash and the player count, all in the player's shard.
+	 */
+	private static List<String> playerKeys(String player) {
+		Keyspace keyspace = RedisBungee.getKeyspace();
+		int shard = keyspace.getShard(player);
+		return ImmutableList.of(keyspace.getProxyPlayersKey(RedisBungee.getConfiguration().getServerId(), shard),
+				keyspace.getPlayerKey(player), keyspace.getPlayerCountKey(shard));
 	}
 
 	public static boolean canUseLua(String redisVersion) {
@@ -0,0 +1,135 @@
+package com.imaginarycode.minecraft.redisbungee.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs blocking lookups on a fixed number of threads with a bounded queue, handing out futures for their results.
+ * <p>
+ * When the queue is full, new tasks fail right away with a {@link RejectedExecutionException} instead of piling up
+ * or blocking the caller.
+ */
+public class AsyncExecutor {
+    private final Logger logger;
+    private final ThreadPoolExecutor pool;
+    private final ListeningExecutorService executor;
+    private final ScheduledExecutorService timer;
+
+    public AsyncExecutor(String name, int threads, int capacity, Logger logger) {
+        this.logger = logger;
+        threads = Math.max(1, threads);
+        this.pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, capacity)),
+                new ThreadFactoryBuilder().setNameFormat(name + " #%d").setDaemon(true).build());
+        this.pool.allowCoreThreadTimeOut(true);
+        this.executor = MoreExecutors.listeningDecorator(pool);
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+                .setNameFormat(name + " Timer").setDaemon(true).build());
+        // Most lookups finish long before they time out, so don't keep their cancelled timeouts around.
+        timer.setRemoveOnCancelPolicy(true);
+        this.timer = timer;
+    }
+
+    public <T> ListenableFuture<T> submit(Callable<T> task) {
+        try {
+            return executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    /**
+     * Runs a task whose result nobody waits for. Failures, including a full queue, are logged.
+     *
+     * @return false if the queue was full and the task was dropped
+     */
+    public boolean execute(final Runnable task) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } catch (Throwable t) {
+                        logger.log(Level.SEVERE, "Error while running an asynchronous task", t);
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            logger.log(Level.WARNING, "Dropped an asynchronous task, " + getQueueDepth() + " tasks are already waiting");
+            return false;
+        }
+    }
+
+    /**
+     * Returns a future that fails with a {@link TimeoutException} if the given future has not completed within the
+     * timeout. The given future is cancelled when that happens.
+     */
+    public <T> ListenableFuture<T> withTimeout(final ListenableFuture<T> future, long timeout, TimeUnit unit) {
+        if (future.isDone())
+            return future;
+
+        final SettableFuture<T> result = SettableFuture.create();
+        final ScheduledFuture<?> timeoutTask = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (result.setException(new TimeoutException("Timed out after waiting for the result")))
+                    future.cancel(true);
+            }
+        }, timeout, unit);
+        Futures.addCallback(future, new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T value) {
+                timeoutTask.cancel(false);
+                result.set(value);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                timeoutTask.cancel(false);
+                result.setException(t);
+            }
+        }, MoreExecutors.directExecutor());
+        return result;
+    }
+
+    /**
+     * Get the number of tasks waiting for a thread.
+     *
+     * @return the number of tasks waiting
+     */
+    public int getQueueDepth() {
+        return pool.getQueue().size();
+    }
+
+    /**
+     * Stops accepting tasks and waits a little for running ones to finish.
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.imaginarycode.minecraft.redisbungee.util;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks on a small, fixed set of worker threads, each with its own bounded queue.
+ * <p>
+ * Tasks dispatched with the same key always run on the same worker, in the order they were dispatched. Workers drain
+ * their queue in batches, so a burst of messages costs no more than one wake-up per batch. When a queue is full,
+ * {@link #dispatch(Object, Runnable)} blocks until there is room again, unless it is called from the worker itself,
+ * which would never make room. The worker then moves its whole queue into a backlog of its own, followed by the task,
+ * so that the task still runs after everything dispatched before it.
+ */
+public class EventDispatcher {
+    private static final int BATCH_SIZE = 64;
+
+    private final Logger logger;
+    private final Worker[] workers;
+    private volatile boolean running = true;
+
+    public EventDispatcher(String name, int threads, int capacity, Logger logger) {
+        this.logger = logger;
+        this.workers = new Worker[Math.max(1, threads)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(name + " #" + (i + 1), Math.max(1, capacity));
+            workers[i].start();
+        }
+    }
+
+    public void dispatch(Object key, Runnable task) {
+        Worker worker = workers[(key.hashCode() & Integer.MAX_VALUE) % workers.length];
+        Task queued = new Task(task, System.currentTimeMillis());
+
+        if (Thread.currentThread() == worker) {
+            // Waiting for our own queue to drain would never finish, so take the queue into the backlog instead.
+            if (!worker.queue.offer(queued)) {
+                worker.queue.drainTo(worker.backlog);
+                worker.backlog.add(queued);
+                worker.backlogChanged();
+            }
+            return;
+        }
+
+        try {
+            worker.queue.put(queued);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while dispatching a task", e);
+        }
+    }
+
+    /**
+     * Get the number of tasks waiting to run on all workers.
+     *
+     * @return the number of tasks waiting
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Worker worker : workers) {
+            depth += worker.queue.size() + worker.backlogSize;
+        }
+        return depth;
+    }
+
+    /**
+     * Get how long the oldest waiting task has been queued for, which is how far behind the workers are.
+     *
+     * @return the lag in milliseconds, or 0 if nothing is waiting
+     */
+    public long getLag() {
+        long now = System.currentTimeMillis();
+        long lag = 0;
+        for (Worker worker : workers) {
+            // Whatever is in the backlog was queued before anything still in the queue.
+            long oldest = worker.backlogOldest;
+            if (oldest == 0) {
+                Task head = worker.queue.peek();
+                if (head != null)
+                    oldest = head.queued;
+            }
+            if (oldest != 0)
+                lag = Math.max(lag, now - oldest);
+        }
+        return lag;
+    }
+
+    /**
+     * Stops the workers once they have run everything already queued.
+     */
+    public void shutdown() {
+        running = false;
+        for (Worker worker : workers) {
+            worker.interrupt();
+        }
+        for (Worker worker : workers) {
+            try {
+                worker.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static class Task {
+        private final Runnable runnable;
+        private final long queued;
+
+        private Task(Runnable runnable, long queued) {
+            this.runnable = runnable;
+            this.queued = queued;
+        }
+    }
+
+    private class Worker extends Thread {
+        private final BlockingQueue<Task> queue;
+        // The tasks taken from the queue that have yet to run, oldest first. Only touched by the worker itself.
+        private final Deque<Task> backlog = new ArrayDeque<>();
+        private volatile int backlogSize = 0;
+        // When the oldest task in the backlog was queued, or 0 if the backlog is empty.
+        private volatile long backlogOldest = 0;
+
+        private Worker(String name, int capacity) {
+            super(name);
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (running || !queue.isEmpty() || !backlog.isEmpty()) {
+                if (backlog.isEmpty()) {
+                    try {
+                        Task first = queue.poll(1, TimeUnit.SECONDS);
+                        if (first == null)
+                            continue;
+                        backlog.add(first);
+                    } catch (InterruptedException e) {
+                        // Interrupted by shutdown(), drain what is left.
+                        if (queue.isEmpty())
+                            break;
+                        continue;
+                    }
+                    queue.drainTo(backlog, BATCH_SIZE - 1);
+                }
+
+                Task task;
+                while ((task = backlog.poll()) != null) {
+                    backlogChanged();
+                    execute(task);
+                }
+            }
+        }
+
+        private void backlogChanged() {
+            backlogSize = backlog.size();
+            Task head = backlog.peek();
+            backlogOldest = head == null ? 0 : head.queued;
+        }
+
+        private void execute(Task task) {
+            try {
+                task.runnable.run();
+            } catch (Throwable t) {
+                logger.log(Level.SEVERE, "Error while running a task on " + getName(), t);
+            }
+        }
+    }
+}
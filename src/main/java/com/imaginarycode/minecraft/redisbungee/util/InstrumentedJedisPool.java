@@ -0,0 +1,75 @@
+package com.imaginarycode.minecraft.redisbungee.util;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+/**
+ * A {@link JedisPool} that keeps track of how long it takes to borrow a connection, how often borrowing times out and
+ * how many connections it creates, so that an exhausted pool shows up before it turns into failed logins.
+ */
+public class InstrumentedJedisPool extends JedisPool {
+    private final LatencyHistogram borrowWait = new LatencyHistogram();
+    private final AtomicLong borrowTimeouts = new AtomicLong();
+    private final AtomicLong borrowFailures = new AtomicLong();
+    private volatile long createdAtLastSample = 0;
+    private volatile long createdLastMinute = 0;
+
+    public InstrumentedJedisPool(GenericObjectPoolConfig poolConfig, String host, int port, int timeout, String password) {
+        super(poolConfig, host, port, timeout, password);
+    }
+
+    @Override
+    public Jedis getResource() {
+        long start = System.nanoTime();
+        try {
+            return super.getResource();
+        } catch (JedisConnectionException e) {
+            if (e.getCause() instanceof NoSuchElementException) {
+                // Every connection stayed in use for longer than the configured maximum wait.
+                borrowTimeouts.incrementAndGet();
+            } else {
+                borrowFailures.incrementAndGet();
+            }
+            throw e;
+        } finally {
+            borrowWait.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Should be called once a minute, to keep track of how quickly connections are being created.
+     */
+    public void sample() {
+        long created = internalPool.getCreatedCount();
+        createdLastMinute = created - createdAtLastSample;
+        createdAtLastSample = created;
+    }
+
+    public Stats getStats() {
+        return new Stats(getNumActive(), getNumIdle(), getNumWaiters(), internalPool.getCreatedCount(),
+                internalPool.getDestroyedCount(), createdLastMinute, borrowTimeouts.get(), borrowFailures.get(),
+                borrowWait.snapshot());
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    public static class Stats {
+        private final int active;
+        private final int idle;
+        private final int waiters;
+        private final long created;
+        private final long destroyed;
+        private final long createdLastMinute;
+        private final long borrowTimeouts;
+        private final long borrowFailures;
+        private final LatencyHistogram.Snapshot borrowWait;
+    }
+}
@@ -1,50 +1,231 @@
 package com.imaginarycode.minecraft.redisbungee.util;
 
-import lombok.Data;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
 
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 // I would use the Guava cache, but can't because I need a few more properties.
+// Entries are evicted in least-recently-used order once the cache is full, expire a fixed time after they were
+// written and, if a refresh time is set, hot entries are reloaded in the background before they expire.
+// Concurrent misses for the same key share a single load.
+// Reads don't take a lock: they only note which key was used in a buffer, and the LRU order is brought up to date from
+// it under the lock the next time an entry is written. Once the buffer is full, further reads aren't noted until then,
+// which only makes eviction slightly less exact.
 public class InternalCache<K, V> {
+    private static final int ACCESS_BUFFER_SIZE = 1024;
+
     private final ConcurrentMap<K, Holder> map = new ConcurrentHashMap<>(128, 0.75f, 4);
+    // The keys of the map from least to most recently used, only kept when there is a maximum size. Every change to
+    // the map and the order is made while holding the order's lock, so that the two always agree.
+    private final LinkedHashMap<K, Boolean> order = new LinkedHashMap<>(128, 0.75f, true);
+    private final Queue<K> accesses = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger accessCount = new AtomicInteger();
     private final long entryWriteExpiry;
+    private final long entryRefresh;
+    private final int maximumSize;
+    private final Executor refreshExecutor;
+    private final long loadTimeout;
+    private final ConcurrentMap<K, FutureTask<V>> loading = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong loadFailures = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
 
     public InternalCache() {
-        this.entryWriteExpiry = 0;
+        this(0);
     }
 
     public InternalCache(long entryWriteExpiry) {
+        this(entryWriteExpiry, 0);
+    }
+
+    public InternalCache(long entryWriteExpiry, int maximumSize) {
+        this(entryWriteExpiry, 0, maximumSize, null);
+    }
+
+    /**
+     * @param entryWriteExpiry how long entries live after they were written, in milliseconds, or 0 to never expire
+     * @param entryRefresh     how long after being written a requested entry is reloaded in the background, in
+     *                         milliseconds, or 0 to never refresh
+     * @param maximumSize      the most entries kept, or 0 for no limit
+     * @param refreshExecutor  runs background refreshes, only required if entryRefresh is set
+     */
+    public InternalCache(long entryWriteExpiry, long entryRefresh, int maximumSize, Executor refreshExecutor) {
+        this(entryWriteExpiry, entryRefresh, maximumSize, refreshExecutor, 0);
+    }
+
+    /**
+     * @param entryWriteExpiry how long entries live after they were written, in milliseconds, or 0 to never expire
+     * @param entryRefresh     how long after being written a requested entry is reloaded in the background, in
+     *                         milliseconds, or 0 to never refresh
+     * @param maximumSize      the most entries kept, or 0 for no limit
+     * @param refreshExecutor  runs background refreshes, only required if entryRefresh is set
+     * @param loadTimeout      how long to wait for a load already started by another thread, in milliseconds, or 0 to
+     *                         wait for as long as it takes
+     */
+    public InternalCache(long entryWriteExpiry, long entryRefresh, int maximumSize, Executor refreshExecutor, long loadTimeout) {
+        if (entryRefresh > 0 && refreshExecutor == null)
+            throw new IllegalArgumentException("refreshing entries requires an executor");
+
         this.entryWriteExpiry = entryWriteExpiry;
+        this.entryRefresh = entryRefresh;
+        this.maximumSize = maximumSize;
+        this.refreshExecutor = refreshExecutor;
+        this.loadTimeout = loadTimeout;
     }
 
-    public V get(K key, Callable<V> loader) throws ExecutionException {
-        Holder value = map.get(key);
+    public V get(final K key, final Callable<V> loader) throws ExecutionException {
+        long now = System.currentTimeMillis();
+        Holder value;
+        boolean refresh = false;
+
+        value = read(key, now);
+
+        if (value != null) {
+            if (entryRefresh > 0 && !value.refreshing && now >= value.written + entryRefresh) {
+                synchronized (value) {
+                    // Only one of the threads that see the entry is due starts the refresh.
+                    if (!value.refreshing) {
+                        value.refreshing = true;
+                        refresh = true;
+                    }
+                }
+            }
+
+            hits.incrementAndGet();
+            if (refresh)
+                scheduleRefresh(key, value, loader);
+            return value.value;
+        }
+
+        misses.incrementAndGet();
+
+        FutureTask<V> task = new FutureTask<>(loader);
+        FutureTask<V> inFlight = loading.putIfAbsent(key, task);
+        if (inFlight != null) {
+            coalesced.incrementAndGet();
+            return await(key, inFlight);
+        }
 
-        if (value == null || (entryWriteExpiry > 0 && System.currentTimeMillis() > value.expiry)) {
-            V freshValue;
+        task.run();
+        V freshValue;
+        try {
+            freshValue = task.get();
+        } catch (InterruptedException e) {
+            // The task has already run, so this can't happen.
+            loading.remove(key, task);
+            Thread.currentThread().interrupt();
+            throw new ExecutionException(e);
+        } catch (ExecutionException e) {
+            loading.remove(key, task);
+            loadFailures.incrementAndGet();
+            throw e;
+        }
+
+        synchronized (order) {
+            // If the key was written or invalidated while we were loading, the value may already be stale, so don't
+            // keep it. Both take the load out of the map, so checking under the lock keeps either from slipping in
+            // between the check and the write.
+            if (loading.remove(key, task) && freshValue != null)
+                write(key, new Holder(freshValue, System.currentTimeMillis()));
+        }
+        return freshValue;
+    }
+
+    private V await(K key, FutureTask<V> inFlight) throws ExecutionException {
+        try {
+            if (loadTimeout > 0)
+                return inFlight.get(loadTimeout, TimeUnit.MILLISECONDS);
+            return inFlight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ExecutionException("Interrupted while waiting for " + key + " to load", e);
+        } catch (TimeoutException e) {
+            throw new ExecutionException("Timed out waiting for " + key + " to load", e);
+        }
+    }
+
+    private V load(Callable<V> loader) throws ExecutionException {
+        try {
+            return loader.call();
+        } catch (Exception e) {
+            loadFailures.incrementAndGet();
+            throw new ExecutionException(e);
+        }
+    }
+
+    private void scheduleRefresh(final K key, final Holder old, final Callable<V> loader) {
+        refreshExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                V freshValue;
+                try {
+                    freshValue = load(loader);
+                } catch (ExecutionException e) {
+                    // Keep serving the old value until it expires, and let the next request try again.
+                    old.refreshing = false;
+                    return;
+                }
+
+                synchronized (order) {
+                    // Don't overwrite anything that was written while we were loading.
+                    if (map.get(key) != old)
+                        return;
 
-            try {
-                freshValue = loader.call();
-            } catch (Exception e) {
-                throw new ExecutionException(e);
+                    if (freshValue == null) {
+                        remove(key);
+                    } else {
+                        write(key, new Holder(freshValue, System.currentTimeMillis()));
+                    }
+                }
+                refreshes.incrementAndGet();
             }
+        });
+    }
 
-            if (freshValue == null)
-                return null;
+    /**
+     * Gets a value only if it is cached and has not expired, without loading it.
+     */
+    public V getIfPresent(K key) {
+        Holder value = read(key, System.currentTimeMillis());
 
-            map.putIfAbsent(key, value = new Holder(freshValue, System.currentTimeMillis() + entryWriteExpiry));
+        if (value == null) {
+            misses.incrementAndGet();
+            return null;
         }
 
+        hits.incrementAndGet();
         return value.value;
     }
 
     public V put(K key, V value) {
-        Holder holder = map.put(key, new Holder(value, System.currentTimeMillis() + entryWriteExpiry));
+        Holder holder;
+
+        synchronized (order) {
+            // A load that is still running read an older value, so it must not overwrite this one.
+            loading.remove(key);
+            holder = write(key, new Holder(value, System.currentTimeMillis()));
+        }
 
         if (holder == null)
             return null;
@@ -53,7 +234,26 @@ public class InternalCache<K, V> {
     }
 
     public void invalidate(K key) {
-        map.remove(key);
+        loading.remove(key);
+        synchronized (order) {
+            remove(key);
+        }
+    }
+
+    public void invalidateAll() {
+        loading.clear();
+        synchronized (order) {
+            map.clear();
+            order.clear();
+        }
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public Stats getStats() {
+        return new Stats(hits.get(), misses.get(), loadFailures.get(), evictions.get(), expirations.get(), refreshes.get(), coalesced.get());
     }
 
     // Run periodically to clean up the cache mappings.
@@ -62,16 +262,114 @@ public class InternalCache<K, V> {
             return;
 
         long fixedReference = System.currentTimeMillis();
-        for (Iterator<Map.Entry<K, Holder>> it = map.entrySet().iterator(); it.hasNext(); ) {
-            Map.Entry<K, Holder> entry = it.next();
-            if (entry.getValue().expiry > fixedReference)
-                it.remove();
+        synchronized (order) {
+            for (Iterator<Map.Entry<K, Holder>> it = map.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<K, Holder> entry = it.next();
+                if (isExpired(entry.getValue(), fixedReference)) {
+                    it.remove();
+                    order.remove(entry.getKey());
+                    expirations.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the entry for a key without taking the lock, unless it has expired and has to be removed.
+     */
+    private Holder read(K key, long now) {
+        Holder value = map.get(key);
+        if (value == null)
+            return null;
+
+        if (isExpired(value, now)) {
+            synchronized (order) {
+                if (map.remove(key, value)) {
+                    order.remove(key);
+                    expirations.incrementAndGet();
+                }
+            }
+            return null;
+        }
+
+        if (maximumSize > 0) {
+            if (accessCount.incrementAndGet() <= ACCESS_BUFFER_SIZE)
+                accesses.add(key);
+            else
+                accessCount.decrementAndGet();
+        }
+        return value;
+    }
+
+    /**
+     * Must be called holding the order's lock.
+     */
+    private Holder write(K key, Holder holder) {
+        Holder old = map.put(key, holder);
+        if (maximumSize <= 0)
+            return old;
+
+        drainAccesses();
+        order.put(key, Boolean.TRUE);
+        while (order.size() > maximumSize) {
+            Iterator<K> eldest = order.keySet().iterator();
+            map.remove(eldest.next());
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+        return old;
+    }
+
+    /**
+     * Must be called holding the order's lock.
+     */
+    private void remove(K key) {
+        map.remove(key);
+        order.remove(key);
+    }
+
+    /**
+     * Moves the keys read since the last write to the most recently used end, in the order they were read.
+     */
+    private void drainAccesses() {
+        K key;
+        while ((key = accesses.poll()) != null) {
+            accessCount.decrementAndGet();
+            // Keys that have since been removed are left out, since get doesn't add anything.
+            order.get(key);
+        }
+    }
+
+    private boolean isExpired(Holder holder, long now) {
+        return entryWriteExpiry > 0 && now > holder.written + entryWriteExpiry;
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    @ToString
+    public static class Stats {
+        private final long hits;
+        private final long misses;
+        private final long loadFailures;
+        private final long evictions;
+        private final long expirations;
+        private final long refreshes;
+        private final long coalesced;
+
+        public double getHitRate() {
+            long requests = hits + misses;
+            return requests == 0 ? 1.0 : (double) hits / requests;
         }
     }
 
-    @Data
     private class Holder {
         private final V value;
-        private final long expiry;
+        private final long written;
+        private volatile boolean refreshing = false;
+
+        private Holder(V value, long written) {
+            this.value = value;
+            this.written = written;
+        }
     }
 }
@@ -0,0 +1,71 @@
+package com.imaginarycode.minecraft.redisbungee.util;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import lombok.RequiredArgsConstructor;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * A {@link RedisBackend} that runs every command on its own pooled connection, on a thread of an
+ * {@link AsyncExecutor}.
+ */
+@RequiredArgsConstructor
+public class JedisBackend implements RedisBackend {
+    private final JedisPool pool;
+    private final AsyncExecutor executor;
+
+    private final Tracer tracer;
+    private final Metrics metrics;
+
+    private abstract class Command<T> implements Callable<T> {
+        private final String name;
+
+        private Command(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public T call() throws Exception {
+            long start = System.nanoTime();
+            Tracer.Span span = tracer.start("command " + name);
+            try (Jedis jedis = pool.getResource()) {
+                span.borrowed();
+                return call(jedis);
+            } finally {
+                span.finish();
+                metrics.recordSince(Metrics.BACKEND_COMMAND_SECONDS, "command", name, start);
+            }
+        }
+
+        protected abstract T call(Jedis jedis);
+    }
+
+    @Override
+    public ListenableFuture<List<String>> hmget(final String key, final String... fields) {
+        return executor.submit(new Command<List<String>>("HMGET") {
+            @Override
+            protected List<String> call(Jedis jedis) {
+                return jedis.hmget(key, fields);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Long> publish(final String channel, final String message) {
+        return executor.submit(new Command<Long>("PUBLISH") {
+            @Override
+            protected Long call(Jedis jedis) {
+                return jedis.publish(channel, message);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        // The pool and executor belong to the plugin.
+    }
+}
@@ -0,0 +1,87 @@
+package com.imaginarycode.minecraft.redisbungee.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * A lock-free histogram of durations with fixed buckets, cheap enough to record every call.
+ */
+public class LatencyHistogram {
+    private static final long[] BOUNDS_MICROS = {
+            100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000, 1000000, 2500000, 5000000
+    };
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS_MICROS.length + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void record(long duration, TimeUnit unit) {
+        long micros = unit.toMicros(duration);
+        int bucket = 0;
+        while (bucket < BOUNDS_MICROS.length && micros > BOUNDS_MICROS[bucket])
+            bucket++;
+
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+
+        long max;
+        while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) {
+            // Retry until we either set the maximum or someone else set a larger one.
+        }
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[buckets.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return new Snapshot(BOUNDS_MICROS.clone(), counts, count.get(), totalMicros.get(), maxMicros.get());
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    public static class Snapshot {
+        /**
+         * The upper bound of each bucket in microseconds. The last bucket, which has no upper bound, is not included.
+         */
+        private final long[] boundsMicros;
+        /**
+         * The number of durations in each bucket, one more than there are bounds.
+         */
+        private final long[] counts;
+        private final long count;
+        private final long totalMicros;
+        private final long maxMicros;
+
+        public double getMeanMillis() {
+            return count == 0 ? 0 : totalMicros / 1000.0 / count;
+        }
+
+        public double getMaxMillis() {
+            return maxMicros / 1000.0;
+        }
+
+        /**
+         * Get the upper bound of the bucket the given percentile falls in.
+         *
+         * @param percentile a percentile between 0 and 100
+         * @return the bound in milliseconds, or the maximum recorded duration if it falls in the last bucket
+         */
+        public double getPercentileMillis(double percentile) {
+            long target = (long) Math.ceil(count * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < boundsMicros.length; i++) {
+                seen += counts[i];
+                if (seen >= target && seen > 0)
+                    return boundsMicros[i] / 1000.0;
+            }
+            return getMaxMillis();
+        }
+    }
+}
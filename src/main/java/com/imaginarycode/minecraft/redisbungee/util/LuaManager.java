@@ -3,6 +3,7 @@ package com.imaginarycode.minecraft.redisbungee.util;
 import com.imaginarycode.minecraft.redisbungee.RedisBungee;
 import lombok.RequiredArgsConstructor;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
 import redis.clients.jedis.exceptions.JedisDataException;
 
 import java.util.List;
@@ -11,34 +12,58 @@ import java.util.List;
 public class LuaManager {
     private final RedisBungee plugin;
 
-    public Script createScript(String script) {
+    /**
+     * Load a script into Redis.
+     *
+     * @param name the name its calls are recorded under in the plugin's {@link Metrics}
+     */
+    public Script createScript(String name, String script) {
         try (Jedis jedis = plugin.getPool().getResource()) {
             String hash = jedis.scriptLoad(script);
-            return new Script(script, hash);
+            return new Script(name, script, hash);
         }
     }
 
     @RequiredArgsConstructor
     public class Script {
+        private final String name;
         private final String script;
         private final String hashed;
 
         public Object eval(List<String> keys, List<String> args) {
+            try (Jedis jedis = plugin.getPool().getResource()) {
+                return eval(jedis, keys, args);
+            }
+        }
+
+        public Object eval(Jedis jedis, List<String> keys, List<String> args) {
             Object data;
+            long start = System.nanoTime();
+            Tracer.Span span = plugin.getTracer().start("script " + name);
 
-            try (Jedis jedis = plugin.getPool().getResource()) {
-                try {
-                    data = jedis.evalsha(hashed, keys, args);
-                } catch (JedisDataException e) {
-                    if (e.getMessage().startsWith("NOSCRIPT")) {
-                        data = jedis.eval(script, keys, args);
-                    } else {
-                        throw e;
-                    }
+            try {
+                data = jedis.evalsha(hashed, keys, args);
+            } catch (JedisDataException e) {
+                if (e.getMessage().startsWith("NOSCRIPT")) {
+                    data = jedis.eval(script, keys, args);
+                } else {
+                    throw e;
                 }
+            } finally {
+                span.finish();
+                plugin.getMetrics().recordSince(Metrics.SCRIPT_SECONDS, "script", name, start);
             }
 
             return data;
         }
+
+        public void eval(Pipeline pipeline, List<String> keys, List<String> args) {
+            // A NOSCRIPT error can't be recovered from in the middle of a pipeline, so send the script itself.
+            // Redis caches it by its hash, so this only costs the extra bytes. Jedis reads a pipelined script's
+            // reply as a string whatever it is, so the reply is left alone.
+            pipeline.eval(script, keys, args);
+            // Its reply only arrives when the whole pipeline is read, so it can be counted but not timed.
+            plugin.getMetrics().increment(Metrics.SCRIPT_PIPELINED, "script", name);
+        }
     }
 }
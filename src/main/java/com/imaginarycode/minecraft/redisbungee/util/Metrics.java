@@ -0,0 +1,235 @@
+package com.imaginarycode.minecraft.redisbungee.util;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms of what RedisBungee spends its time on, which can be written out in the Prometheus
+ * text format.
+ * <p>
+ * Each metric has at most one label, such as the script or subchannel it is about. Recording only touches atomic
+ * counters, so metrics can be recorded on every call.
+ */
+public class Metrics {
+    public static final String LOGIN_SECONDS = "redisbungee_login_duration_seconds";
+    public static final String TASK_SECONDS = "redisbungee_redis_task_duration_seconds";
+    public static final String TASK_FAILURES = "redisbungee_redis_task_connection_failures_total";
+    public static final String SCRIPT_SECONDS = "redisbungee_script_duration_seconds";
+    public static final String SCRIPT_PIPELINED = "redisbungee_script_pipelined_total";
+    public static final String CACHE_LOAD_SECONDS = "redisbungee_cache_load_duration_seconds";
+    public static final String PLAYER_FETCH_SECONDS = "redisbungee_player_fetch_duration_seconds";
+    public static final String PUBSUB_MESSAGES = "redisbungee_pubsub_messages_total";
+    public static final String PUBSUB_HANDLE_SECONDS = "redisbungee_pubsub_handle_duration_seconds";
+    public static final String PLUGIN_MESSAGE_SECONDS = "redisbungee_plugin_message_duration_seconds";
+    public static final String PLUGIN_MESSAGE_REJECTED = "redisbungee_plugin_messages_rejected_total";
+    public static final String BACKEND_COMMAND_SECONDS = "redisbungee_backend_command_duration_seconds";
+
+    private final ConcurrentMap<String, Family<AtomicLong>> counters = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, Family<LatencyHistogram>> histograms = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+    private final Map<String, String> help = new ConcurrentSkipListMap<>();
+
+    /**
+     * Describe a metric, so that the description is exported along with it.
+     */
+    public void describe(String name, String description) {
+        help.put(name, description);
+    }
+
+    public void increment(String name) {
+        counter(name, null, null).incrementAndGet();
+    }
+
+    public void increment(String name, String label, String value) {
+        counter(name, label, value).incrementAndGet();
+    }
+
+    public LatencyHistogram histogram(String name) {
+        return histogram(name, null, null);
+    }
+
+    /**
+     * Get the histogram of the given metric with the given label, creating it if needed.
+     *
+     * @param label the name of the label, or null if the metric has none
+     * @param value the value of the label
+     */
+    public LatencyHistogram histogram(String name, String label, String value) {
+        Family<LatencyHistogram> family = family(histograms, name, label);
+        LatencyHistogram histogram = family.series.get(seriesKey(value));
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = family.series.putIfAbsent(seriesKey(value), created);
+            if (histogram == null)
+                histogram = created;
+        }
+        return histogram;
+    }
+
+    /**
+     * Record how long has passed since the given {@link System#nanoTime()}.
+     */
+    public void recordSince(String name, long startNanos) {
+        histogram(name).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordSince(String name, String label, String value, long startNanos) {
+        histogram(name, label, value).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Export a value that is read when the metrics are written out, such as the size of a queue.
+     */
+    public void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    private AtomicLong counter(String name, String label, String value) {
+        Family<AtomicLong> family = family(counters, name, label);
+        AtomicLong counter = family.series.get(seriesKey(value));
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = family.series.putIfAbsent(seriesKey(value), created);
+            if (counter == null)
+                counter = created;
+        }
+        return counter;
+    }
+
+    private static <T> Family<T> family(ConcurrentMap<String, Family<T>> families, String name, String label) {
+        Family<T> family = families.get(name);
+        if (family == null) {
+            Family<T> created = new Family<>(label);
+            family = families.putIfAbsent(name, created);
+            if (family == null)
+                family = created;
+        }
+        return family;
+    }
+
+    private static String seriesKey(String value) {
+        return value == null ? "" : value;
+    }
+
+    /**
+     * Write every metric in the Prometheus text exposition format. Histograms are exported in seconds.
+     */
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Family<AtomicLong>> entry : counters.entrySet()) {
+            writeHeader(out, entry.getKey(), "counter");
+            Family<AtomicLong> family = entry.getValue();
+            for (Map.Entry<String, AtomicLong> series : family.series.entrySet()) {
+                out.append(entry.getKey()).append(labels(family.label, series.getKey(), null)).append(' ')
+                        .append(series.getValue().get()).append('\n');
+            }
+        }
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            writeHeader(out, entry.getKey(), "gauge");
+            out.append(entry.getKey()).append(' ').append(formatDouble(entry.getValue().get())).append('\n');
+        }
+        for (Map.Entry<String, Family<LatencyHistogram>> entry : histograms.entrySet()) {
+            String name = entry.getKey();
+            writeHeader(out, name, "histogram");
+            Family<LatencyHistogram> family = entry.getValue();
+            for (Map.Entry<String, LatencyHistogram> series : family.series.entrySet()) {
+                LatencyHistogram.Snapshot snapshot = series.getValue().snapshot();
+                long[] bounds = snapshot.getBoundsMicros();
+                long[] counts = snapshot.getCounts();
+                long cumulative = 0;
+                for (int i = 0; i < bounds.length; i++) {
+                    cumulative += counts[i];
+                    out.append(name).append("_bucket").append(labels(family.label, series.getKey(), formatDouble(bounds[i] / 1e6)))
+                            .append(' ').append(cumulative).append('\n');
+                }
+                // The buckets are read one at a time, so count them rather than use the total count, which may differ.
+                cumulative += counts[bounds.length];
+                out.append(name).append("_bucket").append(labels(family.label, series.getKey(), "+Inf"))
+                        .append(' ').append(cumulative).append('\n');
+                out.append(name).append("_sum").append(labels(family.label, series.getKey(), null))
+                        .append(' ').append(formatDouble(snapshot.getTotalMicros() / 1e6)).append('\n');
+                out.append(name).append("_count").append(labels(family.label, series.getKey(), null))
+                        .append(' ').append(cumulative).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Describe every metric in a line of its own, for people rather than Prometheus.
+     */
+    public List<String> summarize() {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Family<AtomicLong>> entry : counters.entrySet()) {
+            for (Map.Entry<String, AtomicLong> series : entry.getValue().series.entrySet()) {
+                lines.add(entry.getKey() + labels(entry.getValue().label, series.getKey(), null) + ": " + series.getValue().get());
+            }
+        }
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            lines.add(entry.getKey() + ": " + formatDouble(entry.getValue().get()));
+        }
+        for (Map.Entry<String, Family<LatencyHistogram>> entry : histograms.entrySet()) {
+            for (Map.Entry<String, LatencyHistogram> series : entry.getValue().series.entrySet()) {
+                LatencyHistogram.Snapshot snapshot = series.getValue().snapshot();
+                lines.add(String.format(Locale.ROOT, "%s%s: %d, mean %.2fms, 99th percentile %.2fms, max %.2fms",
+                        entry.getKey(), labels(entry.getValue().label, series.getKey(), null), snapshot.getCount(),
+                        snapshot.getMeanMillis(), snapshot.getPercentileMillis(99), snapshot.getMaxMillis()));
+            }
+        }
+        return lines;
+    }
+
+    private void writeHeader(StringBuilder out, String name, String type) {
+        String description = help.get(name);
+        if (description != null)
+            out.append("# HELP ").append(name).append(' ').append(description).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String labels(String label, String value, String le) {
+        if (label == null && le == null)
+            return "";
+
+        StringBuilder out = new StringBuilder("{");
+        if (label != null)
+            out.append(label).append("=\"").append(escape(value)).append('"');
+        if (le != null) {
+            if (label != null)
+                out.append(',');
+            out.append("le=\"").append(le).append('"');
+        }
+        return out.append('}').toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String formatDouble(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value))
+            return value > 0 ? "+Inf" : value < 0 ? "-Inf" : "NaN";
+        if (value == 0)
+            return "0";
+        return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+    }
+
+    public interface Gauge {
+        double get();
+    }
+
+    private static class Family<T> {
+        private final String label;
+        private final ConcurrentMap<String, T> series = new ConcurrentSkipListMap<>();
+
+        private Family(String label) {
+            this.label = label;
+        }
+    }
+}
@@ -0,0 +1,512 @@
+package com.imaginarycode.minecraft.redisbungee.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.DecoderException;
+import io.netty.handler.codec.MessageToByteEncoder;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A {@link RedisBackend} that multiplexes commands from every caller over a few long-lived connections.
+ * <p>
+ * Each connection keeps the futures of the commands it has sent in the order they were sent, and completes them as
+ * replies come in, since Redis always replies in order. Commands are written as they arrive and flushed once per
+ * turn of the event loop, so commands sent at the same time go out in a single write.
+ * <p>
+ * Failures are reported with the same exceptions Jedis uses: {@link JedisDataException} for error replies and
+ * {@link JedisConnectionException} when a connection is unavailable or lost. Lost connections, and those Redis
+ * would not authenticate, are re-established in the background.
+ * <p>
+ * Like the socket timeout of Jedis, the timeout bounds both connecting and waiting for a reply. A connection whose
+ * oldest command has gone unanswered for that long is assumed stuck: everything waiting on it fails and it is closed.
+ * Commands are turned away rather than queued once a connection has {@link #MAX_PENDING} of them waiting, or
+ * can't take any more writes.
+ */
+public class NettyRedisBackend implements RedisBackend {
+    /**
+     * How many commands may wait for a reply on each connection.
+     */
+    public static final int MAX_PENDING = 10000;
+    private static final long RECONNECT_DELAY = TimeUnit.SECONDS.toMillis(1);
+    private static final int WRITE_BUFFER_HIGH_WATER_MARK = 1024 * 1024;
+    private static final int WRITE_BUFFER_LOW_WATER_MARK = 512 * 1024;
+    private static final Object NULL_REPLY = new Object();
+    private static final Object INCOMPLETE = new Object();
+
+    private final String host;
+    private final int port;
+    private final String password;
+    private final int timeout;
+    private final Logger logger;
+    private final Tracer tracer;
+    private final Metrics metrics;
+    private final EventLoopGroup group;
+    private final Connection[] connections;
+    private final CountDownLatch ready;
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    public NettyRedisBackend(String host, int port, String password, int timeout, int connections, Logger logger,
+                            Tracer tracer, Metrics metrics) {
+        this.host = host;
+        this.port = port;
+        this.password = password;
+        this.timeout = timeout;
+        this.logger = logger;
+        this.tracer = tracer;
+        this.metrics = metrics;
+        this.group = new NioEventLoopGroup(1, new ThreadFactoryBuilder().setNameFormat("RedisBungee Netty Thread")
+                .setDaemon(true).build());
+        this.connections = new Connection[connections];
+
+        this.ready = new CountDownLatch(connections);
+        for (int i = 0; i < connections; i++) {
+            this.connections[i] = new Connection();
+            this.connections[i].connect();
+        }
+        // Give the connections a chance to come up, so that the first commands don't fail.
+        try {
+            ready.await(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public ListenableFuture<List<String>> hmget(String key, String... fields) {
+        String[] args = new String[fields.length + 2];
+        args[0] = "HMGET";
+        args[1] = key;
+        System.arraycopy(fields, 0, args, 2, fields.length);
+        return Futures.transform(send(args), TO_STRING_LIST, MoreExecutors.directExecutor());
+    }
+
+    @Override
+    public ListenableFuture<Long> publish(String channel, String message) {
+        return Futures.transform(send("PUBLISH", channel, message), TO_LONG, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Get the number of connections that are currently usable.
+     *
+     * @return the number of connected connections
+     */
+    public int getConnectedCount() {
+        int connected = 0;
+        for (Connection connection : connections) {
+            if (connection.handler != null)
+                connected++;
+        }
+        return connected;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Connection connection : connections) {
+            Handler handler = connection.handler;
+            if (handler != null)
+                handler.channel.close().awaitUninterruptibly(timeout);
+        }
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+
+    private ListenableFuture<Object> send(final String... args) {
+        final long sent = System.nanoTime();
+        final Tracer.Span span = tracer.start("command " + args[0]);
+        SettableFuture<Object> future = SettableFuture.create();
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                span.finish();
+                metrics.recordSince(Metrics.BACKEND_COMMAND_SECONDS, "command", args[0], sent);
+            }
+        }, MoreExecutors.directExecutor());
+        if (closed) {
+            future.setException(new JedisConnectionException("The Redis backend has been closed"));
+            return future;
+        }
+
+        // Round-robin over the connections, skipping any that are currently down.
+        int start = next.getAndIncrement() & Integer.MAX_VALUE;
+        for (int i = 0; i < connections.length; i++) {
+            Handler handler = connections[(start + i) % connections.length].handler;
+            if (handler != null) {
+                handler.send(args, future);
+                return future;
+            }
+        }
+
+        future.setException(new JedisConnectionException("Not connected to Redis at " + host + ":" + port));
+        return future;
+    }
+
+    private class Connection {
+        private volatile Handler handler;
+        private boolean warned = false;
+        private boolean connectedOnce = false;
+
+        private void connect() {
+            Bootstrap bootstrap = new Bootstrap()
+                    .group(group)
+                    .channel(NioSocketChannel.class)
+                    .option(ChannelOption.TCP_NODELAY, true)
+                    .option(ChannelOption.SO_KEEPALIVE, true)
+                    .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, timeout)
+                    .option(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, WRITE_BUFFER_HIGH_WATER_MARK)
+                    .option(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, WRITE_BUFFER_LOW_WATER_MARK)
+                    .handler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(SocketChannel ch) throws Exception {
+                            ch.pipeline().addLast(new ReplyDecoder(), new CommandEncoder(), new Handler(Connection.this, ch));
+                        }
+                    });
+
+            bootstrap.connect(host, port).addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (future.isSuccess()) {
+                        warned = false;
+                    } else {
+                        if (!warned) {
+                            logger.log(Level.WARNING, "Unable to connect to Redis at " + host + ":" + port + ", retrying", future.cause());
+                            warned = true;
+                        }
+                        scheduleReconnect();
+                    }
+                }
+            });
+        }
+
+        private void scheduleReconnect() {
+            if (closed)
+                return;
+            group.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (!closed)
+                        connect();
+                }
+            }, RECONNECT_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private class Handler extends SimpleChannelInboundHandler<Object> {
+        private final Connection connection;
+        private final Channel channel;
+        // Only touched from the event loop.
+        private final Queue<Pending> pending = new ArrayDeque<>();
+        private boolean flushScheduled = false;
+        private boolean timeoutScheduled = false;
+        private boolean active = false;
+        // Commands sent to this connection that have not been answered or failed yet, including those still on their
+        // way to the event loop.
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        private final Runnable flushTask = new Runnable() {
+            @Override
+            public void run() {
+                flushScheduled = false;
+                channel.flush();
+            }
+        };
+
+        private final Runnable timeoutTask = new Runnable() {
+            @Override
+            public void run() {
+                timeoutScheduled = false;
+                Pending oldest = pending.peek();
+                if (oldest == null)
+                    return;
+
+                long remaining = oldest.deadline - System.nanoTime();
+                if (remaining > 0) {
+                    scheduleTimeout(remaining);
+                    return;
+                }
+
+                logger.warning("Redis did not reply within " + timeout + "ms, closing the connection");
+                active = false;
+                failAll(new JedisConnectionException("Timed out waiting for a reply from Redis"));
+                channel.close();
+            }
+        };
+
+        private Handler(Connection connection, Channel channel) {
+            this.connection = connection;
+            this.channel = channel;
+        }
+
+        private void send(final String[] args, final SettableFuture<Object> future) {
+            if (outstanding.incrementAndGet() > MAX_PENDING) {
+                outstanding.decrementAndGet();
+                future.setException(new JedisConnectionException("Too many commands waiting for Redis"));
+                return;
+            }
+
+            if (channel.eventLoop().inEventLoop()) {
+                write(args, future);
+                return;
+            }
+            channel.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    write(args, future);
+                }
+            });
+        }
+
+        private void write(String[] args, SettableFuture<Object> future) {
+            if (!active) {
+                outstanding.decrementAndGet();
+                future.setException(new JedisConnectionException("Connection to Redis lost"));
+                return;
+            }
+            if (!channel.isWritable()) {
+                outstanding.decrementAndGet();
+                future.setException(new JedisConnectionException("Too many commands waiting to be sent to Redis"));
+                return;
+            }
+            // The future must be queued in the same order the command is written.
+            pending.add(new Pending(future, timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : 0));
+            if (timeout > 0 && !timeoutScheduled)
+                scheduleTimeout(TimeUnit.MILLISECONDS.toNanos(timeout));
+            channel.write(args);
+            if (!flushScheduled) {
+                // Let every command already waiting on the event loop join this flush.
+                flushScheduled = true;
+                channel.eventLoop().execute(flushTask);
+            }
+        }
+
+        private void scheduleTimeout(long nanos) {
+            timeoutScheduled = true;
+            channel.eventLoop().schedule(timeoutTask, nanos, TimeUnit.NANOSECONDS);
+        }
+
+        private void failAll(Exception cause) {
+            Pending entry;
+            while ((entry = pending.poll()) != null) {
+                outstanding.decrementAndGet();
+                entry.future.setException(cause);
+            }
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            active = true;
+            if (password != null && !password.isEmpty()) {
+                SettableFuture<Object> auth = SettableFuture.create();
+                outstanding.incrementAndGet();
+                write(new String[]{"AUTH", password}, auth);
+                Futures.addCallback(auth, new FutureCallback<Object>() {
+                    @Override
+                    public void onSuccess(Object result) {
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        // Everything sent after AUTH would fail too, so start over on a new connection.
+                        logger.log(Level.SEVERE, "Unable to authenticate with Redis, reconnecting", t);
+                        channel.close();
+                    }
+                }, MoreExecutors.directExecutor());
+            }
+            connection.handler = this;
+            if (!connection.connectedOnce) {
+                connection.connectedOnce = true;
+                ready.countDown();
+            }
+            super.channelActive(ctx);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            active = false;
+            if (connection.handler == this)
+                connection.handler = null;
+
+            failAll(new JedisConnectionException("Connection to Redis lost"));
+
+            if (!closed) {
+                logger.warning("Lost a connection to Redis, reconnecting");
+                connection.scheduleReconnect();
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, Object reply) throws Exception {
+            Pending entry = pending.poll();
+            if (entry == null) {
+                logger.warning("Received a reply from Redis with no command waiting for it");
+                return;
+            }
+            outstanding.decrementAndGet();
+            SettableFuture<Object> future = entry.future;
+
+            if (reply instanceof ErrorReply) {
+                future.setException(new JedisDataException(((ErrorReply) reply).message));
+            } else {
+                future.set(reply == NULL_REPLY ? null : reply);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            logger.log(Level.WARNING, "Error on a Redis connection, closing it", cause);
+            ctx.close();
+        }
+    }
+
+    private static class Pending {
+        private final SettableFuture<Object> future;
+        // The System.nanoTime() by which a reply is expected, if there is a timeout.
+        private final long deadline;
+
+        private Pending(SettableFuture<Object> future, long deadline) {
+            this.future = future;
+            this.deadline = deadline;
+        }
+    }
+
+    private static class CommandEncoder extends MessageToByteEncoder<String[]> {
+        private static final byte[] CRLF = {'\r', '\n'};
+
+        @Override
+        protected void encode(ChannelHandlerContext ctx, String[] args, ByteBuf out) throws Exception {
+            out.writeByte('*');
+            writeNumber(out, args.length);
+            for (String arg : args) {
+                byte[] bytes = arg.getBytes(StandardCharsets.UTF_8);
+                out.writeByte('$');
+                writeNumber(out, bytes.length);
+                out.writeBytes(bytes);
+                out.writeBytes(CRLF);
+            }
+        }
+
+        private static void writeNumber(ByteBuf out, int number) {
+            out.writeBytes(Integer.toString(number).getBytes(StandardCharsets.US_ASCII));
+            out.writeBytes(CRLF);
+        }
+    }
+
+    private static class ReplyDecoder extends ByteToMessageDecoder {
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+            while (in.isReadable()) {
+                int start = in.readerIndex();
+                Object reply = parse(in);
+                if (reply == INCOMPLETE) {
+                    // Wait for the rest of the reply to arrive.
+                    in.readerIndex(start);
+                    return;
+                }
+                out.add(reply == null ? NULL_REPLY : reply);
+            }
+        }
+
+        private static Object parse(ByteBuf in) {
+            int lineEnd = in.indexOf(in.readerIndex(), in.writerIndex(), (byte) '\n');
+            if (lineEnd < 0)
+                return INCOMPLETE;
+
+            byte type = in.readByte();
+            String line = in.toString(in.readerIndex(), lineEnd - 1 - in.readerIndex(), StandardCharsets.UTF_8);
+            in.readerIndex(lineEnd + 1);
+
+            switch (type) {
+                case '+':
+                    return line;
+                case '-':
+                    return new ErrorReply(line);
+                case ':':
+                    return Long.parseLong(line);
+                case '$':
+                    int length = Integer.parseInt(line);
+                    if (length < 0)
+                        return null;
+                    if (in.readableBytes() < length + 2)
+                        return INCOMPLETE;
+                    String value = in.toString(in.readerIndex(), length, StandardCharsets.UTF_8);
+                    in.skipBytes(length + 2);
+                    return value;
+                case '*':
+                    int size = Integer.parseInt(line);
+                    if (size < 0)
+                        return null;
+                    List<Object> elements = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        Object element = parse(in);
+                        if (element == INCOMPLETE)
+                            return INCOMPLETE;
+                        elements.add(element);
+                    }
+                    return elements;
+                default:
+                    throw new DecoderException("Unknown Redis reply type: " + (char) type);
+            }
+        }
+    }
+
+    private static class ErrorReply {
+        private final String message;
+
+        private ErrorReply(String message) {
+            this.message = message;
+        }
+    }
+
+    private static final Function<Object, Long> TO_LONG = new Function<Object, Long>() {
+        @Override
+        public Long apply(Object reply) {
+            return (Long) reply;
+        }
+    };
+
+    private static final Function<Object, List<String>> TO_STRING_LIST = new Function<Object, List<String>>() {
+        @Override
+        public List<String> apply(Object reply) {
+            if (reply == null)
+                return new ArrayList<>();
+            List<String> strings = new ArrayList<>();
+            for (Object element : (List<?>) reply) {
+                strings.add((String) element);
+            }
+            return strings;
+        }
+    };
+}
@@ -0,0 +1,25 @@
+package com.imaginarycode.minecraft.redisbungee.util;
+
+import java.util.List;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Runs Redis commands without tying up the caller.
+ * <p>
+ * {@link JedisBackend} runs each command on a pooled Jedis connection from a thread pool, which is what RedisBungee
+ * has always done. {@link NettyRedisBackend} instead sends commands from any number of callers over a few shared
+ * connections, pipelining whatever is sent at the same time, so that no thread waits for a reply.
+ * <p>
+ * Both trace each command and record how long it took under {@link Metrics#BACKEND_COMMAND_SECONDS}.
+ */
+public interface RedisBackend {
+    ListenableFuture<List<String>> hmget(String key, String... fields);
+
+    ListenableFuture<Long> publish(String channel, String message);
+
+    /**
+     * Fails anything still waiting for a reply and closes the connections, if the backend has its own.
+     */
+    void close();
+}
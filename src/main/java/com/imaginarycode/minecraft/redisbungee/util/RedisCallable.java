@@ -1,16 +1,37 @@
 package com.imaginarycode.minecraft.redisbungee.util;
 
 import com.imaginarycode.minecraft.redisbungee.RedisBungee;
-import lombok.AllArgsConstructor;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.exceptions.JedisConnectionException;
 
 import java.util.concurrent.Callable;
 import java.util.logging.Level;
 
-@AllArgsConstructor
 public abstract class RedisCallable<T> implements Callable<T>, Runnable {
     private final RedisBungee plugin;
+    private final JedisPool pool;
+    private final String operation;
+
+    public RedisCallable(RedisBungee plugin) {
+        this(plugin, plugin.getPool());
+    }
+
+    /**
+     * Runs the task on a connection from the given pool, such as the one holding a player's shard.
+     */
+    public RedisCallable(RedisBungee plugin, JedisPool pool) {
+        this(plugin, pool, "task");
+    }
+
+    /**
+     * @param operation what the task does, which its trace and those of the scripts it runs are recorded under
+     */
+    public RedisCallable(RedisBungee plugin, JedisPool pool, String operation) {
+        this.plugin = plugin;
+        this.pool = pool;
+        this.operation = operation;
+    }
 
     @Override
     public T call() {
@@ -22,9 +43,14 @@ public abstract class RedisCallable<T> implements Callable<T>, Runnable {
     }
 
     private T run(boolean retry) {
-        try (Jedis jedis = plugin.getPool().getResource()) {
+        long start = System.nanoTime();
+        Tracer.Span span = plugin.getTracer().start(operation);
+        String context = plugin.getTracer().setContext(operation);
+        try (Jedis jedis = pool.getResource()) {
+            span.borrowed();
             return call(jedis);
         } catch (JedisConnectionException e) {
+            plugin.getMetrics().increment(Metrics.TASK_FAILURES);
             plugin.getLogger().log(Level.SEVERE, "Unable to get connection", e);
 
             if (!retry) {
@@ -36,6 +62,10 @@ public abstract class RedisCallable<T> implements Callable<T>, Runnable {
                 }
                 run(true);
             }
+        } finally {
+            plugin.getTracer().setContext(context);
+            span.finish();
+            plugin.getMetrics().recordSince(Metrics.TASK_SECONDS, start);
         }
 
         throw new RuntimeException("task failed to run");
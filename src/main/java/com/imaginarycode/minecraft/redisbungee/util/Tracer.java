@@ -0,0 +1,143 @@
+package com.imaginarycode.minecraft.redisbungee.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Logger;
+
+/**
+ * Times Redis operations, splitting the time spent waiting for a pooled connection from the time spent running the
+ * command, so that a slow login can be traced back to what made it slow.
+ * <p>
+ * Operations slower than the threshold are logged along with what they were done for, such as the player logging in
+ * or the plugin message being answered. A sample of all other operations is kept in a ring buffer, as are the most
+ * recent slow ones. Neither takes a lock, so tracing can be left on.
+ */
+public class Tracer {
+    private static final int BUFFER_SIZE = 64;
+
+    private final Logger logger;
+    private final long thresholdNanos;
+    private final int sampleRate;
+    private final Buffer sampled = new Buffer();
+    private final Buffer slow = new Buffer();
+    private final ThreadLocal<String> context = new ThreadLocal<>();
+
+    /**
+     * @param thresholdMillis operations taking longer than this are logged, or never if 0
+     * @param sampleRate one in this many operations is kept, or none if 0
+     */
+    public Tracer(Logger logger, long thresholdMillis, int sampleRate) {
+        this.logger = logger;
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Set what the operations traced on this thread are done for, until it is set back.
+     *
+     * @return the previous context, to restore once done
+     */
+    public String setContext(String value) {
+        String previous = context.get();
+        if (value == null)
+            context.remove();
+        else
+            context.set(value);
+        return previous;
+    }
+
+    /**
+     * Start timing an operation. If it borrows a connection, call {@link Span#borrowed()} once it has one.
+     */
+    public Span start(String operation) {
+        return new Span(operation, context.get(), System.nanoTime());
+    }
+
+    public List<Span> getSampled() {
+        return sampled.toList();
+    }
+
+    public List<Span> getSlow() {
+        return slow.toList();
+    }
+
+    private void finished(Span span) {
+        if (thresholdNanos > 0 && span.getTotalNanos() > thresholdNanos) {
+            slow.add(span);
+            logger.warning("Slow Redis operation: " + span);
+        } else if (sampleRate > 0 && ThreadLocalRandom.current().nextInt(sampleRate) == 0) {
+            sampled.add(span);
+        }
+    }
+
+    public class Span {
+        private final String operation;
+        private final String context;
+        private final long start;
+        private final long startedAt = System.currentTimeMillis();
+        private long borrowedNanos = -1;
+        private long totalNanos = -1;
+
+        private Span(String operation, String context, long start) {
+            this.operation = operation;
+            this.context = context;
+            this.start = start;
+        }
+
+        public void borrowed() {
+            borrowedNanos = System.nanoTime() - start;
+        }
+
+        public void finish() {
+            totalNanos = System.nanoTime() - start;
+            finished(this);
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder(operation);
+            if (context != null)
+                out.append(" (").append(context).append(')');
+            out.append(String.format(Locale.ROOT, " %tT: ", startedAt));
+            if (borrowedNanos >= 0) {
+                out.append(String.format(Locale.ROOT, "waited %.2fms for a connection, ran for %.2fms",
+                        borrowedNanos / 1e6, (totalNanos - borrowedNanos) / 1e6));
+            } else {
+                out.append(String.format(Locale.ROOT, "ran for %.2fms", totalNanos / 1e6));
+            }
+            return out.toString();
+        }
+    }
+
+    private static class Buffer {
+        private final AtomicReferenceArray<Span> spans = new AtomicReferenceArray<>(BUFFER_SIZE);
+        private final AtomicLong next = new AtomicLong();
+
+        private void add(Span span) {
+            spans.set((int) (next.getAndIncrement() % BUFFER_SIZE), span);
+        }
+
+        /**
+         * Get the spans in the buffer, oldest first.
+         */
+        private List<Span> toList() {
+            long end = next.get();
+            List<Span> list = new ArrayList<>(BUFFER_SIZE);
+            for (long i = Math.max(0, end - BUFFER_SIZE); i < end; i++) {
+                Span span = spans.get((int) (i % BUFFER_SIZE));
+                if (span != null)
+                    list.add(span);
+            }
+            return list;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+local call = redis.call
+
+-- KEYS[1] holds the current leader, KEYS[2] the last fencing token handed out.
+-- ARGV[1] is this proxy, ARGV[2] the lease length in milliseconds.
+-- Returns our fencing token if we hold the lease after this call, otherwise 0.
+if call("SET", KEYS[1], ARGV[1], "NX", "PX", ARGV[2]) then
+    return call("INCR", KEYS[2])
+end
+
+if call("GET", KEYS[1]) == ARGV[1] then
+    call("PEXPIRE", KEYS[1], ARGV[2])
+    return tonumber(call("GET", KEYS[2]) or "0")
+end
+
+return 0
@@ -0,0 +1,59 @@
+local call = redis.call
+
+-- KEYS[1] is the usersOnline set of the dead proxy and KEYS[2] the player count. With a single shard, KEYS[3] is the
+-- leader fencing token and KEYS[4] the sorted set of live proxies; otherwise they are in another hash slot and the
+-- caller checks the token itself. Every player to log out then has two keys from KEYS[ARGV[4]] on: their hash, and
+-- the set of players on the server the caller thinks they are on, or their hash again if none.
+-- ARGV[1] is the dead proxy, ARGV[2] the logout timestamp, ARGV[3] the fencing token of the caller and ARGV[4] where
+-- the keys of the players start. Every player then has two arguments: their name and the server the caller thinks
+-- they are on, or an empty string.
+-- Returns the players that were logged out, and the name and real server of every player that was not on the server
+-- the caller thought, for the caller to try again with.
+local proxy = ARGV[1]
+local timestamp = ARGV[2]
+local first = tonumber(ARGV[4])
+
+if first == 5 then
+    -- A leader that lost its lease without noticing must not act any more.
+    if call("GET", KEYS[3]) ~= ARGV[3] then
+        return {{}, {}}
+    end
+
+    call("ZREM", KEYS[4], proxy)
+end
+
+local cleaned = {}
+local retry = {}
+local removed = 0
+
+for i = 5, #ARGV, 2 do
+    local key = KEYS[first + i - 5]
+    local player = ARGV[i]
+    -- They may have already logged in again somewhere else.
+    local owned = call("HGET", key, "proxy") == proxy
+    local server = owned and (call("HGET", key, "server") or "")
+
+    if owned and server ~= ARGV[i + 1] then
+        retry[#retry + 1] = player
+        retry[#retry + 1] = server
+    else
+        if call("SREM", KEYS[1], player) == 1 then
+            removed = removed + 1
+        end
+
+        if owned then
+            if server ~= "" then
+                call("SREM", KEYS[first + i - 4], player)
+            end
+            call("HDEL", key, "server", "ip", "proxy")
+            call("HSET", key, "online", timestamp)
+            cleaned[#cleaned + 1] = player
+        end
+    end
+end
+
+if removed > 0 then
+    call("DECRBY", KEYS[2], removed)
+end
+
+return {cleaned, retry}
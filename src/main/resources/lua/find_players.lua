@@ -0,0 +1,22 @@
+local call = redis.call
+
+-- KEYS[1] is the usersOnline set of this proxy, the rest are those of the other proxies.
+-- For each player, returns -1 if they are no longer in our set, otherwise the index of the first other set they
+-- are in, or 0 if they are in none.
+local result = {}
+
+for i, player in ipairs(ARGV) do
+    local owner = -1
+    if call("SISMEMBER", KEYS[1], player) == 1 then
+        owner = 0
+        for k = 2, #KEYS do
+            if call("SISMEMBER", KEYS[k], player) == 1 then
+                owner = k - 1
+                break
+            end
+        end
+    end
+    result[i] = owner
+end
+
+return result
@@ -0,0 +1,20 @@
+local call = redis.call
+
+-- KEYS[1] is the usersOnline set of this proxy, KEYS[2] the player's hash, KEYS[3] the player count and the rest are
+-- the usersOnline sets of the other proxies.
+-- ARGV[1] is the player, ARGV[2] their address and ARGV[3] this proxy.
+local player = ARGV[1]
+
+for i = 4, #KEYS do
+    if call("SISMEMBER", KEYS[i], player) == 1 then
+        return 0
+    end
+end
+
+if call("SADD", KEYS[1], player) == 1 then
+    call("INCR", KEYS[3])
+end
+
+call("HMSET", KEYS[2], "online", "0", "ip", ARGV[2], "proxy", ARGV[3])
+
+return 1
@@ -0,0 +1,11 @@
+local call = redis.call
+
+local missing = {}
+
+for _, member in ipairs(ARGV) do
+    if call("SISMEMBER", KEYS[1], member) == 0 then
+        missing[#missing + 1] = member
+    end
+end
+
+return missing
@@ -0,0 +1,16 @@
+local call = redis.call
+
+-- KEYS[1] is the set of players on a server and the rest are the hashes of some of its members.
+-- ARGV[1] is the server and the rest are those members, in the same order as their hashes.
+-- Removes the members who are no longer on the server, such as players whose server change was recorded after they
+-- left. Returns how many were removed.
+local server = ARGV[1]
+local removed = 0
+
+for i = 2, #ARGV do
+    if call("HGET", KEYS[i], "server") ~= server then
+        removed = removed + call("SREM", KEYS[1], ARGV[i])
+    end
+end
+
+return removed
@@ -0,0 +1,18 @@
+local call = redis.call
+
+-- KEYS[1] is the player count of a shard and the rest are the usersOnline sets in it of every proxy that may still
+-- have players, alive or not.
+-- Counts them and stores the total in one go, so that no login or logout in between is lost. Returns the total and
+-- 1 if the stored count was wrong, otherwise 0.
+local total = 0
+
+for i = 2, #KEYS do
+    total = total + call("SCARD", KEYS[i])
+end
+
+if tonumber(call("GET", KEYS[1]) or "-1") ~= total then
+    call("SET", KEYS[1], total)
+    return {total, 1}
+end
+
+return {total, 0}
@@ -0,0 +1,9 @@
+local call = redis.call
+
+local player = ARGV[1]
+
+if call("SADD", KEYS[1], player) == 1 then
+    call("INCR", KEYS[3])
+end
+
+call("HMSET", KEYS[2], "online", "0", "ip", ARGV[2], "proxy", ARGV[3])
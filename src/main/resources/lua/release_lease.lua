@@ -0,0 +1,8 @@
+local call = redis.call
+
+if call("GET", KEYS[1]) == ARGV[1] then
+    call("DEL", KEYS[1])
+    return 1
+end
+
+return 0
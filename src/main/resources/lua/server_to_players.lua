@@ -1,18 +1,17 @@
 local call = redis.call
 local ipairs = ipairs
 
+-- KEYS are the hashes of the players to look up and ARGV their names, in the same order. The caller gets them from
+-- the usersOnline sets of the proxies, so that every key touched here is declared.
 local serverToData = {}
 
-for _, proxy in ipairs(ARGV) do
-    local players = call("SMEMBERS", "proxy:" .. proxy .. ":usersOnline")
-    for _, player in ipairs(players) do
-        local server = call("HGET", "player:" .. player, "server")
-        if server then
-            local sz = #serverToData
-            serverToData[sz + 1] = server
-            serverToData[sz + 2] = player
-        end
+for i, key in ipairs(KEYS) do
+    local server = call("HGET", key, "server")
+    if server then
+        local sz = #serverToData
+        serverToData[sz + 1] = server
+        serverToData[sz + 2] = ARGV[i]
     end
 end
 
-return serverToData
\ No newline at end of file
+return serverToData
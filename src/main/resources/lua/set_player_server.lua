@@ -0,0 +1,34 @@
+local call = redis.call
+
+-- KEYS[1] is the player's hash, KEYS[2] the set of players on the new server and KEYS[3] the set of players on the
+-- server the caller thinks they are on. Either set is KEYS[1] again if there is no such server.
+-- ARGV[1] is the player, ARGV[2] the new server or an empty string if they are leaving their server, and ARGV[3]
+-- the server the caller thinks they are on or an empty string. ARGV[4] is the proxy the caller is on.
+-- Nothing is changed unless they are on that server: the server they are really on is returned instead, or an
+-- empty string if none, for the caller to try again with. If they are no longer logged in on that proxy, because
+-- their logout got here first, nothing is changed either and 0 is returned.
+local player = ARGV[1]
+local server = ARGV[2]
+
+local state = call("HMGET", KEYS[1], "server", "proxy")
+if state[2] ~= ARGV[4] then
+    return 0
+end
+
+local old = state[1] or ""
+if old ~= ARGV[3] then
+    return old
+end
+
+if old ~= "" then
+    call("SREM", KEYS[3], player)
+end
+
+if server ~= "" then
+    call("HSET", KEYS[1], "server", server)
+    call("SADD", KEYS[2], player)
+else
+    call("HDEL", KEYS[1], "server")
+end
+
+return false
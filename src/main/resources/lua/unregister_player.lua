@@ -0,0 +1,26 @@
+local call = redis.call
+
+-- KEYS[1] is the usersOnline set of this proxy, KEYS[2] the player's hash, KEYS[3] the player count and KEYS[4] the
+-- set of players on the server the caller thinks they are on, or KEYS[2] again if none.
+-- ARGV[1] is the player, ARGV[2] the logout timestamp and ARGV[3] the server the caller thinks they are on or an
+-- empty string.
+-- Nothing is changed unless they are on that server: the server they are really on is returned instead, or an
+-- empty string if none, for the caller to try again with.
+local player = ARGV[1]
+
+local server = call("HGET", KEYS[2], "server") or ""
+if server ~= ARGV[3] then
+    return server
+end
+
+if call("SREM", KEYS[1], player) == 1 then
+    call("DECR", KEYS[3])
+end
+
+if server ~= "" then
+    call("SREM", KEYS[4], player)
+end
+
+call("HDEL", KEYS[2], "server", "ip", "proxy")
+call("HSET", KEYS[2], "online", ARGV[2])
+return false
@@ -0,0 +1,1062 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.base.Strings;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.net.InetAddresses;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.imaginarycode.minecraft.redisbungee.util.IOUtil;
+import com.imaginarycode.minecraft.redisbungee.util.LatencyHistogram;
+import redis.clients.jedis.*;
+
+import java.lang.reflect.Type;
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Simulates a network of proxies and their players against a Redis server, to find out how much a network of a given
+ * size asks of it before it has to handle one.
+ * <p>
+ * RedisBungee keeps its configuration and scripts in static fields, so several copies of the plugin can't share a
+ * JVM. Instead, each simulated proxy drives the same classes the plugin does wherever they don't need the plugin:
+ * {@link ProxyLiveness} for heartbeats, {@link NetworkState} for its copy of where every player is, including the
+ * periodic snapshot, and {@link DataMessagePublisher} for the messages on <code>redisbungee-data</code>, batched as
+ * configured. The protocol is negotiated from what every proxy advertises on each heartbeat. What is left, the
+ * scripts for logins, server changes and disconnects, the maintenance lease and the integrity check with its cleanup
+ * of lagged proxies and recounts, is done with the same scripts, keys and intervals as the plugin.
+ * <p>
+ * All players first log in as fast as possible, as they would after a restart. Then, for the given duration, random
+ * players change server, or leave and log in again. Run it with
+ * <code>mvn -P benchmarks test-compile exec:java@simulate -Dsimulator.args="--proxies 4 --players 20000"</code>. It
+ * uses database 15 of the Redis server on localhost unless told otherwise, and empties it before and after. Anything
+ * that goes wrong along the way is counted and reported at the end rather than printed as it happens.
+ */
+public class NetworkSimulator {
+    private static final long HEARTBEAT_INTERVAL = TimeUnit.SECONDS.toMillis(3);
+    private static final long INTEGRITY_CHECK_INTERVAL = TimeUnit.MINUTES.toMillis(1) / IntegrityCheck.RUNS_PER_PASS;
+    private static final int MINIMUM_SCAN_COUNT = 100;
+    private static final int CLEANUP_BATCH_SIZE = 500;
+    // As RedisBungee shares them.
+    private static final String LIVE_PROXIES_KEY = "live-proxies";
+    private static final long LIVE_PROXIES_EXPIRY = TimeUnit.SECONDS.toMillis(10);
+    private static final int SERVERS = 20;
+    private static final InetAddress ADDRESS = InetAddresses.forString("203.0.113.42");
+    private static final Type ID_LIST_TYPE = new TypeToken<List<String>>() {
+    }.getType();
+
+    private final Map<String, String> options;
+    private final Keyspace keyspace;
+    private final List<String> proxyIds = new ArrayList<>();
+    private final Set<String> serverNames;
+    private final List<SimulatedProxy> proxies = new ArrayList<>();
+    private final String host;
+    private final int port;
+    private final int database;
+    private final Gson gson = new Gson();
+    private final Logger logger = Logger.getLogger("NetworkSimulator");
+
+    private Script loginPlayer;
+    private Script registerPlayer;
+    private Script setPlayerServer;
+    private Script unregisterPlayer;
+    private Script acquireLease;
+    private Script findPlayers;
+    private Script missingMembers;
+    private Script pruneServerPlayers;
+    private Script recountPlayers;
+    private Script cleanupProxy;
+
+    private final LatencyHistogram loginLatency = new LatencyHistogram();
+    private final LatencyHistogram convergence = new LatencyHistogram();
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong rejectedLogins = new AtomicLong();
+    private final AtomicLong fixes = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private volatile String firstError;
+    // The events of each player, and which of them every other proxy has yet to see.
+    private final ConcurrentMap<String, EventLog> eventLogs = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+
+    private NetworkSimulator(Map<String, String> options) {
+        this.options = options;
+        this.keyspace = new Keyspace(getInt("shards", 1), null);
+        String[] address = get("redis", "localhost:6379").split(":");
+        this.host = address[0];
+        this.port = address.length > 1 ? Integer.parseInt(address[1]) : 6379;
+        this.database = getInt("database", 15);
+        ImmutableSet.Builder<String> servers = ImmutableSet.builder();
+        for (int i = 0; i < SERVERS; i++) {
+            servers.add("server" + i);
+        }
+        this.serverNames = servers.build();
+
+        // The classes we drive log what goes wrong rather than throw it.
+        logger.setUseParentHandlers(false);
+        logger.addHandler(new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                if (record.getLevel().intValue() >= Level.WARNING.intValue())
+                    failed(record.getMessage(), record.getThrown());
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--"))
+                throw new IllegalArgumentException("Expected an option, got " + args[i]);
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        new NetworkSimulator(options).run();
+        System.exit(0);
+    }
+
+    private String get(String option, String def) {
+        String value = options.get(option);
+        return value == null ? def : value;
+    }
+
+    private int getInt(String option, int def) {
+        return Integer.parseInt(get(option, String.valueOf(def)));
+    }
+
+    private void run() throws Exception {
+        int proxyCount = getInt("proxies", 4);
+        int players = getInt("players", 20000);
+        int threads = getInt("threads", 8);
+        int duration = getInt("duration", 60);
+        int rate = getInt("rate", 0);
+        int protocol = getInt("protocol", DataMessageCodec.PROTOCOL_CURRENT);
+
+        for (int i = 0; i < proxyCount; i++) {
+            proxyIds.add("proxy" + i);
+        }
+
+        try (Jedis jedis = connect()) {
+            jedis.flushDB();
+            loginPlayer = new Script("login_player", jedis);
+            registerPlayer = new Script("register_player", jedis);
+            setPlayerServer = new Script("set_player_server", jedis);
+            unregisterPlayer = new Script("unregister_player", jedis);
+            acquireLease = new Script("acquire_lease", jedis);
+            findPlayers = new Script("find_players", jedis);
+            missingMembers = new Script("missing_members", jedis);
+            pruneServerPlayers = new Script("prune_server_players", jedis);
+            recountPlayers = new Script("recount_players", jedis);
+            cleanupProxy = new Script("cleanup_proxy", jedis);
+            // What every proxy advertises when it starts, negotiated on each heartbeat.
+            for (String id : proxyIds) {
+                jedis.hset(keyspace.getGlobalKey(DataMessageCodec.PROTOCOLS_KEY), id, String.valueOf(protocol));
+            }
+        }
+
+        for (int i = 0; i < proxyCount; i++) {
+            SimulatedProxy proxy = new SimulatedProxy(proxyIds.get(i), players / proxyCount, threads,
+                    rate > 0 ? RateLimiter.create((double) rate / proxyCount) : null);
+            proxies.add(proxy);
+            proxy.start();
+        }
+        System.out.println("Simulating " + proxyCount + " proxies with " + players + " players against " + host + ":" +
+                port + " (database " + database + ", " + keyspace.getShards() + " shards, protocol " +
+                DataMessageCodec.getProtocol() + ", " + get("liveness", "hash") + " liveness).");
+
+        // Everyone logs in at once.
+        long commandsBefore = getCommandCount();
+        long started = System.nanoTime();
+        List<Future<?>> ramp = new ArrayList<>();
+        for (SimulatedProxy proxy : proxies) {
+            ramp.addAll(proxy.submit(true));
+        }
+        for (Future<?> future : ramp) {
+            future.get();
+        }
+        double rampSeconds = (System.nanoTime() - started) / 1e9;
+        long rampEvents = events.get();
+        System.out.println(String.format("Logged in %d players in %.1fs (%.0f events/s).", getOnline(), rampSeconds,
+                rampEvents / rampSeconds));
+
+        // Then players come and go.
+        started = System.nanoTime();
+        List<Future<?>> steady = new ArrayList<>();
+        for (SimulatedProxy proxy : proxies) {
+            steady.addAll(proxy.submit(false));
+        }
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(duration);
+        long last = events.get();
+        while (System.currentTimeMillis() < deadline) {
+            Thread.sleep(Math.min(10000, Math.max(1, deadline - System.currentTimeMillis())));
+            long now = events.get();
+            System.out.println(String.format("%d players online, %.0f events/s.", getOnline(),
+                    (now - last) / 10.0));
+            last = now;
+        }
+        running = false;
+        for (Future<?> future : steady) {
+            future.get();
+        }
+        double steadySeconds = (System.nanoTime() - started) / 1e9;
+        long steadyEvents = events.get() - rampEvents;
+
+        // Give the last messages a moment to arrive everywhere.
+        for (SimulatedProxy proxy : proxies) {
+            proxy.flush();
+        }
+        Thread.sleep(1000);
+        long commands = getCommandCount() - commandsBefore;
+        for (SimulatedProxy proxy : proxies) {
+            proxy.stop();
+        }
+
+        int unconverged = 0;
+        for (EventLog log : eventLogs.values()) {
+            synchronized (log) {
+                unconverged += log.pending.size();
+            }
+        }
+        int mismatched = 0;
+        for (SimulatedProxy proxy : proxies) {
+            mismatched += proxy.countMismatches();
+        }
+
+        System.out.println();
+        System.out.println(String.format("Events: %d, %.0f/s while players came and went.", events.get(),
+                steadyEvents / steadySeconds));
+        System.out.println("Login latency: " + describe(loginLatency.snapshot()) +
+                (rejectedLogins.get() > 0 ? " (" + rejectedLogins.get() + " rejected)" : ""));
+        System.out.println(String.format("Redis commands per event: %.1f, including heartbeats, integrity checks, " +
+                "snapshots and commands run by scripts.", (double) commands / events.get()));
+        System.out.println("Time until every proxy saw an event: " + describe(convergence.snapshot()) + ", " +
+                unconverged + " never seen everywhere, " + mismatched + " stale replica entries at the end.");
+        System.out.println("Integrity check fixes: " + fixes.get() + ". Errors: " + errors.get() +
+                (firstError != null ? " (first: " + firstError + ")" : "") + ".");
+
+        try (Jedis jedis = connect()) {
+            jedis.flushDB();
+        }
+    }
+
+    private static String describe(LatencyHistogram.Snapshot snapshot) {
+        return String.format("mean %.2fms, 50th %.2fms, 90th %.2fms, 99th %.2fms, 99.9th %.2fms, max %.2fms",
+                snapshot.getMeanMillis(), snapshot.getPercentileMillis(50), snapshot.getPercentileMillis(90),
+                snapshot.getPercentileMillis(99), snapshot.getPercentileMillis(99.9), snapshot.getMaxMillis());
+    }
+
+    private void failed(String what, Throwable e) {
+        if (errors.incrementAndGet() == 1)
+            firstError = e == null ? what : what + ": " + e;
+    }
+
+    private Jedis connect() {
+        Jedis jedis = new Jedis(host, port);
+        jedis.select(database);
+        return jedis;
+    }
+
+    private int getOnline() {
+        int online = 0;
+        for (SimulatedProxy proxy : proxies) {
+            online += proxy.onlineCount.get();
+        }
+        return online;
+    }
+
+    /**
+     * Get the number of commands Redis has run since it started, from <code>INFO commandstats</code>.
+     */
+    private long getCommandCount() {
+        String info;
+        try (Jedis jedis = connect()) {
+            info = jedis.info("commandstats");
+        }
+        long calls = 0;
+        for (String line : info.split("\r\n")) {
+            int start = line.indexOf("calls=");
+            if (line.startsWith("cmdstat_") && start >= 0) {
+                int end = line.indexOf(',', start);
+                calls += Long.parseLong(line.substring(start + 6, end < 0 ? line.length() : end));
+            }
+        }
+        return calls;
+    }
+
+    private static String readScript(String name) {
+        return IOUtil.readInputStreamAsString(NetworkSimulator.class.getResourceAsStream("/lua/" + name + ".lua"));
+    }
+
+    private void published(DataManager.DataManagerMessage<?> message) {
+        if (proxyIds.size() == 1)
+            return;
+
+        String player = message.getTarget();
+        EventLog log = eventLogs.get(player);
+        if (log == null) {
+            EventLog created = new EventLog();
+            log = eventLogs.putIfAbsent(player, created);
+            if (log == null)
+                log = created;
+        }
+        synchronized (log) {
+            log.pending.put(log.published++, new Pending(System.nanoTime(), proxyIds.size() - 1));
+        }
+    }
+
+    /**
+     * Called when a proxy received the nth event about a player. Messages about a player are all sent by the proxy
+     * they are on, one after the other, so every proxy receives them in the order they were published.
+     */
+    private void received(String player, int sequence) {
+        EventLog log = eventLogs.get(player);
+        if (log == null)
+            return;
+        synchronized (log) {
+            Pending event = log.pending.get(sequence);
+            if (event != null && --event.remaining == 0) {
+                convergence.record(System.nanoTime() - event.published, TimeUnit.NANOSECONDS);
+                log.pending.remove(sequence);
+            }
+        }
+    }
+
+    /**
+     * A script run like the plugin's: by its hash on a connection, or sent whole in a pipeline.
+     */
+    private static class Script {
+        private final String script;
+        private final String hash;
+
+        private Script(String name, Jedis jedis) {
+            this.script = readScript(name);
+            this.hash = jedis.scriptLoad(script);
+        }
+
+        private Object eval(Jedis jedis, List<String> keys, List<String> args) {
+            return jedis.evalsha(hash, keys, args);
+        }
+
+        private void eval(Pipeline pipeline, List<String> keys, List<String> args) {
+            pipeline.eval(script, keys, args);
+        }
+    }
+
+    private static class EventLog {
+        private final Map<Integer, Pending> pending = new HashMap<>();
+        private int published = 0;
+    }
+
+    private static class Pending {
+        private final long published;
+        private int remaining;
+
+        private Pending(long published, int remaining) {
+            this.published = published;
+            this.remaining = remaining;
+        }
+    }
+
+    private class SimulatedProxy {
+        private final String id;
+        private final String[] players;
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private final boolean[] online;
+        private final String[] servers;
+        private final int threads;
+        private final RateLimiter limiter;
+        private final JedisPool pool;
+        private final ExecutorService workers;
+        private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+        private final AtomicInteger onlineCount = new AtomicInteger();
+        private final ProxyLiveness liveness;
+        private final DataMessagePublisher publisher;
+        private final NetworkState networkState;
+        private volatile List<String> serverIds = proxyIds;
+        private volatile long token = 0;
+        private final ConcurrentMap<String, AtomicInteger> seen = new ConcurrentHashMap<>();
+        private final JedisPubSub subscriber = new JedisPubSub() {
+            @Override
+            public void onMessage(String channel, String message) {
+                try {
+                    for (DataManager.DataManagerMessage<?> decoded : DataMessageCodec.decode(message)) {
+                        handle(decoded);
+                    }
+                } catch (RuntimeException e) {
+                    failed("message handling on " + id, e);
+                }
+            }
+        };
+        // The integrity check, as IntegrityCheck keeps it.
+        private String cursor = ScanParams.SCAN_POINTER_START;
+        private int shard = 0;
+        private List<String> suspects = Collections.emptyList();
+
+        private SimulatedProxy(String id, int players, int threads, RateLimiter limiter) {
+            this.id = id;
+            this.players = new String[players];
+            this.online = new boolean[players];
+            this.servers = new String[players];
+            for (int i = 0; i < players; i++) {
+                this.players[i] = id + "-player" + i;
+                indexes.put(this.players[i], i);
+            }
+            this.threads = threads;
+            this.limiter = limiter;
+            JedisPoolConfig config = new JedisPoolConfig();
+            config.setMaxTotal(threads + 4);
+            this.pool = new JedisPool(config, host, port, Protocol.DEFAULT_TIMEOUT, null, database);
+            this.workers = Executors.newFixedThreadPool(threads);
+            this.liveness = new ProxyLiveness(keyspace, id, get("liveness", "hash").equals("ttl"),
+                    TimeUnit.SECONDS.toMillis(getInt("heartbeat-timeout", 10)));
+            this.publisher = new DataMessagePublisher(null, pool, logger, getInt("batch-window", 5),
+                    getInt("batch-max-messages", 200));
+            this.networkState = new NetworkState(new Keyspace(keyspace.getShards(), pool), logger,
+                    new Supplier<List<String>>() {
+                        @Override
+                        public List<String> get() {
+                            return serverIds;
+                        }
+                    }, Suppliers.ofInstance(serverNames));
+        }
+
+        private void start() throws InterruptedException {
+            final CountDownLatch subscribed = new CountDownLatch(1);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try (Jedis jedis = new Jedis(host, port)) {
+                        subscribed.countDown();
+                        jedis.subscribe(subscriber, "redisbungee-data");
+                    }
+                }
+            }, id + " PubSub");
+            thread.setDaemon(true);
+            thread.start();
+            subscribed.await();
+            while (!subscriber.isSubscribed()) {
+                Thread.sleep(10);
+            }
+
+            heartbeat();
+            networkState.reconcile();
+
+            long reconcileInterval = TimeUnit.SECONDS.toMillis(getInt("reconcile-interval", 120));
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    heartbeat();
+                }
+            }, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    integrityCheck();
+                }
+            }, INTEGRITY_CHECK_INTERVAL, INTEGRITY_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    networkState.reconcile();
+                }
+            }, reconcileInterval, reconcileInterval, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Starts the workers. Each owns the players whose index matches it, so no player is ever handled by two
+         * threads at once.
+         */
+        private List<Future<?>> submit(final boolean ramp) {
+            List<Future<?>> futures = new ArrayList<>(threads);
+            for (int t = 0; t < threads; t++) {
+                final int first = t;
+                futures.add(workers.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        Random random = new Random(id.hashCode() * 31 + first);
+                        if (ramp) {
+                            for (int i = first; i < players.length; i += threads) {
+                                acquire();
+                                act(i, random);
+                            }
+                            return null;
+                        }
+                        int owned = (players.length - first + threads - 1) / threads;
+                        while (running && owned > 0) {
+                            acquire();
+                            act(first + random.nextInt(owned) * threads, random);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            return futures;
+        }
+
+        private void acquire() {
+            if (limiter != null)
+                limiter.acquire();
+        }
+
+        private void act(int i, Random random) {
+            try {
+                if (!online[i]) {
+                    login(i, random);
+                } else if (random.nextInt(5) == 0) {
+                    disconnect(i);
+                } else {
+                    changeServer(i, random);
+                }
+            } catch (RuntimeException e) {
+                failed("event of " + players[i], e);
+            }
+        }
+
+        private boolean isOnline(String player) {
+            Integer i = indexes.get(player);
+            return i != null && online[i];
+        }
+
+        private int countMismatches() {
+            // Every replica should agree with the owners about where their players are.
+            int mismatches = 0;
+            for (SimulatedProxy other : proxies) {
+                if (other == this)
+                    continue;
+                for (int i = 0; i < other.players.length; i++) {
+                    String expected = other.online[i] ? other.servers[i] : null;
+                    NetworkState.PlayerEntry entry = networkState.getPlayer(other.players[i]);
+                    if (!Objects.equals(expected, entry == null ? null : entry.getServer()))
+                        mismatches++;
+                }
+            }
+            return mismatches;
+        }
+
+        private void login(int i, Random random) {
+            String player = players[i];
+            List<String> keys = new ArrayList<>(serverIds.size() + 3);
+            keys.addAll(playerKeys(player));
+            keys.addAll(keyspace.getProxyPlayersKeys(serverIds, keyspace.getShard(player)));
+
+            // LoginEvent: the duplicate check and registration in one script.
+            long start = System.nanoTime();
+            Object result;
+            try (Jedis jedis = pool.getResource()) {
+                result = loginPlayer.eval(jedis, keys, ImmutableList.of(player, ADDRESS.getHostAddress(), id));
+            }
+            loginLatency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            if (result == null || (Long) result != 1) {
+                rejectedLogins.incrementAndGet();
+                return;
+            }
+            online[i] = true;
+            onlineCount.incrementAndGet();
+            networkState.playerJoined(player, id, ADDRESS);
+
+            // PostLoginEvent.
+            try (Jedis jedis = pool.getResource()) {
+                publish(new DataManager.DataManagerMessage<>(player, id, DataManager.DataManagerMessage.Action.JOIN,
+                        new DataManager.LoginPayload(ADDRESS)), jedis);
+            }
+            events.incrementAndGet();
+
+            // ServerConnectedEvent for the server they join first.
+            changeServer(i, random);
+        }
+
+        private void changeServer(int i, Random random) {
+            String player = players[i];
+            String server = "server" + random.nextInt(SERVERS);
+            try (Jedis jedis = pool.getResource()) {
+                if (!setServer(player, server, servers[i], jedis))
+                    return;
+                publish(new DataManager.DataManagerMessage<>(player, id, DataManager.DataManagerMessage.Action.SERVER_CHANGE,
+                        new DataManager.ServerChangePayload(server)), jedis);
+            }
+            servers[i] = server;
+            networkState.playerChangedServer(player, server);
+            events.incrementAndGet();
+        }
+
+        private void disconnect(int i) {
+            String player = players[i];
+            try (Jedis jedis = pool.getResource()) {
+                cleanUpPlayer(player, servers[i], jedis);
+            }
+            online[i] = false;
+            servers[i] = null;
+            onlineCount.decrementAndGet();
+            networkState.playerLeft(player);
+            events.incrementAndGet();
+        }
+
+        /**
+         * As {@link RedisUtil#setServer(String, String, String, Jedis)}.
+         */
+        private boolean setServer(String player, String server, String current, Jedis jedis) {
+            int playerShard = keyspace.getShard(player);
+            String key = keyspace.getPlayerKey(player);
+            String expected = Strings.nullToEmpty(current);
+            while (true) {
+                Object result = setPlayerServer.eval(jedis, ImmutableList.of(key, serverKey(server, playerShard, key),
+                        serverKey(expected, playerShard, key)), ImmutableList.of(player, server, expected, id));
+                if (result == null)
+                    return true;
+                if (result instanceof Long)
+                    return false;
+                expected = (String) result;
+            }
+        }
+
+        /**
+         * As {@link RedisUtil#cleanUpPlayer(String, String, Jedis)}.
+         */
+        private void cleanUpPlayer(String player, String current, Jedis jedis) {
+            int playerShard = keyspace.getShard(player);
+            String key = keyspace.getPlayerKey(player);
+            String expected = Strings.nullToEmpty(current);
+            long timestamp = System.currentTimeMillis();
+            while (true) {
+                List<String> keys = new ArrayList<>(playerKeys(player));
+                keys.add(serverKey(expected, playerShard, key));
+                Object result = unregisterPlayer.eval(jedis, keys, ImmutableList.of(player, String.valueOf(timestamp), expected));
+                if (result == null)
+                    break;
+                expected = (String) result;
+            }
+            publish(new DataManager.DataManagerMessage<>(player, id, DataManager.DataManagerMessage.Action.LEAVE,
+                    new DataManager.LogoutPayload(timestamp)), jedis);
+        }
+
+        private String serverKey(String server, int shard, String placeholder) {
+            return server.isEmpty() ? placeholder : keyspace.getServerPlayersKey(server, shard);
+        }
+
+        private void publish(DataManager.DataManagerMessage<?> message, Jedis jedis) {
+            published(message);
+            publisher.publish(message, jedis);
+        }
+
+        private void publish(DataManager.DataManagerMessage<?> message, Pipeline pipeline) {
+            published(message);
+            publisher.publish(message, pipeline);
+        }
+
+        private List<String> playerKeys(String player) {
+            int playerShard = keyspace.getShard(player);
+            return ImmutableList.of(getLocalKey(playerShard), keyspace.getPlayerKey(player),
+                    keyspace.getPlayerCountKey(playerShard));
+        }
+
+        private String getLocalKey(int shard) {
+            return keyspace.getProxyPlayersKey(id, shard);
+        }
+
+        /**
+         * As DataManager handles messages, less the caches and events the simulator has no use for.
+         */
+        private void handle(DataManager.DataManagerMessage<?> message) {
+            String player = message.getTarget();
+            if (message.getSource().equals(id)) {
+                if (message.getAction() == DataManager.DataManagerMessage.Action.LEAVE)
+                    networkState.playerLeft(player);
+                return;
+            }
+
+            switch (message.getAction()) {
+                case JOIN:
+                    networkState.playerJoined(player, message.getSource(),
+                            ((DataManager.LoginPayload) message.getPayload()).getAddress());
+                    break;
+                case LEAVE:
+                    networkState.playerLeft(player);
+                    break;
+                case SERVER_CHANGE:
+                    networkState.playerChangedServer(player, ((DataManager.ServerChangePayload) message.getPayload()).getServer());
+                    break;
+            }
+
+            AtomicInteger count = seen.get(player);
+            if (count == null) {
+                AtomicInteger created = new AtomicInteger();
+                count = seen.putIfAbsent(player, created);
+                if (count == null)
+                    count = created;
+            }
+            received(player, count.getAndIncrement());
+        }
+
+        private void heartbeat() {
+            try (Jedis jedis = pool.getResource()) {
+                List<String> alive = liveness.heartbeat(jedis);
+                token = (Long) acquireLease.eval(jedis, ImmutableList.of(keyspace.getGlobalKey(LeaderElection.LEADER_KEY),
+                        keyspace.getGlobalKey(LeaderElection.TOKEN_KEY)), ImmutableList.of(id, String.valueOf(LeaderElection.LEASE)));
+                List<String> ids = alive != null ? alive : refreshServerIds(jedis);
+                serverIds = ids;
+                DataMessageCodec.negotiate(ids, jedis.hgetAll(keyspace.getGlobalKey(DataMessageCodec.PROTOCOLS_KEY)));
+            } catch (RuntimeException e) {
+                failed("heartbeat of " + id, e);
+            }
+        }
+
+        /**
+         * As RedisBungee works out which proxies are alive: the leader reads the heartbeats and shares the result.
+         */
+        private List<String> refreshServerIds(Jedis jedis) {
+            if (token == 0) {
+                String published = jedis.get(keyspace.getGlobalKey(LIVE_PROXIES_KEY));
+                if (published != null) {
+                    List<String> ids = gson.fromJson(published, ID_LIST_TYPE);
+                    if (!ids.contains(id))
+                        ids = ImmutableList.<String>builder().addAll(ids).add(id).build();
+                    return ids;
+                }
+            }
+
+            List<String> ids = getProxies(jedis, false);
+            if (token != 0)
+                jedis.psetex(keyspace.getGlobalKey(LIVE_PROXIES_KEY), LIVE_PROXIES_EXPIRY, gson.toJson(ids));
+            return ids;
+        }
+
+        /**
+         * As {@link RedisBungee#getCurrentServerIds(boolean, boolean)}.
+         */
+        private List<String> getProxies(Jedis jedis, boolean lagged) {
+            if (liveness.isTtlMode())
+                return liveness.getProxies(jedis, lagged);
+
+            long time = Long.parseLong(jedis.time().get(0));
+            ImmutableList.Builder<String> ids = ImmutableList.builder();
+            for (Map.Entry<String, String> entry : jedis.hgetAll(keyspace.getGlobalKey(ProxyLiveness.HEARTBEATS_KEY)).entrySet()) {
+                long stamp = Long.parseLong(entry.getValue());
+                if (lagged ? time >= stamp + 30 : time <= stamp + 30)
+                    ids.add(entry.getKey());
+            }
+            return ids.build();
+        }
+
+        /**
+         * As {@link IntegrityCheck#run()}, with everything on this proxy's connection pool.
+         */
+        private void integrityCheck() {
+            try (Jedis jedis = pool.getResource()) {
+                if (token != 0)
+                    cleanUpLaggedProxies(jedis);
+                checkSuspects(jedis);
+                if (scan(jedis))
+                    finishPass(jedis);
+            } catch (RuntimeException e) {
+                failed("integrity check of " + id, e);
+            }
+        }
+
+        private void cleanUpLaggedProxies(Jedis jedis) {
+            for (String proxy : getProxies(jedis, true)) {
+                fixes.addAndGet(cleanUpProxy(proxy, jedis));
+            }
+        }
+
+        /**
+         * As {@link RedisUtil#cleanUpProxy(String, long)}.
+         */
+        private int cleanUpProxy(String proxy, Jedis jedis) {
+            long timestamp = System.currentTimeMillis();
+            if (keyspace.isSharded()) {
+                if (!String.valueOf(token).equals(jedis.get(keyspace.getGlobalKey(LeaderElection.TOKEN_KEY))))
+                    return 0;
+                jedis.zrem(keyspace.getGlobalKey(ProxyLiveness.PROXIES_KEY), proxy);
+            }
+
+            int cleaned = 0;
+            for (int s = 0; s < keyspace.getShards(); s++) {
+                List<String> gone = cleanUpProxy(proxy, timestamp, s, jedis);
+                if (gone.isEmpty())
+                    continue;
+
+                List<DataManager.DataManagerMessage<?>> messages = new ArrayList<>(gone.size());
+                for (String player : gone) {
+                    DataManager.DataManagerMessage<?> message = new DataManager.DataManagerMessage<>(player, id,
+                            DataManager.DataManagerMessage.Action.LEAVE, new DataManager.LogoutPayload(timestamp));
+                    published(message);
+                    messages.add(message);
+                }
+                publisher.publishAll(messages, jedis);
+                cleaned += gone.size();
+            }
+
+            if (String.valueOf(token).equals(jedis.get(keyspace.getGlobalKey(LeaderElection.TOKEN_KEY))))
+                jedis.hdel(keyspace.getGlobalKey(ProxyLiveness.HEARTBEATS_KEY), proxy);
+            return cleaned;
+        }
+
+        private List<String> cleanUpProxy(String proxy, long timestamp, int shard, Jedis jedis) {
+            String setKey = keyspace.getProxyPlayersKey(proxy, shard);
+            Map<String, Response<String>> responses = new LinkedHashMap<>();
+            Pipeline pipeline = jedis.pipelined();
+            for (String player : jedis.smembers(setKey)) {
+                responses.put(player, pipeline.hget(keyspace.getPlayerKey(player), "server"));
+            }
+            pipeline.sync();
+            Map<String, String> servers = new LinkedHashMap<>();
+            for (Map.Entry<String, Response<String>> entry : responses.entrySet()) {
+                servers.put(entry.getKey(), Strings.nullToEmpty(entry.getValue().get()));
+            }
+
+            List<String> cleaned = new ArrayList<>();
+            do {
+                List<Map.Entry<String, String>> players = new ArrayList<>(servers.entrySet());
+                Map<String, String> retry = new LinkedHashMap<>();
+                int from = 0;
+
+                do {
+                    List<Map.Entry<String, String>> batch = players.subList(from, Math.min(players.size(), from + CLEANUP_BATCH_SIZE));
+                    List<String> keys = new ArrayList<>(4 + batch.size() * 2);
+                    keys.add(setKey);
+                    keys.add(keyspace.getPlayerCountKey(shard));
+                    if (!keyspace.isSharded()) {
+                        keys.add(LeaderElection.TOKEN_KEY);
+                        keys.add(ProxyLiveness.PROXIES_KEY);
+                    }
+
+                    List<String> args = new ArrayList<>(4 + batch.size() * 2);
+                    args.add(proxy);
+                    args.add(String.valueOf(timestamp));
+                    args.add(String.valueOf(token));
+                    args.add(String.valueOf(keys.size() + 1));
+                    for (Map.Entry<String, String> player : batch) {
+                        String key = keyspace.getPlayerKey(player.getKey());
+                        keys.add(key);
+                        keys.add(serverKey(player.getValue(), shard, key));
+                        args.add(player.getKey());
+                        args.add(player.getValue());
+                    }
+
+                    @SuppressWarnings("unchecked")
+                    List<List<String>> result = (List<List<String>>) cleanupProxy.eval(jedis, keys, args);
+                    cleaned.addAll(result.get(0));
+                    List<String> moved = result.get(1);
+                    for (int i = 0; i < moved.size(); i += 2) {
+                        retry.put(moved.get(i), moved.get(i + 1));
+                    }
+                    from += CLEANUP_BATCH_SIZE;
+                } while (from < players.size());
+
+                servers = retry;
+            } while (!servers.isEmpty());
+            return cleaned;
+        }
+
+        private boolean scan(Jedis jedis) {
+            int budget = Math.max(MINIMUM_SCAN_COUNT, onlineCount.get() / IntegrityCheck.RUNS_PER_PASS);
+            List<String> missing = new ArrayList<>();
+            boolean complete = false;
+
+            while (budget > 0) {
+                ScanResult<String> result = jedis.sscan(getLocalKey(shard), cursor, new ScanParams().count(budget));
+                cursor = result.getStringCursor();
+                budget -= Math.max(1, result.getResult().size());
+
+                for (String player : result.getResult()) {
+                    if (!isOnline(player))
+                        missing.add(player);
+                }
+
+                if (cursor.equals(ScanParams.SCAN_POINTER_START)) {
+                    shard = (shard + 1) % keyspace.getShards();
+                    if (shard == 0) {
+                        complete = true;
+                        break;
+                    }
+                }
+            }
+
+            suspects = missing;
+            return complete;
+        }
+
+        private void checkSuspects(Jedis jedis) {
+            Map<Integer, List<String>> confirmed = new HashMap<>();
+            for (String player : suspects) {
+                if (!isOnline(player)) {
+                    int playerShard = keyspace.getShard(player);
+                    List<String> list = confirmed.get(playerShard);
+                    if (list == null)
+                        confirmed.put(playerShard, list = new ArrayList<>());
+                    list.add(player);
+                }
+            }
+            suspects = Collections.emptyList();
+
+            for (Map.Entry<Integer, List<String>> entry : confirmed.entrySet()) {
+                List<String> keys = new ArrayList<>();
+                keys.add(getLocalKey(entry.getKey()));
+                for (String proxy : serverIds) {
+                    if (!proxy.equals(id))
+                        keys.add(keyspace.getProxyPlayersKey(proxy, entry.getKey()));
+                }
+
+                @SuppressWarnings("unchecked")
+                List<Long> owners = (List<Long>) findPlayers.eval(jedis, keys, entry.getValue());
+                List<String> gone = new ArrayList<>();
+                Pipeline pipeline = jedis.pipelined();
+                for (int i = 0; i < owners.size(); i++) {
+                    String player = entry.getValue().get(i);
+                    long owner = owners.get(i);
+                    if (owner < 0)
+                        continue;
+                    if (owner == 0)
+                        gone.add(player);
+                    else
+                        pipeline.srem(getLocalKey(entry.getKey()), player);
+                    fixes.incrementAndGet();
+                }
+                pipeline.sync();
+
+                for (String player : gone) {
+                    cleanUpPlayer(player, null, jedis);
+                }
+            }
+        }
+
+        private void finishPass(Jedis jedis) {
+            Map<Integer, List<String>> byShard = new HashMap<>();
+            for (int i = 0; i < players.length; i++) {
+                if (!online[i])
+                    continue;
+                int playerShard = keyspace.getShard(players[i]);
+                List<String> list = byShard.get(playerShard);
+                if (list == null)
+                    byShard.put(playerShard, list = new ArrayList<>());
+                list.add(players[i]);
+            }
+
+            List<String> missing = new ArrayList<>();
+            for (Map.Entry<Integer, List<String>> entry : byShard.entrySet()) {
+                @SuppressWarnings("unchecked")
+                List<String> shardMissing = (List<String>) missingMembers.eval(jedis,
+                        Collections.singletonList(getLocalKey(entry.getKey())), entry.getValue());
+                missing.addAll(shardMissing);
+            }
+
+            List<Integer> created = new ArrayList<>();
+            Pipeline pipeline = jedis.pipelined();
+            for (String player : missing) {
+                int i = indexes.get(player);
+                if (!online[i])
+                    continue;
+                registerPlayer.eval(pipeline, playerKeys(player), ImmutableList.of(player, ADDRESS.getHostAddress(), id));
+                publish(new DataManager.DataManagerMessage<>(player, id, DataManager.DataManagerMessage.Action.JOIN,
+                        new DataManager.LoginPayload(ADDRESS)), pipeline);
+                created.add(i);
+                fixes.incrementAndGet();
+            }
+            for (List<String> list : byShard.values()) {
+                for (String player : list) {
+                    String server = servers[indexes.get(player)];
+                    if (server != null)
+                        pipeline.sadd(keyspace.getServerPlayersKey(server, keyspace.getShard(player)), player);
+                }
+            }
+            pipeline.sync();
+
+            for (int i : created) {
+                if (servers[i] != null)
+                    setServer(players[i], servers[i], null, jedis);
+            }
+
+            if (token != 0) {
+                if (correctPlayerCount(jedis))
+                    fixes.incrementAndGet();
+                for (int s = 0; s < keyspace.getShards(); s++) {
+                    for (String server : serverNames) {
+                        fixes.addAndGet(pruneServerSet(server, s, jedis));
+                    }
+                }
+            }
+        }
+
+        /**
+         * As {@link IntegrityCheck}, which prunes the sets of players on each server.
+         */
+        private int pruneServerSet(String server, int shard, Jedis jedis) {
+            String key = keyspace.getServerPlayersKey(server, shard);
+            String cursor = ScanParams.SCAN_POINTER_START;
+            int removed = 0;
+            do {
+                ScanResult<String> result = jedis.sscan(key, cursor, new ScanParams().count(1000));
+                cursor = result.getStringCursor();
+                if (result.getResult().isEmpty())
+                    continue;
+
+                List<String> keys = new ArrayList<>(result.getResult().size() + 1);
+                List<String> args = new ArrayList<>(result.getResult().size() + 1);
+                keys.add(key);
+                args.add(server);
+                for (String player : result.getResult()) {
+                    keys.add(keyspace.getPlayerKey(player));
+                    args.add(player);
+                }
+                removed += ((Long) pruneServerPlayers.eval(jedis, keys, args)).intValue();
+            } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+            return removed;
+        }
+
+        /**
+         * As {@link RedisBungee#correctPlayerCount()}.
+         */
+        private boolean correctPlayerCount(Jedis jedis) {
+            Set<String> ids = new HashSet<>();
+            Pipeline pipeline = jedis.pipelined();
+            Response<Set<String>> heartbeats = pipeline.hkeys(keyspace.getGlobalKey(ProxyLiveness.HEARTBEATS_KEY));
+            Response<Set<String>> alive = pipeline.zrange(keyspace.getGlobalKey(ProxyLiveness.PROXIES_KEY), 0, -1);
+            pipeline.sync();
+            ids.addAll(heartbeats.get());
+            ids.addAll(alive.get());
+            ids.addAll(serverIds);
+
+            boolean drifted = false;
+            for (int s = 0; s < keyspace.getShards(); s++) {
+                List<String> keys = new ArrayList<>(ids.size() + 1);
+                keys.add(keyspace.getPlayerCountKey(s));
+                keys.addAll(keyspace.getProxyPlayersKeys(ids, s));
+                List<?> result = (List<?>) recountPlayers.eval(jedis, keys, Collections.<String>emptyList());
+                if (((Long) result.get(1)) == 1)
+                    drifted = true;
+            }
+            return drifted;
+        }
+
+        /**
+         * Publishes any messages still waiting for their batch.
+         */
+        private void flush() {
+            publisher.shutdown();
+        }
+
+        private void stop() throws InterruptedException {
+            scheduler.shutdown();
+            workers.shutdown();
+            subscriber.unsubscribe();
+            scheduler.awaitTermination(5, TimeUnit.SECONDS);
+            pool.destroy();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.BaseEncoding;
+import com.google.common.net.InetAddresses;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// In the plugin's package, since the codec and the messages are package-private.
+public class DataMessageCodecTest {
+    private static final List<String> PROXIES = ImmutableList.of("test1", "test2");
+
+    @After
+    public void tearDown() {
+        negotiate(null, null);
+    }
+
+    @Test
+    public void testJsonRoundTrip() {
+        negotiate("1", null);
+        Assert.assertEquals(DataMessageCodec.PROTOCOL_JSON, DataMessageCodec.getProtocol());
+        for (DataManager.DataManagerMessage<?> message : messages()) {
+            String encoded = DataMessageCodec.encode(message);
+            Assert.assertTrue(encoded.startsWith("{"));
+            assertDecodesTo(Collections.<DataManager.DataManagerMessage<?>>singletonList(message), encoded);
+        }
+    }
+
+    @Test
+    public void testBinaryRoundTrip() {
+        negotiate("2", "3");
+        Assert.assertEquals(DataMessageCodec.PROTOCOL_BINARY, DataMessageCodec.getProtocol());
+        for (DataManager.DataManagerMessage<?> message : messages()) {
+            String encoded = DataMessageCodec.encode(message);
+            Assert.assertTrue(encoded.startsWith("#"));
+            assertDecodesTo(Collections.<DataManager.DataManagerMessage<?>>singletonList(message), encoded);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNoBatchBeforeEveryoneSupportsIt() {
+        negotiate("2", "3");
+        DataMessageCodec.encodeBatch(messages());
+    }
+
+    @Test
+    public void testBatchRoundTrip() {
+        negotiate("3", "3");
+        Assert.assertEquals(DataMessageCodec.PROTOCOL_BATCH, DataMessageCodec.getProtocol());
+        assertDecodesTo(messages(), DataMessageCodec.encodeBatch(messages()));
+        assertDecodesTo(Collections.<DataManager.DataManagerMessage<?>>emptyList(),
+                DataMessageCodec.encodeBatch(Collections.<DataManager.DataManagerMessage<?>>emptyList()));
+    }
+
+    @Test
+    public void testNegotiation() {
+        negotiate("3", "3");
+        Assert.assertEquals(DataMessageCodec.PROTOCOL_BATCH, DataMessageCodec.getProtocol());
+        // One proxy that has not been upgraded, or never advertised anything, holds everyone back.
+        negotiate("3", "2");
+        Assert.assertEquals(DataMessageCodec.PROTOCOL_BINARY, DataMessageCodec.getProtocol());
+        negotiate("3", "1");
+        Assert.assertEquals(DataMessageCodec.PROTOCOL_JSON, DataMessageCodec.getProtocol());
+        negotiate("3", null);
+        Assert.assertEquals(DataMessageCodec.PROTOCOL_JSON, DataMessageCodec.getProtocol());
+        negotiate("3", "not a number");
+        Assert.assertEquals(DataMessageCodec.PROTOCOL_JSON, DataMessageCodec.getProtocol());
+        // A proxy newer than us doesn't make us send what we don't know.
+        negotiate("3", "4");
+        Assert.assertEquals(DataMessageCodec.PROTOCOL_BATCH, DataMessageCodec.getProtocol());
+    }
+
+    @Test
+    public void testTruncatedFrame() {
+        negotiate("3", "3");
+        byte[] frame = BaseEncoding.base64().decode(DataMessageCodec.encode(messages().get(2)).substring(1));
+        for (int length = 0; length < frame.length; length++) {
+            assertMalformed("#" + BaseEncoding.base64().encode(Arrays.copyOf(frame, length)));
+        }
+
+        byte[] batch = BaseEncoding.base64().decode(DataMessageCodec.encodeBatch(messages()).substring(1));
+        assertMalformed("#" + BaseEncoding.base64().encode(Arrays.copyOf(batch, batch.length - 1)));
+    }
+
+    @Test
+    public void testCorruptFrame() {
+        negotiate("3", "3");
+        byte[] frame = BaseEncoding.base64().decode(DataMessageCodec.encode(messages().get(0)).substring(1));
+        frame[0] = 9;
+        assertMalformed("#" + BaseEncoding.base64().encode(frame));
+        frame[0] = DataMessageCodec.PROTOCOL_BINARY;
+        frame[1] = 42;
+        assertMalformed("#" + BaseEncoding.base64().encode(frame));
+
+        assertMalformed("#not base64!");
+        assertMalformed("[\"not an object\"]");
+        assertMalformed("{\"action\":\"EXPLODE\"}");
+    }
+
+    private static List<DataManager.DataManagerMessage<?>> messages() {
+        return ImmutableList.<DataManager.DataManagerMessage<?>>of(
+                new DataManager.DataManagerMessage<>("Notch", "test1", DataManager.DataManagerMessage.Action.JOIN,
+                        new DataManager.LoginPayload(InetAddresses.forString("203.0.113.42"))),
+                new DataManager.DataManagerMessage<>("jeb_", "test1", DataManager.DataManagerMessage.Action.JOIN,
+                        new DataManager.LoginPayload(InetAddresses.forString("2001:db8::42"))),
+                new DataManager.DataManagerMessage<>("Notch", "test2", DataManager.DataManagerMessage.Action.SERVER_CHANGE,
+                        new DataManager.ServerChangePayload("lobby")),
+                new DataManager.DataManagerMessage<>("Notch", "test2", DataManager.DataManagerMessage.Action.LEAVE,
+                        new DataManager.LogoutPayload(1420070400000L)));
+    }
+
+    /**
+     * Negotiates as if the two proxies advertised the given protocols, or nothing if null.
+     */
+    private static void negotiate(String first, String second) {
+        ImmutableMap.Builder<String, String> advertised = ImmutableMap.builder();
+        if (first != null)
+            advertised.put(PROXIES.get(0), first);
+        if (second != null)
+            advertised.put(PROXIES.get(1), second);
+        DataMessageCodec.negotiate(PROXIES, advertised.build());
+    }
+
+    private static void assertDecodesTo(List<DataManager.DataManagerMessage<?>> expected, String encoded) {
+        List<DataManager.DataManagerMessage<?>> decoded = DataMessageCodec.decode(encoded);
+        Assert.assertEquals(expected.size(), decoded.size());
+        for (int i = 0; i < expected.size(); i++) {
+            DataManager.DataManagerMessage<?> message = expected.get(i);
+            Assert.assertEquals(message.getTarget(), decoded.get(i).getTarget());
+            Assert.assertEquals(message.getSource(), decoded.get(i).getSource());
+            Assert.assertEquals(message.getAction(), decoded.get(i).getAction());
+            Assert.assertEquals(payloadValue(message.getPayload()), payloadValue(decoded.get(i).getPayload()));
+        }
+    }
+
+    private static Object payloadValue(Object payload) {
+        if (payload instanceof DataManager.LoginPayload)
+            return ((DataManager.LoginPayload) payload).getAddress();
+        if (payload instanceof DataManager.ServerChangePayload)
+            return ((DataManager.ServerChangePayload) payload).getServer();
+        return ((DataManager.LogoutPayload) payload).getTimestamp();
+    }
+
+    private static void assertMalformed(String encoded) {
+        try {
+            DataMessageCodec.decode(encoded);
+            Assert.fail("Decoded a malformed message: " + encoded);
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
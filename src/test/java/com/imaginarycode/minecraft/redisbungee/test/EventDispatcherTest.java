@@ -0,0 +1,104 @@
+package com.imaginarycode.minecraft.redisbungee.test;
+
+import com.imaginarycode.minecraft.redisbungee.util.EventDispatcher;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+public class EventDispatcherTest {
+    @Test
+    public void testSameKeyOrderWithFullQueue() throws Exception {
+        final EventDispatcher dispatcher = new EventDispatcher("EventDispatcherTest", 1, 2, Logger.getLogger("EventDispatcherTest"));
+        final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(5);
+
+        try {
+            dispatcher.dispatch("k", new Runnable() {
+                @Override
+                public void run() {
+                    ran.add("first");
+                    done.countDown();
+                    started.countDown();
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    // The queue is full by now, so these can neither wait for room nor jump ahead of it.
+                    dispatcher.dispatch("k", record("third", ran, done));
+                    dispatcher.dispatch("k", record("fourth", ran, done));
+                }
+            });
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            dispatcher.dispatch("k", record("second", ran, done));
+            dispatcher.dispatch("k", record("second, again", ran, done));
+            go.countDown();
+
+            Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals(Arrays.asList("first", "second", "second, again", "third", "fourth"), ran);
+        } finally {
+            dispatcher.shutdown();
+        }
+    }
+
+    @Test
+    public void testLagIncludesBacklog() throws Exception {
+        EventDispatcher dispatcher = new EventDispatcher("EventDispatcherTest", 1, 10, Logger.getLogger("EventDispatcherTest"));
+        final CountDownLatch first = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+
+        try {
+            dispatcher.dispatch("k", await(first, null));
+            // Both are queued while the worker is busy, so it takes them into its backlog together.
+            dispatcher.dispatch("k", await(go, started));
+            dispatcher.dispatch("k", record("last", new ArrayList<String>(), done));
+            first.countDown();
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            Thread.sleep(100);
+            Assert.assertEquals(1, dispatcher.getQueueDepth());
+            Assert.assertTrue(dispatcher.getLag() >= 100);
+
+            go.countDown();
+            Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        } finally {
+            dispatcher.shutdown();
+        }
+    }
+
+    private static Runnable await(final CountDownLatch latch, final CountDownLatch started) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (started != null)
+                    started.countDown();
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
+    private static Runnable record(final String name, final List<String> ran, final CountDownLatch done) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                ran.add(name);
+                done.countDown();
+            }
+        };
+    }
+}
@@ -5,7 +5,10 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class InternalCacheTest {
     @Test
@@ -112,4 +115,258 @@ public class InternalCacheTest {
             throw new AssertionError(e);
         }
     }
+
+    @Test
+    public void testCleanupKeepsFresh() {
+        InternalCache<String, Object> cache = new InternalCache<>(10000);
+        final Object one = new Object();
+        try {
+            Assert.assertEquals(one, cache.get("hi", new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return one;
+                }
+            }));
+            cache.cleanup();
+            Assert.assertEquals(1, cache.size());
+            Assert.assertEquals(one, cache.get("hi", new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    Assert.fail("Cleanup removed a fresh entry!");
+                    return null;
+                }
+            }));
+        } catch (ExecutionException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    public void testMaximumSize() {
+        InternalCache<String, String> cache = new InternalCache<>(0, 2);
+        cache.put("one", "1");
+        cache.put("two", "2");
+        try {
+            // Touch "one", so that "two" is the least recently used entry.
+            Assert.assertEquals("1", cache.get("one", new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    Assert.fail("Cache is using loader!");
+                    return null;
+                }
+            }));
+            cache.put("three", "3");
+            Assert.assertEquals(2, cache.size());
+            Assert.assertEquals(1, cache.getStats().getEvictions());
+            Assert.assertEquals("1", cache.get("one", new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    Assert.fail("Cache evicted the most recently used entry!");
+                    return null;
+                }
+            }));
+            Assert.assertEquals("reloaded", cache.get("two", new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return "reloaded";
+                }
+            }));
+        } catch (ExecutionException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    public void testRefreshAhead() {
+        Executor direct = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        InternalCache<String, String> cache = new InternalCache<>(10000, 50, 0, direct);
+        try {
+            Assert.assertEquals("old", cache.get("hi", new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return "old";
+                }
+            }));
+            try {
+                Thread.sleep(80);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+            // The entry is due for a refresh: the current value is returned, and the new one loaded behind it.
+            Assert.assertEquals("old", cache.get("hi", new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return "new";
+                }
+            }));
+            Assert.assertEquals("new", cache.get("hi", new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    Assert.fail("Cache is using loader!");
+                    return null;
+                }
+            }));
+            Assert.assertEquals(1, cache.getStats().getRefreshes());
+        } catch (ExecutionException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    public void testStats() {
+        InternalCache<String, String> cache = new InternalCache<>(10);
+        Callable<String> loader = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return "hi";
+            }
+        };
+        try {
+            cache.get("hi", loader);
+            cache.get("hi", loader);
+            cache.get("hi", loader);
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+            cache.get("hi", loader);
+        } catch (ExecutionException e) {
+            throw new AssertionError(e);
+        }
+
+        InternalCache.Stats stats = cache.getStats();
+        Assert.assertEquals(2, stats.getHits());
+        Assert.assertEquals(2, stats.getMisses());
+        Assert.assertEquals(1, stats.getExpirations());
+        Assert.assertEquals(0.5, stats.getHitRate(), 0.0001);
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        final InternalCache<String, String> cache = new InternalCache<>(10000);
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger loads = new AtomicInteger();
+        final Callable<String> loader = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                loads.incrementAndGet();
+                loading.countDown();
+                release.await();
+                return "hi";
+            }
+        };
+
+        Thread first = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cache.get("hi", loader);
+                } catch (ExecutionException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        first.start();
+        loading.await();
+
+        // Let the first load finish once we are waiting on it.
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ignored) {
+                }
+                release.countDown();
+            }
+        }).start();
+
+        Assert.assertEquals("hi", cache.get("hi", loader));
+        first.join();
+        Assert.assertEquals(1, loads.get());
+        Assert.assertEquals(1, cache.getStats().getCoalesced());
+    }
+
+    @Test
+    public void testCoalescingTimeout() throws Exception {
+        final InternalCache<String, String> cache = new InternalCache<>(10000, 0, 0, null, 20);
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        Thread first = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cache.get("hi", new Callable<String>() {
+                        @Override
+                        public String call() throws Exception {
+                            loading.countDown();
+                            release.await();
+                            return "hi";
+                        }
+                    });
+                } catch (ExecutionException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        first.start();
+        loading.await();
+
+        try {
+            cache.get("hi", new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    Assert.fail("Cache is using loader!");
+                    return null;
+                }
+            });
+            Assert.fail("Waiting for the load did not time out");
+        } catch (ExecutionException expected) {
+        } finally {
+            release.countDown();
+            first.join();
+        }
+    }
+
+    @Test
+    public void testPutDuringLoad() throws Exception {
+        final InternalCache<String, String> cache = new InternalCache<>(10000);
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        Thread loader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cache.get("hi", new Callable<String>() {
+                        @Override
+                        public String call() throws Exception {
+                            loading.countDown();
+                            release.await();
+                            return "old";
+                        }
+                    });
+                } catch (ExecutionException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        loader.start();
+        loading.await();
+
+        // Written while the slow load is still running, so the load must not replace it.
+        cache.put("hi", "new");
+        release.countDown();
+        loader.join();
+
+        Assert.assertEquals("new", cache.getIfPresent("hi"));
+    }
 }
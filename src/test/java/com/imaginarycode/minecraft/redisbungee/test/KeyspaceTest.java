@@ -0,0 +1,48 @@
+package com.imaginarycode.minecraft.redisbungee.test;
+
+import com.imaginarycode.minecraft.redisbungee.Keyspace;
+import org.junit.Assert;
+import org.junit.Test;
+import redis.clients.util.JedisClusterCRC16;
+
+public class KeyspaceTest {
+    @Test
+    public void testLegacyNames() {
+        Keyspace keyspace = new Keyspace(1, null);
+        Assert.assertFalse(keyspace.isSharded());
+        Assert.assertEquals(0, keyspace.getShard("Notch"));
+        Assert.assertEquals("player:Notch", keyspace.getPlayerKey("Notch"));
+        Assert.assertEquals("proxy:test1:usersOnline", keyspace.getProxyPlayersKey("test1", 0));
+        Assert.assertEquals("server:lobby:usersOnline", keyspace.getServerPlayersKey("lobby", 0));
+        Assert.assertEquals("player-count", keyspace.getPlayerCountKey(0));
+        Assert.assertEquals("heartbeats", keyspace.getGlobalKey("heartbeats"));
+        Assert.assertEquals("heartbeats", keyspace.fromGlobalKey("heartbeats"));
+    }
+
+    @Test
+    public void testShardedNames() {
+        Keyspace keyspace = new Keyspace(16, null);
+        int shard = keyspace.getShard("Notch");
+        Assert.assertTrue(shard >= 0 && shard < 16);
+        Assert.assertEquals("player:{" + shard + "}:Notch", keyspace.getPlayerKey("Notch"));
+        Assert.assertEquals("proxy:{3}:test1:usersOnline", keyspace.getProxyPlayersKey("test1", 3));
+        Assert.assertEquals("server:{3}:lobby:usersOnline", keyspace.getServerPlayersKey("lobby", 3));
+        Assert.assertEquals("player-count:{3}", keyspace.getPlayerCountKey(3));
+        Assert.assertEquals("heartbeats:{global}", keyspace.getGlobalKey("heartbeats"));
+        Assert.assertEquals("heartbeats", keyspace.fromGlobalKey("heartbeats:{global}"));
+        Assert.assertNull(keyspace.fromGlobalKey("proxy:test1:alive"));
+    }
+
+    @Test
+    public void testShardSharesHashSlot() {
+        // Every key a script touches for one player must be in the same hash slot.
+        Keyspace keyspace = new Keyspace(16, null);
+        for (String player : new String[]{"Notch", "jeb_", "Dinnerbone", "md_5"}) {
+            int shard = keyspace.getShard(player);
+            int slot = JedisClusterCRC16.getSlot(keyspace.getPlayerKey(player));
+            Assert.assertEquals(slot, JedisClusterCRC16.getSlot(keyspace.getProxyPlayersKey("test1", shard)));
+            Assert.assertEquals(slot, JedisClusterCRC16.getSlot(keyspace.getServerPlayersKey("lobby", shard)));
+            Assert.assertEquals(slot, JedisClusterCRC16.getSlot(keyspace.getPlayerCountKey(shard)));
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.imaginarycode.minecraft.redisbungee.test;
+
+import com.imaginarycode.minecraft.redisbungee.util.Metrics;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class MetricsTest {
+    @Test
+    public void testCounters() {
+        Metrics metrics = new Metrics();
+        metrics.describe("test_messages_total", "Messages.");
+        metrics.increment("test_messages_total", "channel", "a\"b");
+        metrics.increment("test_messages_total", "channel", "a\"b");
+        metrics.increment("test_failures_total");
+
+        String text = metrics.toPrometheus();
+        Assert.assertTrue(text.contains("# HELP test_messages_total Messages.\n# TYPE test_messages_total counter\n"));
+        Assert.assertTrue(text.contains("test_messages_total{channel=\"a\\\"b\"} 2\n"));
+        Assert.assertTrue(text.contains("test_failures_total 1\n"));
+    }
+
+    @Test
+    public void testHistogram() {
+        Metrics metrics = new Metrics();
+        metrics.histogram("test_seconds", "script", "login").record(200, TimeUnit.MICROSECONDS);
+        metrics.histogram("test_seconds", "script", "login").record(3, TimeUnit.SECONDS);
+
+        String text = metrics.toPrometheus();
+        Assert.assertTrue(text.contains("# TYPE test_seconds histogram\n"));
+        Assert.assertTrue(text.contains("test_seconds_bucket{script=\"login\",le=\"0.0001\"} 0\n"));
+        Assert.assertTrue(text.contains("test_seconds_bucket{script=\"login\",le=\"0.00025\"} 1\n"));
+        Assert.assertTrue(text.contains("test_seconds_bucket{script=\"login\",le=\"2.5\"} 1\n"));
+        Assert.assertTrue(text.contains("test_seconds_bucket{script=\"login\",le=\"5\"} 2\n"));
+        Assert.assertTrue(text.contains("test_seconds_bucket{script=\"login\",le=\"+Inf\"} 2\n"));
+        Assert.assertTrue(text.contains("test_seconds_sum{script=\"login\"} 3.0002\n"));
+        Assert.assertTrue(text.contains("test_seconds_count{script=\"login\"} 2\n"));
+        Assert.assertEquals(1, metrics.summarize().size());
+    }
+}
@@ -0,0 +1,397 @@
+package com.imaginarycode.minecraft.redisbungee.test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.imaginarycode.minecraft.redisbungee.util.AsyncExecutor;
+import com.imaginarycode.minecraft.redisbungee.util.JedisBackend;
+import com.imaginarycode.minecraft.redisbungee.util.Metrics;
+import com.imaginarycode.minecraft.redisbungee.util.NettyRedisBackend;
+import com.imaginarycode.minecraft.redisbungee.util.RedisBackend;
+import com.imaginarycode.minecraft.redisbungee.util.Tracer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+public class RedisBackendTest {
+    private static final Logger LOGGER = Logger.getLogger("RedisBackendTest");
+
+    private FakeRedisServer server;
+    private Metrics metrics;
+    private Tracer tracer;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new FakeRedisServer();
+        metrics = new Metrics();
+        tracer = new Tracer(LOGGER, 0, 0);
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        server.close();
+    }
+
+    @Test
+    public void testJedisBackend() throws Exception {
+        JedisPool pool = new JedisPool(new JedisPoolConfig(), "127.0.0.1", server.getPort(), 2000);
+        AsyncExecutor executor = new AsyncExecutor("RedisBackendTest", 4, 100, LOGGER);
+        try {
+            testCommands(new JedisBackend(pool, executor, tracer, metrics));
+        } finally {
+            executor.shutdown();
+            pool.destroy();
+        }
+    }
+
+    @Test
+    public void testNettyBackend() throws Exception {
+        NettyRedisBackend backend = new NettyRedisBackend("127.0.0.1", server.getPort(), "secret", 2000, 2, LOGGER, tracer, metrics);
+        try {
+            Assert.assertEquals(2, backend.getConnectedCount());
+            testCommands(backend);
+            Assert.assertEquals(2, server.getAuthenticated());
+        } finally {
+            backend.close();
+        }
+    }
+
+    @Test
+    public void testNettyAuthFailure() throws Exception {
+        server.setPassword("secret");
+        NettyRedisBackend backend = new NettyRedisBackend("127.0.0.1", server.getPort(), "wrong", 2000, 1, LOGGER, tracer, metrics);
+        try {
+            // The connection Redis would not authenticate is closed and replaced, rather than kept around unusable.
+            long deadline = System.currentTimeMillis() + 5000;
+            while (server.getConnections() < 2) {
+                Assert.assertTrue("Did not reconnect", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(0, server.getAuthenticated());
+        } finally {
+            backend.close();
+        }
+    }
+
+    @Test
+    public void testNettyMultiplexing() throws Exception {
+        final NettyRedisBackend backend = new NettyRedisBackend("127.0.0.1", server.getPort(), null, 2000, 1, LOGGER, tracer, metrics);
+        try {
+            for (int i = 0; i < 100; i++) {
+                server.set("player:" + i, "server", "server" + i);
+            }
+
+            // Many threads share the one connection; every reply must still reach the command that asked for it.
+            ExecutorService threads = Executors.newFixedThreadPool(8);
+            List<Future<List<ListenableFuture<List<String>>>>> submitted = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                submitted.add(threads.submit(new Callable<List<ListenableFuture<List<String>>>>() {
+                    @Override
+                    public List<ListenableFuture<List<String>>> call() throws Exception {
+                        List<ListenableFuture<List<String>>> futures = new ArrayList<>();
+                        for (int i = 0; i < 1000; i++) {
+                            futures.add(backend.hmget("player:" + (i % 100), "server"));
+                        }
+                        return futures;
+                    }
+                }));
+            }
+
+            for (Future<List<ListenableFuture<List<String>>>> thread : submitted) {
+                List<ListenableFuture<List<String>>> futures = thread.get();
+                for (int i = 0; i < futures.size(); i++) {
+                    Assert.assertEquals(Collections.singletonList("server" + (i % 100)), futures.get(i).get(5, TimeUnit.SECONDS));
+                }
+            }
+            threads.shutdown();
+            Assert.assertEquals(1, server.getConnections());
+        } finally {
+            backend.close();
+        }
+    }
+
+    @Test
+    public void testNettyConnectionLoss() throws Exception {
+        NettyRedisBackend backend = new NettyRedisBackend("127.0.0.1", server.getPort(), null, 2000, 1, LOGGER, tracer, metrics);
+        try {
+            Assert.assertEquals(1, backend.getConnectedCount());
+            // The connection can be up before the server has finished accepting it.
+            while (server.getConnections() == 0) {
+                Thread.sleep(10);
+            }
+            server.close();
+            try {
+                backend.hmget("key", "field").get(5, TimeUnit.SECONDS);
+                Assert.fail("Expected the command to fail");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof JedisConnectionException);
+            }
+        } finally {
+            backend.close();
+        }
+    }
+
+    @Test
+    public void testNettyCommandTimeout() throws Exception {
+        NettyRedisBackend backend = new NettyRedisBackend("127.0.0.1", server.getPort(), null, 200, 1, LOGGER, tracer, metrics);
+        try {
+            Assert.assertEquals(1, backend.getConnectedCount());
+            server.setStalled(true);
+            List<ListenableFuture<List<String>>> futures = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                futures.add(backend.hmget("key", "field"));
+            }
+            for (ListenableFuture<List<String>> future : futures) {
+                try {
+                    future.get(5, TimeUnit.SECONDS);
+                    Assert.fail("Expected the command to time out");
+                } catch (ExecutionException e) {
+                    Assert.assertTrue(e.getCause() instanceof JedisConnectionException);
+                }
+            }
+
+            // The stuck connection was closed, and is replaced.
+            server.setStalled(false);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (server.getConnections() < 2 || backend.getConnectedCount() == 0) {
+                Assert.assertTrue("Did not reconnect", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            server.set("key", "field", "value");
+            Assert.assertEquals(Collections.singletonList("value"), backend.hmget("key", "field").get(5, TimeUnit.SECONDS));
+        } finally {
+            backend.close();
+        }
+    }
+
+    @Test
+    public void testNettyMaxPending() throws Exception {
+        NettyRedisBackend backend = new NettyRedisBackend("127.0.0.1", server.getPort(), null, 10000, 1, LOGGER, tracer, metrics);
+        try {
+            Assert.assertEquals(1, backend.getConnectedCount());
+            server.setStalled(true);
+            for (int i = 0; i < NettyRedisBackend.MAX_PENDING; i++) {
+                backend.hmget("key", "field");
+            }
+            ListenableFuture<List<String>> rejected = backend.hmget("key", "field");
+            Assert.assertTrue("Expected the command to be turned away", rejected.isDone());
+            try {
+                rejected.get();
+                Assert.fail("Expected the command to be turned away");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof JedisConnectionException);
+            }
+        } finally {
+            backend.close();
+        }
+    }
+
+    private void testCommands(RedisBackend backend) throws Exception {
+        server.set("player:test", "server", "lobby");
+        server.set("player:test", "proxy", "test1");
+        server.set("string", "value");
+
+        Assert.assertEquals(Arrays.asList("lobby", "test1", null),
+                backend.hmget("player:test", "server", "proxy", "ip").get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList(null, null), backend.hmget("missing", "server", "proxy").get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Long.valueOf(0), backend.publish("channel", "message").get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Collections.singletonList("channel:message"), server.getPublished());
+        Assert.assertEquals(2, metrics.histogram(Metrics.BACKEND_COMMAND_SECONDS, "command", "HMGET").snapshot().getCount());
+
+        try {
+            backend.hmget("string", "server").get(5, TimeUnit.SECONDS);
+            Assert.fail("Expected a WRONGTYPE error");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof JedisDataException);
+        }
+    }
+
+    /**
+     * Just enough of Redis to exercise the backends: HMGET, PUBLISH and AUTH, over real sockets.
+     */
+    private static class FakeRedisServer implements Closeable {
+        private final ServerSocket socket;
+        private final Map<String, Object> data = new ConcurrentHashMap<>();
+        private final List<String> published = new CopyOnWriteArrayList<>();
+        private final List<Socket> clients = new CopyOnWriteArrayList<>();
+        private final AtomicInteger authenticated = new AtomicInteger();
+        private volatile boolean stalled = false;
+        private volatile String password;
+
+        private FakeRedisServer() throws IOException {
+            socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            Thread acceptor = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!socket.isClosed()) {
+                        try {
+                            final Socket client = socket.accept();
+                            clients.add(client);
+                            Thread handler = new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    serve(client);
+                                }
+                            });
+                            handler.setDaemon(true);
+                            handler.start();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int getPort() {
+            return socket.getLocalPort();
+        }
+
+        int getConnections() {
+            return clients.size();
+        }
+
+        int getAuthenticated() {
+            return authenticated.get();
+        }
+
+        List<String> getPublished() {
+            return published;
+        }
+
+        void setPassword(String password) {
+            this.password = password;
+        }
+
+        /**
+         * Stop answering commands, as a Redis server stuck on a slow command would.
+         */
+        void setStalled(boolean stalled) {
+            this.stalled = stalled;
+        }
+
+        void set(String key, String value) {
+            data.put(key, value);
+        }
+
+        @SuppressWarnings("unchecked")
+        void set(String key, String field, String value) {
+            if (!data.containsKey(key))
+                data.put(key, new ConcurrentHashMap<String, String>());
+            ((Map<String, String>) data.get(key)).put(field, value);
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+            for (Socket client : clients) {
+                client.close();
+            }
+        }
+
+        private void serve(Socket client) {
+            try (InputStream in = new BufferedInputStream(client.getInputStream());
+                 OutputStream out = new BufferedOutputStream(client.getOutputStream())) {
+                while (true) {
+                    List<String> command = readCommand(in);
+                    if (command == null)
+                        return;
+                    if (stalled)
+                        continue;
+                    out.write(execute(command).getBytes(StandardCharsets.UTF_8));
+                    // Only flush once everything already sent to us has been answered, like Redis does.
+                    if (in.available() == 0)
+                        out.flush();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private String execute(List<String> command) {
+            String name = command.get(0).toUpperCase();
+            Object value = command.size() > 1 ? data.get(command.get(1)) : null;
+            switch (name) {
+                case "PING":
+                    return "+PONG\r\n";
+                case "AUTH":
+                    if (password != null && !password.equals(command.get(1)))
+                        return "-ERR invalid password\r\n";
+                    authenticated.incrementAndGet();
+                    return "+OK\r\n";
+                case "HMGET": {
+                    if (value != null && !(value instanceof Map))
+                        return wrongType();
+                    StringBuilder reply = new StringBuilder("*").append(command.size() - 2).append("\r\n");
+                    for (String field : command.subList(2, command.size())) {
+                        reply.append(bulk(value == null ? null : ((Map<String, String>) value).get(field)));
+                    }
+                    return reply.toString();
+                }
+                case "PUBLISH":
+                    published.add(command.get(1) + ":" + command.get(2));
+                    return ":0\r\n";
+                default:
+                    return "-ERR unknown command '" + command.get(0) + "'\r\n";
+            }
+        }
+
+        private static String wrongType() {
+            return "-WRONGTYPE Operation against a key holding the wrong kind of value\r\n";
+        }
+
+        private static String bulk(String value) {
+            if (value == null)
+                return "$-1\r\n";
+            return "$" + value.getBytes(StandardCharsets.UTF_8).length + "\r\n" + value + "\r\n";
+        }
+
+        private static List<String> readCommand(InputStream in) throws IOException {
+            String header = readLine(in);
+            if (header == null)
+                return null;
+
+            int count = Integer.parseInt(header.substring(1));
+            List<String> command = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int length = Integer.parseInt(readLine(in).substring(1));
+                byte[] bytes = new byte[length + 2];
+                int read = 0;
+                while (read < bytes.length) {
+                    int n = in.read(bytes, read, bytes.length - read);
+                    if (n < 0)
+                        throw new EOFException();
+                    read += n;
+                }
+                command.add(new String(bytes, 0, length, StandardCharsets.UTF_8));
+            }
+            return command;
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0)
+                    return null;
+                if (b != '\r')
+                    line.write(b);
+            }
+            return line.toString("UTF-8");
+        }
+    }
+}
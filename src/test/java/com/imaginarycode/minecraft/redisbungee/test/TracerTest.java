@@ -0,0 +1,40 @@
+package com.imaginarycode.minecraft.redisbungee.test;
+
+import com.imaginarycode.minecraft.redisbungee.util.Tracer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+public class TracerTest {
+    @Test
+    public void testSlowOperations() throws Exception {
+        Tracer tracer = new Tracer(Logger.getLogger("TracerTest"), 5, 0);
+        String previous = tracer.setContext("login of Notch");
+        Tracer.Span span = tracer.start("script login_player");
+        span.borrowed();
+        Thread.sleep(10);
+        span.finish();
+        tracer.setContext(previous);
+        tracer.start("heartbeat").finish();
+
+        List<Tracer.Span> slow = tracer.getSlow();
+        Assert.assertEquals(1, slow.size());
+        Assert.assertTrue(slow.get(0).toString().startsWith("script login_player (login of Notch) "));
+        Assert.assertTrue(tracer.getSampled().isEmpty());
+    }
+
+    @Test
+    public void testRingBuffer() {
+        Tracer tracer = new Tracer(Logger.getLogger("TracerTest"), 0, 1);
+        for (int i = 0; i < 100; i++) {
+            tracer.start("task " + i).finish();
+        }
+
+        List<Tracer.Span> sampled = tracer.getSampled();
+        Assert.assertEquals(64, sampled.size());
+        Assert.assertTrue(sampled.get(0).toString().startsWith("task 36 "));
+        Assert.assertTrue(sampled.get(63).toString().startsWith("task 99 "));
+    }
+}